@@ -6,16 +6,50 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleEOFException;
+import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleFileException;
 import org.pentaho.di.core.exception.KettlePluginException;
 import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.map.CanonicalCodec;
+import org.pentaho.di.core.row.value.map.CopyOnWriteMap;
+import org.pentaho.di.core.row.value.map.DictionaryMap;
+import org.pentaho.di.core.row.value.map.FixedKeyMap;
+import org.pentaho.di.core.row.value.map.FixedKeySchema;
+import org.pentaho.di.core.row.value.map.KeyDictionary;
+import org.pentaho.di.core.row.value.map.LazyMap;
+import org.pentaho.di.core.row.value.map.MapCodec;
+import org.pentaho.di.core.row.value.map.MapComparator;
+import org.pentaho.di.core.row.value.map.MapFormatter;
+import org.pentaho.di.core.row.value.map.MapJsonParser;
+import org.pentaho.di.core.row.value.map.MapSizeEstimator;
+import org.pentaho.di.core.row.value.map.MapStringParser;
+import org.pentaho.di.core.row.value.map.OffHeapMap;
+import org.pentaho.di.core.row.value.map.ParsedMapCache;
+import org.pentaho.di.core.row.value.map.PersistentHashMap;
+import org.pentaho.di.core.row.value.map.PrimitiveMap;
+import org.pentaho.di.core.row.value.map.SortedArrayMap;
+import org.pentaho.di.core.row.value.map.StringValueConverter;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.w3c.dom.Node;
 
 @ValueMetaPlugin( id = "627", name = "Map", description = "A collection of key/value pairs" )
 public class ValueMetaMap extends ValueMetaBase implements Cloneable {
@@ -23,20 +57,131 @@ public class ValueMetaMap extends ValueMetaBase implements Cloneable {
   ValueMetaInterface keyMeta;
   ValueMetaInterface valueMeta;
 
+  /** Serialization format written by writeData, older formats can always be read */
+  int writeFormatVersion = MapCodec.CURRENT_FORMAT;
+
+  /** Keep serialized maps undecoded until their entries are accessed */
+  boolean lazyDecoding = true;
+
+  /** Intern keys into a dictionary shared by the maps of this metadata (see DictionaryMap) */
+  boolean useKeyDictionary = false;
+
+  /** Dictionary of the keys, created on first use; shared with clones, so their maps and streams stay compatible */
+  private volatile KeyDictionary keyDictionary;
+
+  /**
+   * Ids of the dictionary keys written to each stream and keys read from each stream, weakly keyed by the stream. Kept
+   * by each clone, as every map field of a row keeps its own key set in the stream.
+   */
+  private Map<Object, BitSet> writtenKeyIds;
+  private Map<Object, List<Object>> readKeys;
+
+  /** Keys of the fixed key set (see FixedKeyMap) in their textual form, null for none */
+  String[] fixedKeys;
+
+  /** Number of maps whose keys make up the fixed key set when none is declared, 0 to not infer it */
+  int fixedKeysInferenceSize;
+
+  /** Fixed key set, built on first use from the declared keys or once inferred */
+  private volatile FixedKeySchema fixedKeySchema;
+
+  /** Keys seen while inferring the fixed key set, null once it is inferred or given up on */
+  private Set<Object> inferredKeys;
+  private int inferredMaps;
+
+  /** Class of the maps created for values of this type: MAP_IMPLEMENTATION_AUTO or one of the java.util maps */
+  int mapImplementation = MAP_IMPLEMENTATION_AUTO;
+
+  /** Order of the keys of tree maps, built on first use */
+  private volatile Comparator<Object> keyComparator;
+
+  /** Separators, enclosure and escape character of the textual form of a map */
+  String entrySeparator = MapStringParser.DEFAULT_ENTRY_SEPARATOR;
+  String keyValueSeparator = MapStringParser.DEFAULT_KEY_VALUE_SEPARATOR;
+  String enclosure = MapStringParser.DEFAULT_ENCLOSURE;
+  String escape;
+
+  /** Format of the strings converted to maps: PARSE_FORMAT_AUTO, PARSE_FORMAT_KEY_VALUE or PARSE_FORMAT_JSON */
+  int parseFormat = PARSE_FORMAT_AUTO;
+
+  /** Format of the textual form written by getString, see MapFormatter */
+  int stringFormat = MapFormatter.FORMAT_KEY_VALUE;
+
+  /** Parser and formatter for the above settings, built on first use */
+  private volatile MapStringParser parser;
+  private volatile MapFormatter formatter;
+
+  /** Converters of parsed keys/values to the key/value metadata, built on first use */
+  private volatile StringValueConverter keyConverter;
+  private volatile StringValueConverter valueConverter;
+
+  /** Number of distinct strings whose parsed map is cached, 0 to disable the cache */
+  int parseCacheSize = DEFAULT_PARSE_CACHE_SIZE;
+
+  /** Maps parsed from strings, created on first use and reset whenever the parse settings change */
+  private volatile ParsedMapCache parseCache;
+
+  /** Comparator for the key/value metadata, built on first use */
+  private volatile MapComparator comparator;
+
+  /** Metadata used to decode serialized keys/values, resolved once per type rather than once per map */
+  private ConcurrentMap<Integer, ValueMetaInterface> codecMetas = new ConcurrentHashMap<Integer, ValueMetaInterface>();
+
   public static final int TYPE_MAP = 627; // Value is "MAP" on a phone keypad
 
+  public static final int DEFAULT_PARSE_CACHE_SIZE = 1000;
+
+  /**
+   * Version of the map specific part of the metadata written by writeMeta: 1 for the key/value metadata, 2 adds the
+   * map settings, 3 the escape character
+   */
+  private static final int META_VERSION = 3;
+
+  /**
+   * Written before the map specific part of the metadata. Metadata written without it (by older versions of the plugin)
+   * is followed by the next value metadata, starting with its type, or by row data, starting with a null flag: neither
+   * starts with the 0xCA byte, so the marker tells the two apart.
+   */
+  private static final int META_MARKER = 0xCA4D4150;
+
+  /** Tags of the map specific part of the XML metadata */
+  private static final String XML_KEY_META_TAG = "map-key-meta";
+  private static final String XML_VALUE_META_TAG = "map-value-meta";
+  private static final String XML_FIXED_KEYS_TAG = "map-fixed-keys";
+
+  /** Maps with more distinct keys than this don't get a fixed key set inferred */
+  public static final int MAX_INFERRED_FIXED_KEYS = 256;
+
+  /** Strings are parsed as JSON objects when they look like one, as key/value pairs otherwise */
+  public static final int PARSE_FORMAT_AUTO = 0;
+  public static final int PARSE_FORMAT_KEY_VALUE = 1;
+  public static final int PARSE_FORMAT_JSON = 2;
+
+  public static final String[] parseFormatCodes = { "AUTO", "KEY_VALUE", "JSON" };
+
+  /**
+   * Maps are created by createMap() according to the key/value types and settings (fixed keys, key dictionary), or as
+   * a HashMap, LinkedHashMap (insertion order), TreeMap (ordered by the key metadata) or ConcurrentHashMap (shared
+   * between threads, no null keys or values).
+   */
+  public static final int MAP_IMPLEMENTATION_AUTO = 0;
+  public static final int MAP_IMPLEMENTATION_HASH = 1;
+  public static final int MAP_IMPLEMENTATION_LINKED = 2;
+  public static final int MAP_IMPLEMENTATION_TREE = 3;
+  public static final int MAP_IMPLEMENTATION_CONCURRENT = 4;
+
+  public static final String[] mapImplementationCodes = { "AUTO", "HASH", "LINKED", "TREE", "CONCURRENT" };
+
+  private static final MapJsonParser JSON_PARSER = new MapJsonParser();
+
   public ValueMetaMap() {
-    this( null );
+    this( (String) null );
   }
 
   public ValueMetaMap( String name ) {
     super( name, TYPE_MAP );
-    try {
-      keyMeta = ValueMetaFactory.createValueMeta( ValueMetaString.TYPE_STRING );
-      valueMeta = ValueMetaFactory.createValueMeta( ValueMetaString.TYPE_STRING );
-    } catch ( KettlePluginException kpe ) {
-      // do nothing -- TODO log?
-    }
+    keyMeta = new ValueMetaString();
+    valueMeta = new ValueMetaString();
   }
 
   public ValueMetaMap( String name, ValueMetaInterface keyMeta, ValueMetaInterface valueMeta ) {
@@ -45,11 +190,30 @@ public class ValueMetaMap extends ValueMetaBase implements Cloneable {
     this.valueMeta = valueMeta;
   }
 
+  /**
+   * Reads the metadata from its XML form, see getMetaXML().
+   */
+  public ValueMetaMap( Node node ) throws KettleException {
+    super( node );
+    keyMeta = new ValueMetaString();
+    valueMeta = new ValueMetaString();
+    loadMapMetaXML( node );
+  }
+
   @Override
   public ValueMetaMap clone() {
     ValueMetaMap mapMeta = (ValueMetaMap) super.clone();
     mapMeta.keyMeta = ( keyMeta == null ) ? null : keyMeta.clone();
     mapMeta.valueMeta = ( valueMeta == null ) ? null : valueMeta.clone();
+    mapMeta.keyConverter = null;
+    mapMeta.valueConverter = null;
+    mapMeta.parseCache = null;
+    mapMeta.comparator = null;
+    mapMeta.keyComparator = null;
+    mapMeta.inferredKeys = null;
+    mapMeta.inferredMaps = 0;
+    mapMeta.writtenKeyIds = null;
+    mapMeta.readKeys = null;
     mapMeta.compareStorageAndActualFormat();
 
     return mapMeta;
@@ -63,19 +227,283 @@ public class ValueMetaMap extends ValueMetaBase implements Cloneable {
       return null;
 
     try {
-      Map<Object, Object> mapClone = new ConcurrentHashMap<Object, Object>( map.size() );
-      mapClone.putAll( map );
-      return mapClone;
+      return copyMap( map );
 
     } catch ( Exception e ) {
       throw new KettleValueException( "Unable to clone Map", e );
     }
   }
 
+  /**
+   * Copies a map value. Frozen maps (sorted array or off-heap) are shared rather than copied, copy-on-write maps share
+   * their frozen entries. Persistent maps and undecoded lazy maps are copied in constant time by sharing their
+   * structure, primitive, dictionary and fixed key maps by copying their arrays, anything else entry by entry into a new
+   * map.
+   * <p>
+   * When the values are maps themselves, they are copied too (by the nested metadata), so a copy never shares a mutable
+   * nested map with the original: off-heap and undecoded lazy maps decode fresh values anyway, a frozen map holding
+   * nested maps is copied into a new frozen map.
+   */
+  public Map<Object, Object> copyMap( Map<Object, Object> map ) {
+    Map<Object, Object> copy = copyEntries( map );
+    if ( !( valueMeta instanceof ValueMetaMap ) || copy instanceof LazyMap || copy instanceof OffHeapMap ) {
+      return copy;
+    }
+    ValueMetaMap nestedMeta = (ValueMetaMap) valueMeta;
+    boolean shared = copy == map;
+    for ( Map.Entry<Object, Object> entry : map.entrySet() ) {
+      if ( entry.getValue() instanceof Map ) {
+        if ( shared ) {
+          copy = createMap( map.size() );
+          copy.putAll( map );
+          shared = false;
+        }
+        @SuppressWarnings( "unchecked" )
+        Map<Object, Object> nested = (Map<Object, Object>) entry.getValue();
+        copy.put( entry.getKey(), nestedMeta.copyMap( nested ) );
+      }
+    }
+    return ( map instanceof SortedArrayMap || map instanceof CopyOnWriteMap ) && !shared ? freezeMap( copy ) : copy;
+  }
+
+  /**
+   * Copies the map itself, sharing its values.
+   */
+  private Map<Object, Object> copyEntries( Map<Object, Object> map ) {
+    if ( map instanceof SortedArrayMap ) {
+      return map; // immutable
+    }
+    if ( map instanceof CopyOnWriteMap ) {
+      return ( (CopyOnWriteMap) map ).copy();
+    }
+    if ( map instanceof PersistentHashMap ) {
+      return ( (PersistentHashMap) map ).snapshot();
+    }
+    if ( map instanceof LazyMap ) {
+      return ( (LazyMap) map ).copy();
+    }
+    if ( map instanceof PrimitiveMap ) {
+      return ( (PrimitiveMap) map ).copy();
+    }
+    if ( map instanceof OffHeapMap ) {
+      return ( (OffHeapMap) map ).copy();
+    }
+    if ( map instanceof DictionaryMap ) {
+      return ( (DictionaryMap) map ).copy();
+    }
+    if ( map instanceof FixedKeyMap ) {
+      return ( (FixedKeyMap) map ).copy();
+    }
+    Map<Object, Object> mapClone = createMap( map.size() );
+    mapClone.putAll( map );
+    return mapClone;
+  }
+
+  /**
+   * Turns a map that isn't expected to be modified anymore into its most compact form: general maps become a
+   * SortedArrayMap, wrapped in a CopyOnWriteMap so they can still be modified (at the cost of a copy), off-heap maps are
+   * frozen in place. Maps that are compact already (primitive, dictionary, fixed key, frozen or undecoded maps), and
+   * maps of an explicitly chosen implementation, are returned as they are.
+   */
+  public Map<Object, Object> freezeMap( Map<Object, Object> map ) {
+    if ( map instanceof OffHeapMap ) {
+      ( (OffHeapMap) map ).freeze();
+      return map;
+    }
+    if ( map instanceof CopyOnWriteMap && ( (CopyOnWriteMap) map ).getFrozen() != null ) {
+      return map;
+    }
+    if ( map == null || map instanceof SortedArrayMap || map instanceof PrimitiveMap || map instanceof DictionaryMap
+        || map instanceof FixedKeyMap || map instanceof LazyMap ) {
+      return map;
+    }
+    if ( mapImplementation != MAP_IMPLEMENTATION_AUTO ) {
+      return map; // keep the order and behaviour of the implementation asked for
+    }
+    return new CopyOnWriteMap( this, SortedArrayMap.copyOf( map ) );
+  }
+
+  /**
+   * Estimates the heap retained by a value of this type, so steps can size their buffers in bytes rather than rows. The
+   * estimate is cheap, taken from the lengths of the map's arrays and a few sampled entries rather than a walk of the
+   * whole map (see MapSizeEstimator). Off-heap storage isn't counted.
+   * 
+   * @return the estimated number of bytes, 0 for null
+   */
+  public long estimateHeapSize( Object object ) {
+    if ( object == null ) {
+      return 0;
+    }
+    if ( storageType == STORAGE_TYPE_INDEXED ) {
+      return MapSizeEstimator.REFERENCE; // the value itself is held by the index
+    }
+    return MapSizeEstimator.estimateValue( object );
+  }
+
   @Override
   public String getString( Object object ) throws KettleValueException {
-    String mapString = getMap( object ).toString();
-    return mapString.substring( 1, mapString.length() - 1 );
+    Map<Object, Object> map = getMap( object );
+    if ( map == null ) {
+      return null;
+    }
+    return getFormatter().format( map );
+  }
+
+  /**
+   * Returns the textual form encoded in the string encoding, formatted straight into a reusable buffer rather than
+   * creating the String first.
+   */
+  @Override
+  public byte[] getBinaryString( Object object ) throws KettleValueException {
+    if ( storageType != STORAGE_TYPE_NORMAL || object == null ) {
+      return super.getBinaryString( object );
+    }
+    String encoding = getStringEncoding();
+    try {
+      Charset charset = Const.isEmpty( encoding ) ? Charset.defaultCharset() : Charset.forName( encoding );
+      return getFormatter().encode( getMap( object ), charset );
+    } catch ( IllegalArgumentException e ) {
+      throw new KettleValueException( toString() + " : Unsupported encoding " + encoding, e );
+    }
+  }
+
+  /**
+   * Compares two maps by their entries, whatever the order they were added in (see MapComparator). Nulls come first.
+   * Maps read in the canonical format (see CanonicalCodec) are compared byte by byte, without decoding them.
+   */
+  @Override
+  public int compare( Object data1, Object data2 ) throws KettleValueException {
+    Map<Object, Object> map1 = getMap( data1 );
+    Map<Object, Object> map2 = getMap( data2 );
+    int cmp;
+    if ( map1 == null ) {
+      cmp = map2 == null ? 0 : -1;
+    } else if ( map2 == null ) {
+      cmp = 1;
+    } else if ( isBinaryComparable( map1, map2 ) ) {
+      cmp = compareCanonical( (LazyMap) map1, (LazyMap) map2 );
+    } else {
+      cmp = getComparator().compare( map1, map2 );
+    }
+    return isSortedDescending() ? -cmp : cmp;
+  }
+
+  /**
+   * Compares two lazy maps on their payloads, or on their entries if either payload was dropped in the meantime (a
+   * value handed out to another thread), so the result always agrees with equals().
+   */
+  private int compareCanonical( LazyMap map1, LazyMap map2 ) throws KettleValueException {
+    byte[] payload1 = map1.getPayload();
+    byte[] payload2 = map2.getPayload();
+    if ( payload1 == null || payload2 == null ) {
+      return getComparator().compare( map1, map2 );
+    }
+    return CanonicalCodec.compare( payload1, payload2 );
+  }
+
+  /**
+   * Returns the hash code of the entries of the map, the same for maps that compare equal whatever the order their
+   * entries were added in. Each entry is hashed by the key/value metadata, as compare() compares them, so e.g. keys
+   * differing in case hash alike under a case-insensitive key metadata, and BigNumbers differing only in scale (1.0 and
+   * 1.00) hash alike.
+   * <p>
+   * For the other built-in types hashed case-sensitively, this is Map.hashCode(), which the maps created by this
+   * metadata maintain or cache, so the entries aren't iterated every time.
+   */
+  @Override
+  public int hashCode( Object object ) throws KettleValueException {
+    Map<Object, Object> map = getMap( object );
+    if ( map == null ) {
+      return 0;
+    }
+    if ( isNaturallyHashed( keyMeta ) && isNaturallyHashed( valueMeta ) ) {
+      return map.hashCode();
+    }
+    int hash = 0;
+    for ( Map.Entry<Object, Object> entry : map.entrySet() ) {
+      hash += hashOf( keyMeta, entry.getKey() ) ^ hashOf( valueMeta, entry.getValue() );
+    }
+    return hash;
+  }
+
+  /**
+   * @return true if the metadata hashes its values like their own hashCode() and compares them consistently with it
+   */
+  private static boolean isNaturallyHashed( ValueMetaInterface meta ) {
+    if ( meta == null || meta.isCaseInsensitive() ) {
+      return false;
+    }
+    switch ( meta.getType() ) {
+      case TYPE_STRING:
+      case TYPE_INTEGER:
+      case TYPE_NUMBER:
+      case TYPE_BOOLEAN:
+      case TYPE_DATE:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return the hash code of a key or value by its metadata, 0 for null as in Map.hashCode()
+   */
+  private static int hashOf( ValueMetaInterface meta, Object object ) throws KettleValueException {
+    if ( object == null ) {
+      return 0;
+    }
+    if ( meta == null ) {
+      return object.hashCode();
+    }
+    if ( object instanceof Map ) {
+      return meta instanceof ValueMetaMap ? meta.hashCode( object ) : object.hashCode();
+    }
+    if ( object instanceof String && meta.isCaseInsensitive() ) {
+      // consistent with String.compareToIgnoreCase
+      String string = (String) object;
+      int hash = 0;
+      for ( int i = 0; i < string.length(); i++ ) {
+        hash = 31 * hash + Character.toLowerCase( Character.toUpperCase( string.charAt( i ) ) );
+      }
+      return hash;
+    }
+    if ( object instanceof BigDecimal ) {
+      // consistent with BigDecimal.compareTo, which ignores the scale: 1.0 and 1.00 hash alike
+      BigDecimal number = (BigDecimal) object;
+      return number.signum() == 0 ? 0 : number.stripTrailingZeros().hashCode();
+    }
+    try {
+      return meta.hashCode( object );
+    } catch ( ClassCastException e ) {
+      return object.hashCode(); // not of the type of the metadata, as compared by MapComparator
+    }
+  }
+
+  /**
+   * @return true if both maps can be compared on their canonical payloads: the payloads are current (see LazyMap), every
+   *         key/value type has an order-preserving encoding (see CanonicalCodec.isOrderPreserving) and the byte order is
+   *         the order of MapComparator as long as the key/value metadata sort ascending and case-sensitively
+   */
+  private boolean isBinaryComparable( Map<Object, Object> map1, Map<Object, Object> map2 ) {
+    if ( !( map1 instanceof LazyMap ) || !( map2 instanceof LazyMap ) ) {
+      return false;
+    }
+    LazyMap lazyMap1 = (LazyMap) map1;
+    if ( !lazyMap1.isBinaryComparable( (LazyMap) map2 )
+        || !lazyMap1.isPayloadCompatible( keyMeta, valueMeta ) ) {
+      return false;
+    }
+    return !keyMeta.isSortedDescending() && !keyMeta.isCaseInsensitive() && !valueMeta.isSortedDescending()
+        && !valueMeta.isCaseInsensitive();
+  }
+
+  public MapComparator getComparator() {
+    MapComparator result = comparator;
+    if ( result == null ) {
+      result = new MapComparator( keyMeta, valueMeta );
+      comparator = result;
+    }
+    return result;
   }
 
   @Override
@@ -116,17 +544,13 @@ public class ValueMetaMap extends ValueMetaBase implements Cloneable {
    */
   @Override
   public Object convertData( ValueMetaInterface meta2, Object data2 ) throws KettleValueException {
-    try {
-      switch ( meta2.getType() ) {
-        case TYPE_STRING:
-          return convertStringToMap( meta2.getString( data2 ) );
-        case TYPE_MAP:
-          return data2;
-        default:
-          throw new KettleValueException( meta2.toStringMeta() + " : can't be converted to a Map" );
-      }
-    } catch ( KettlePluginException kpe ) {
-      throw new KettleValueException( kpe );
+    switch ( meta2.getType() ) {
+      case TYPE_STRING:
+        return convertStringToMap( meta2.getString( data2 ) );
+      case TYPE_MAP:
+        return data2;
+      default:
+        throw new KettleValueException( meta2.toStringMeta() + " : can't be converted to a Map" );
     }
   }
 
@@ -145,14 +569,15 @@ public class ValueMetaMap extends ValueMetaBase implements Cloneable {
       switch ( type ) {
         case TYPE_NUMBER:
           throw new KettleValueException( toString() + " : I don't know how to convert a number to a map." );
+        case TYPE_MAP:
         case TYPE_STRING:
           switch ( storageType ) {
             case STORAGE_TYPE_NORMAL:
               return convertStringToMap( (String) object );
             case STORAGE_TYPE_BINARY_STRING:
-              return convertStringToMap( (String) convertBinaryStringToNativeType( (byte[]) object ) );
+              return convertStringToMap( convertBinaryStringToString( (byte[]) object ) );
             case STORAGE_TYPE_INDEXED:
-              return convertStringToMap( (String) index[( (Integer) object ).intValue()] );
+              return convertIndexToMap( ( (Integer) object ).intValue() );
             default:
               throw new KettleValueException( toString() + " : Unknown storage type " + storageType + " specified." );
           }
@@ -177,34 +602,149 @@ public class ValueMetaMap extends ValueMetaBase implements Cloneable {
     }
   }
 
-  protected Map<Object, Object> convertStringToMap( String object ) throws KettlePluginException {
+  /**
+   * Parses the textual form of a map. Keys and values are converted to the type of the key/value metadata; the
+   * metadata itself isn't modified, so this can be called concurrently by several step copies.
+   */
+  protected Map<Object, Object> convertStringToMap( String object ) throws KettleValueException {
     if ( object == null ) {
       return null;
     }
-    Map<Object, Object> map = new ConcurrentHashMap<Object, Object>();
+    ParsedMapCache cache = getParseCache();
+    if ( cache == null ) {
+      return parseMap( object );
+    }
+    Map<Object, Object> map = cache.get( object );
+    if ( map == null ) {
+      map = parseMap( object );
+      cache.put( object, map );
+    }
+    return copyMap( map );
+  }
 
-    String keyValuePairs = object.trim();
-    if ( keyValuePairs.startsWith( "{" ) && keyValuePairs.endsWith( "}" ) ) {
-      keyValuePairs = keyValuePairs.substring( 1, keyValuePairs.length() - 1 );
+  /**
+   * Returns the map for a slot of the index of indexed storage. Each slot is parsed only once (as long as the parse
+   * cache is enabled), whatever the number of rows referring to it.
+   */
+  @SuppressWarnings( "unchecked" )
+  protected Map<Object, Object> convertIndexToMap( int slot ) throws KettleValueException {
+    Object value = index[slot];
+    if ( value == null || value instanceof Map ) {
+      return (Map<Object, Object>) value;
+    }
+    ParsedMapCache cache = getParseCache();
+    if ( cache == null ) {
+      return parseMap( (String) value );
     }
+    Object[] currentIndex = index;
+    Map<Object, Object> map = cache.get( currentIndex, slot );
+    if ( map == null ) {
+      map = parseMap( (String) value );
+      cache.put( currentIndex, slot, map );
+    }
+    return copyMap( map );
+  }
 
-    String[] kvPairList = Const.splitString( keyValuePairs, ",", "\"" );
-    for ( String kvPairString : kvPairList ) {
-      String[] kvPair = Const.splitString( kvPairString, "=", "\"" );
-      if ( kvPair != null && kvPair.length > 0 ) {
-        String value = "";
-        if ( kvPair.length > 1 ) {
-          value = kvPair[1].trim();
+  private Map<Object, Object> parseMap( String text ) throws KettleValueException {
+    Map<Object, Object> map = createMap( 0 );
+    switch ( parseFormat ) {
+      case PARSE_FORMAT_JSON:
+        JSON_PARSER.parse( text, map, this );
+        return observeKeys( map );
+      case PARSE_FORMAT_KEY_VALUE:
+        break;
+      default:
+        if ( MapJsonParser.isJsonObject( text ) ) {
+          try {
+            JSON_PARSER.parse( text, map, this );
+            return observeKeys( map );
+          } catch ( MapJsonParser.SyntaxException e ) {
+            // Only looked like JSON, e.g. {"a,b"=c}
+            map = createMap( 0 );
+          }
         }
-        map.put( kvPair[0].trim(), value );
-      }
+        break;
     }
+    getParser().parse( text, map, getKeyConverter(), getValueConverter() );
+    return observeKeys( map );
+  }
 
-    // Key/value types assumed to be Strings (see above logic)
-    this.setKeyMeta( ValueMetaFactory.createValueMeta( ValueMetaString.TYPE_STRING ) );
-    this.setValueMeta( ValueMetaFactory.createValueMeta( ValueMetaString.TYPE_STRING ) );
+  /**
+   * @return the cache of parsed maps, or null if it's disabled
+   */
+  public ParsedMapCache getParseCache() {
+    ParsedMapCache cache = parseCache;
+    if ( cache == null && parseCacheSize > 0 ) {
+      cache = new ParsedMapCache( parseCacheSize );
+      parseCache = cache;
+    }
+    return cache;
+  }
 
-    return map;
+  /**
+   * @return the number of strings that didn't need parsing thanks to the parse cache
+   */
+  public long getParseCacheHits() {
+    ParsedMapCache cache = parseCache;
+    return cache == null ? 0L : cache.getHits();
+  }
+
+  /**
+   * @return the number of strings that were parsed while the parse cache was enabled
+   */
+  public long getParseCacheMisses() {
+    ParsedMapCache cache = parseCache;
+    return cache == null ? 0L : cache.getMisses();
+  }
+
+  /**
+   * @return the converter of parsed keys to the key metadata, null if there is no key metadata
+   */
+  public StringValueConverter getKeyConverter() throws KettleValueException {
+    StringValueConverter converter = keyConverter;
+    if ( converter == null && keyMeta != null ) {
+      converter = new StringValueConverter( keyMeta );
+      keyConverter = converter;
+    }
+    return converter;
+  }
+
+  /**
+   * @return the converter of parsed values to the value metadata, null if there is no value metadata
+   */
+  public StringValueConverter getValueConverter() throws KettleValueException {
+    StringValueConverter converter = valueConverter;
+    if ( converter == null && valueMeta != null ) {
+      converter = new StringValueConverter( valueMeta );
+      valueConverter = converter;
+    }
+    return converter;
+  }
+
+  /**
+   * @return the formatter for the textual form of a map, using the string format, separators and enclosure of this
+   *         metadata
+   */
+  public MapFormatter getFormatter() {
+    MapFormatter result = formatter;
+    if ( result == null ) {
+      result = new MapFormatter( stringFormat, entrySeparator, keyValueSeparator, enclosure, escape );
+      formatter = result;
+    }
+    return result;
+  }
+
+  /**
+   * @return the parser for the textual form of a map, using the separators, enclosure and escape character of this
+   *         metadata
+   */
+  public MapStringParser getParser() {
+    MapStringParser result = parser;
+    if ( result == null ) {
+      result = new MapStringParser( entrySeparator, keyValueSeparator, enclosure, escape );
+      parser = result;
+    }
+    return result;
   }
 
   public ValueMetaInterface getKeyMeta() {
@@ -213,6 +753,11 @@ public class ValueMetaMap extends ValueMetaBase implements Cloneable {
 
   public void setKeyMeta( ValueMetaInterface keyMeta ) {
     this.keyMeta = keyMeta;
+    keyConverter = null;
+    parseCache = null;
+    comparator = null;
+    keyComparator = null;
+    resetFixedKeys();
   }
 
   public ValueMetaInterface getValueMeta() {
@@ -221,6 +766,694 @@ public class ValueMetaMap extends ValueMetaBase implements Cloneable {
 
   public void setValueMeta( ValueMetaInterface valueMeta ) {
     this.valueMeta = valueMeta;
+    valueConverter = null;
+    parseCache = null;
+    comparator = null;
+  }
+
+  public String getEntrySeparator() {
+    return entrySeparator;
+  }
+
+  /**
+   * @param entrySeparator
+   *          the separator between the entries of a map in its textual form, "," by default
+   */
+  public void setEntrySeparator( String entrySeparator ) {
+    this.entrySeparator = entrySeparator;
+    parser = null;
+    formatter = null;
+    parseCache = null;
+  }
+
+  public String getKeyValueSeparator() {
+    return keyValueSeparator;
+  }
+
+  /**
+   * @param keyValueSeparator
+   *          the separator between a key and its value in the textual form of a map, "=" by default
+   */
+  public void setKeyValueSeparator( String keyValueSeparator ) {
+    this.keyValueSeparator = keyValueSeparator;
+    parser = null;
+    formatter = null;
+    parseCache = null;
+  }
+
+  public String getEnclosure() {
+    return enclosure;
+  }
+
+  /**
+   * @param enclosure
+   *          the quote character around keys/values containing separators, empty for none
+   */
+  public void setEnclosure( String enclosure ) {
+    this.enclosure = enclosure;
+    parser = null;
+    formatter = null;
+    parseCache = null;
+  }
+
+  public String getEscape() {
+    return escape;
+  }
+
+  /**
+   * @param escape
+   *          the character escaping the next one within an enclosure, e.g. a backslash; null or empty (the default) for
+   *          none, so a backslash is an ordinary character as in Const.splitString
+   */
+  public void setEscape( String escape ) {
+    this.escape = escape;
+    parser = null;
+    formatter = null;
+    parseCache = null;
+  }
+
+  public int getParseFormat() {
+    return parseFormat;
+  }
+
+  /**
+   * @param parseFormat
+   *          the format of strings converted to maps: PARSE_FORMAT_AUTO, PARSE_FORMAT_KEY_VALUE or PARSE_FORMAT_JSON
+   */
+  public void setParseFormat( int parseFormat ) {
+    this.parseFormat = parseFormat;
+    parseCache = null;
+  }
+
+  public static String getParseFormatCode( int parseFormat ) {
+    if ( parseFormat < 0 || parseFormat >= parseFormatCodes.length ) {
+      return parseFormatCodes[PARSE_FORMAT_AUTO];
+    }
+    return parseFormatCodes[parseFormat];
+  }
+
+  public static int getParseFormat( String code ) {
+    for ( int i = 0; i < parseFormatCodes.length; i++ ) {
+      if ( parseFormatCodes[i].equalsIgnoreCase( code ) ) {
+        return i;
+      }
+    }
+    return PARSE_FORMAT_AUTO;
+  }
+
+  public int getMapImplementation() {
+    return mapImplementation;
+  }
+
+  /**
+   * @param mapImplementation
+   *          the class of the maps created for values of this type, MAP_IMPLEMENTATION_AUTO for the most compact map
+   *          for the key/value types, or MAP_IMPLEMENTATION_HASH, _LINKED, _TREE or _CONCURRENT
+   */
+  public void setMapImplementation( int mapImplementation ) {
+    this.mapImplementation = mapImplementation;
+    parseCache = null;
+  }
+
+  public static String getMapImplementationCode( int mapImplementation ) {
+    if ( mapImplementation < 0 || mapImplementation >= mapImplementationCodes.length ) {
+      return mapImplementationCodes[MAP_IMPLEMENTATION_AUTO];
+    }
+    return mapImplementationCodes[mapImplementation];
+  }
+
+  public static int getMapImplementation( String code ) {
+    for ( int i = 0; i < mapImplementationCodes.length; i++ ) {
+      if ( mapImplementationCodes[i].equalsIgnoreCase( code ) ) {
+        return i;
+      }
+    }
+    return MAP_IMPLEMENTATION_AUTO;
+  }
+
+  public int getStringFormat() {
+    return stringFormat;
+  }
+
+  /**
+   * @param stringFormat
+   *          the format of the textual form written by getString, MapFormatter.FORMAT_KEY_VALUE or FORMAT_JSON
+   */
+  public void setStringFormat( int stringFormat ) {
+    this.stringFormat = stringFormat;
+    formatter = null;
+  }
+
+  public int getParseCacheSize() {
+    return parseCacheSize;
+  }
+
+  /**
+   * @param parseCacheSize
+   *          the number of distinct strings whose parsed map is cached, 0 to disable the cache
+   */
+  public void setParseCacheSize( int parseCacheSize ) {
+    this.parseCacheSize = parseCacheSize;
+    parseCache = null;
+  }
+
+  public int getWriteFormatVersion() {
+    return writeFormatVersion;
+  }
+
+  /**
+   * @param writeFormatVersion
+   *          the serialization format to write, use MapCodec.FORMAT_LEGACY to talk to older versions of this plugin,
+   *          MapCodec.FORMAT_CANONICAL to have serialized maps (e.g. spilled by Sort rows) compared byte by byte
+   * @throws IllegalArgumentException
+   *           for any other version than these and MapCodec.FORMAT_V1
+   */
+  public void setWriteFormatVersion( int writeFormatVersion ) {
+    if ( !MapCodec.isWritableFormat( writeFormatVersion ) ) {
+      throw new IllegalArgumentException( toString() + " : Unsupported map serialization format version "
+          + writeFormatVersion + " to write" );
+    }
+    this.writeFormatVersion = writeFormatVersion;
+  }
+
+  public boolean isLazyDecoding() {
+    return lazyDecoding;
+  }
+
+  /**
+   * @param lazyDecoding
+   *          true to keep serialized maps undecoded until their entries are accessed (see LazyMap)
+   */
+  public void setLazyDecoding( boolean lazyDecoding ) {
+    this.lazyDecoding = lazyDecoding;
+  }
+
+  public boolean isUseKeyDictionary() {
+    return useKeyDictionary;
+  }
+
+  /**
+   * @param useKeyDictionary
+   *          true to intern the keys into a dictionary shared by all maps of this metadata: maps hold key ids rather than
+   *          their own keys, and serialized maps write each key once per stream (MapCodec.FORMAT_DICTIONARY)
+   */
+  public void setUseKeyDictionary( boolean useKeyDictionary ) {
+    this.useKeyDictionary = useKeyDictionary;
+  }
+
+  /**
+   * @return the dictionary of the keys, also used to read maps written with a dictionary when it isn't in use
+   */
+  public KeyDictionary getKeyDictionary() {
+    KeyDictionary dictionary = keyDictionary;
+    if ( dictionary == null ) {
+      synchronized ( this ) {
+        dictionary = keyDictionary;
+        if ( dictionary == null ) {
+          dictionary = new KeyDictionary();
+          keyDictionary = dictionary;
+        }
+      }
+    }
+    return dictionary;
+  }
+
+  public String[] getFixedKeys() {
+    return fixedKeys;
+  }
+
+  /**
+   * @param fixedKeys
+   *          the keys all maps are expected to have, in their textual form; maps then store their values in an array
+   *          indexed by key position (see FixedKeyMap). Null for none.
+   */
+  public void setFixedKeys( String[] fixedKeys ) {
+    this.fixedKeys = fixedKeys;
+    resetFixedKeys();
+  }
+
+  public int getFixedKeysInferenceSize() {
+    return fixedKeysInferenceSize;
+  }
+
+  /**
+   * @param fixedKeysInferenceSize
+   *          when no fixed keys are declared, the number of maps parsed or read whose keys make up the fixed key set of
+   *          the maps created afterwards; 0 to not infer it
+   */
+  public void setFixedKeysInferenceSize( int fixedKeysInferenceSize ) {
+    this.fixedKeysInferenceSize = fixedKeysInferenceSize;
+    resetFixedKeys();
+  }
+
+  private synchronized void resetFixedKeys() {
+    fixedKeySchema = null;
+    inferredKeys = null;
+    inferredMaps = 0;
+  }
+
+  /**
+   * @return the fixed key set, null if none is declared or inferred yet
+   */
+  public FixedKeySchema getFixedKeySchema() {
+    FixedKeySchema schema = fixedKeySchema;
+    if ( schema == null && fixedKeys != null ) {
+      List<Object> keys = new ArrayList<Object>( fixedKeys.length );
+      try {
+        StringValueConverter converter = getKeyConverter();
+        for ( String key : fixedKeys ) {
+          keys.add( converter.convert( key ) );
+        }
+      } catch ( KettleValueException e ) {
+        throw new IllegalArgumentException( toString() + " : Fixed keys don't match the key type", e );
+      }
+      schema = new FixedKeySchema( keys );
+      fixedKeySchema = schema;
+    }
+    return schema;
+  }
+
+  /**
+   * Takes note of the keys of a map parsed or read by this metadata, while the fixed key set is being inferred.
+   * 
+   * @return the map
+   */
+  public Map<Object, Object> observeKeys( Map<Object, Object> map ) {
+    if ( fixedKeysInferenceSize <= 0 || fixedKeys != null || fixedKeySchema != null || inferredMaps < 0 || map == null ) {
+      return map;
+    }
+    synchronized ( this ) {
+      if ( fixedKeySchema != null || inferredMaps < 0 ) {
+        return map;
+      }
+      if ( inferredKeys == null ) {
+        inferredKeys = new LinkedHashSet<Object>();
+      }
+      inferredKeys.addAll( map.keySet() );
+      if ( inferredKeys.size() > MAX_INFERRED_FIXED_KEYS ) {
+        // No fixed key set to speak of, stop looking
+        inferredKeys = null;
+        inferredMaps = -1;
+      } else if ( ++inferredMaps >= fixedKeysInferenceSize ) {
+        fixedKeySchema = new FixedKeySchema( inferredKeys );
+        inferredKeys = null;
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Creates an empty map to hold the entries of a value of this type. An explicitly chosen implementation (see
+   * setMapImplementation) is always used. Otherwise maps with a fixed key set hold their values in
+   * an array (see FixedKeyMap). With a key dictionary, maps hold key ids (see
+   * DictionaryMap). Otherwise Integer keys and/or Integer/Number values get a
+   * map specialized on the primitive types (see PrimitiveMap), so entries aren't boxed. Other types get a
+   * PersistentHashMap, which can be cloned in constant time when rows are copied to several target steps.
+   * 
+   * @param expectedSize
+   *          the number of entries that will be added, or 0 if unknown
+   */
+  public Map<Object, Object> createMap( int expectedSize ) {
+    switch ( mapImplementation ) {
+      case MAP_IMPLEMENTATION_HASH:
+        return new HashMap<Object, Object>( hashCapacity( expectedSize ) );
+      case MAP_IMPLEMENTATION_LINKED:
+        return new LinkedHashMap<Object, Object>( hashCapacity( expectedSize ) );
+      case MAP_IMPLEMENTATION_TREE:
+        return new TreeMap<Object, Object>( getKeyComparator() );
+      case MAP_IMPLEMENTATION_CONCURRENT:
+        return new ConcurrentHashMap<Object, Object>( hashCapacity( expectedSize ) );
+      default:
+        break;
+    }
+    FixedKeySchema schema = getFixedKeySchema();
+    if ( schema != null ) {
+      return new FixedKeyMap( schema );
+    }
+    if ( useKeyDictionary ) {
+      return new DictionaryMap( getKeyDictionary(), expectedSize );
+    }
+    if ( keyMeta != null && valueMeta != null ) {
+      PrimitiveMap map = PrimitiveMap.forTypes( keyMeta.getType(), valueMeta.getType(), expectedSize );
+      if ( map != null ) {
+        return map;
+      }
+    }
+    return new PersistentHashMap();
+  }
+
+  private static int hashCapacity( int expectedSize ) {
+    return Math.max( 16, (int) ( expectedSize / 0.75f ) + 1 );
+  }
+
+  /**
+   * @return the order of the keys in tree maps: the order of the key metadata, nulls first
+   */
+  public Comparator<Object> getKeyComparator() {
+    Comparator<Object> c = keyComparator;
+    if ( c == null ) {
+      final ValueMetaInterface meta = keyMeta;
+      c = new Comparator<Object>() {
+        @SuppressWarnings( { "unchecked", "rawtypes" } )
+        @Override
+        public int compare( Object key1, Object key2 ) {
+          if ( key1 == null || key2 == null ) {
+            return key1 == null ? ( key2 == null ? 0 : -1 ) : 1;
+          }
+          if ( meta == null ) {
+            return ( (Comparable) key1 ).compareTo( key2 );
+          }
+          try {
+            return meta.compare( key1, key2 );
+          } catch ( KettleValueException e ) {
+            throw new IllegalArgumentException( ValueMetaMap.this.toString() + " : Unable to compare keys", e );
+          }
+        }
+      };
+      keyComparator = c;
+    }
+    return c;
+  }
+
+  /**
+   * Returns the metadata to decode serialized keys or values of the given type. The factory lookup is only done the
+   * first time a type is seen.
+   */
+  public ValueMetaInterface getCodecMeta( int type ) throws KettlePluginException {
+    ValueMetaInterface meta = codecMetas.get( type );
+    if ( meta == null ) {
+      meta = ValueMetaFactory.createValueMeta( type );
+      codecMetas.put( type, meta );
+    }
+    return meta;
+  }
+
+  /**
+   * Returns the metadata to decode serialized keys of the given type: the key metadata itself when it has that type, so
+   * nested maps are read with their own key/value metadata, otherwise a factory-made metadata (see getCodecMeta).
+   */
+  public ValueMetaInterface getKeyCodecMeta( int type ) throws KettlePluginException {
+    return getCodecMeta( type, keyMeta );
+  }
+
+  /**
+   * Returns the metadata to decode serialized values of the given type, see getKeyCodecMeta.
+   */
+  public ValueMetaInterface getValueCodecMeta( int type ) throws KettlePluginException {
+    return getCodecMeta( type, valueMeta );
+  }
+
+  private ValueMetaInterface getCodecMeta( int type, ValueMetaInterface declaredMeta ) throws KettlePluginException {
+    if ( declaredMeta != null && declaredMeta.getType() == type
+        && declaredMeta.getStorageType() == STORAGE_TYPE_NORMAL ) {
+      return declaredMeta;
+    }
+    return getCodecMeta( type );
+  }
+
+  /**
+   * Writes the metadata, followed by the key and value metadata and the map settings, so the receiving side (another
+   * step copy, a remote step or a slave server) decodes, parses and formats maps exactly like this side. The map
+   * specific part starts with a marker, so metadata written without it can still be read (see readMetaData).
+   */
+  @Override
+  public void writeMeta( DataOutputStream outputStream ) throws KettleFileException {
+    super.writeMeta( outputStream );
+    try {
+      outputStream.writeInt( META_MARKER );
+      outputStream.writeInt( META_VERSION );
+      writeNestedMeta( outputStream, keyMeta );
+      writeNestedMeta( outputStream, valueMeta );
+
+      outputStream.writeInt( writeFormatVersion );
+      outputStream.writeBoolean( lazyDecoding );
+      outputStream.writeBoolean( useKeyDictionary );
+      outputStream.writeInt( fixedKeys == null ? -1 : fixedKeys.length );
+      if ( fixedKeys != null ) {
+        for ( String key : fixedKeys ) {
+          writeNullableString( outputStream, key );
+        }
+      }
+      outputStream.writeInt( fixedKeysInferenceSize );
+      writeNullableString( outputStream, entrySeparator );
+      writeNullableString( outputStream, keyValueSeparator );
+      writeNullableString( outputStream, enclosure );
+      outputStream.writeInt( parseFormat );
+      outputStream.writeInt( stringFormat );
+      outputStream.writeInt( parseCacheSize );
+      outputStream.writeInt( mapImplementation );
+      writeNullableString( outputStream, escape );
+    } catch ( IOException e ) {
+      throw new KettleFileException( toString() + " : Unable to write map metadata to output stream", e );
+    }
+  }
+
+  private static void writeNestedMeta( DataOutputStream outputStream, ValueMetaInterface meta ) throws IOException,
+    KettleFileException {
+    outputStream.writeBoolean( meta != null );
+    if ( meta != null ) {
+      meta.writeMeta( outputStream ); // starts with the type
+    }
+  }
+
+  @Override
+  public void readMetaData( DataInputStream inputStream ) throws KettleFileException {
+    super.readMetaData( inputStream );
+    try {
+      if ( !readMetaMarker( inputStream ) ) {
+        return; // written by an older version of the plugin, keep the defaults
+      }
+      int version = inputStream.readInt();
+      if ( version > META_VERSION ) {
+        throw new KettleFileException( toString() + " : Unsupported map metadata version " + version );
+      }
+      setKeyMeta( readNestedMeta( inputStream ) );
+      setValueMeta( readNestedMeta( inputStream ) );
+      if ( version < 2 ) {
+        return; // settings weren't written, keep the defaults
+      }
+
+      int writeFormat = inputStream.readInt();
+      if ( !MapCodec.isWritableFormat( writeFormat ) ) {
+        throw new KettleFileException( toString() + " : Unsupported map serialization format version " + writeFormat
+            + " to write" );
+      }
+      setWriteFormatVersion( writeFormat );
+      setLazyDecoding( inputStream.readBoolean() );
+      setUseKeyDictionary( inputStream.readBoolean() );
+      int fixedKeyCount = inputStream.readInt();
+      String[] keys = null;
+      if ( fixedKeyCount >= 0 ) {
+        keys = new String[fixedKeyCount];
+        for ( int i = 0; i < fixedKeyCount; i++ ) {
+          keys[i] = readNullableString( inputStream );
+        }
+      }
+      setFixedKeys( keys );
+      setFixedKeysInferenceSize( inputStream.readInt() );
+      setEntrySeparator( readNullableString( inputStream ) );
+      setKeyValueSeparator( readNullableString( inputStream ) );
+      setEnclosure( readNullableString( inputStream ) );
+      setParseFormat( inputStream.readInt() );
+      setStringFormat( inputStream.readInt() );
+      setParseCacheSize( inputStream.readInt() );
+      setMapImplementation( inputStream.readInt() );
+      if ( version >= 3 ) {
+        setEscape( readNullableString( inputStream ) );
+      }
+    } catch ( IOException e ) {
+      throw new KettleFileException( toString() + " : Unable to read map metadata from input stream", e );
+    } catch ( KettlePluginException e ) {
+      throw new KettleFileException( toString() + " : Unable to read map metadata from input stream", e );
+    }
+  }
+
+  /**
+   * Reads the marker of the map specific part of the metadata. Without it, the stream is rewound to where the marker was
+   * expected, so the next metadata or row data can be read: that takes a stream supporting mark(), as buffered streams
+   * (sockets, files) do.
+   *
+   * @return false if the map specific part wasn't written
+   */
+  private boolean readMetaMarker( DataInputStream inputStream ) throws IOException, KettleFileException {
+    boolean rewindable = inputStream.markSupported();
+    if ( rewindable ) {
+      inputStream.mark( 4 );
+    }
+    int marker;
+    try {
+      marker = inputStream.readInt();
+    } catch ( EOFException e ) {
+      if ( rewindable ) {
+        inputStream.reset();
+      }
+      return false; // last metadata of the stream
+    }
+    if ( marker == META_MARKER ) {
+      return true;
+    }
+    if ( !rewindable ) {
+      throw new KettleFileException( toString()
+          + " : Map metadata written by an older version of the plugin can't be read from this stream" );
+    }
+    inputStream.reset();
+    return false;
+  }
+
+  private static void writeNullableString( DataOutputStream outputStream, String string ) throws IOException {
+    outputStream.writeBoolean( string != null );
+    if ( string != null ) {
+      outputStream.writeUTF( string );
+    }
+  }
+
+  private static String readNullableString( DataInputStream inputStream ) throws IOException {
+    return inputStream.readBoolean() ? inputStream.readUTF() : null;
+  }
+
+  /**
+   * Adds the key and value metadata and the map settings to the XML form of the metadata.
+   */
+  @Override
+  public String getMetaXML() throws IOException {
+    String xml = super.getMetaXML();
+    StringBuilder mapXml = new StringBuilder();
+    appendNestedMetaXML( mapXml, XML_KEY_META_TAG, keyMeta );
+    appendNestedMetaXML( mapXml, XML_VALUE_META_TAG, valueMeta );
+    mapXml.append( XMLHandler.addTagValue( "map_write_format", writeFormatVersion ) );
+    mapXml.append( XMLHandler.addTagValue( "map_lazy_decoding", lazyDecoding ) );
+    mapXml.append( XMLHandler.addTagValue( "map_key_dictionary", useKeyDictionary ) );
+    if ( fixedKeys != null ) {
+      mapXml.append( XMLHandler.openTag( XML_FIXED_KEYS_TAG ) );
+      for ( String key : fixedKeys ) {
+        mapXml.append( XMLHandler.addTagValue( "key", key, false ) );
+      }
+      mapXml.append( XMLHandler.closeTag( XML_FIXED_KEYS_TAG ) ).append( Const.CR );
+    }
+    mapXml.append( XMLHandler.addTagValue( "map_fixed_keys_inference", fixedKeysInferenceSize ) );
+    mapXml.append( XMLHandler.addTagValue( "map_entry_separator", entrySeparator ) );
+    mapXml.append( XMLHandler.addTagValue( "map_key_value_separator", keyValueSeparator ) );
+    mapXml.append( XMLHandler.addTagValue( "map_enclosure", enclosure ) );
+    mapXml.append( XMLHandler.addTagValue( "map_escape", escape ) );
+    mapXml.append( XMLHandler.addTagValue( "map_parse_format", getParseFormatCode( parseFormat ) ) );
+    mapXml.append( XMLHandler.addTagValue( "map_string_format", MapFormatter.getFormatCode( stringFormat ) ) );
+    mapXml.append( XMLHandler.addTagValue( "map_parse_cache_size", parseCacheSize ) );
+    mapXml.append( XMLHandler.addTagValue( "map_implementation", getMapImplementationCode( mapImplementation ) ) );
+
+    // Inside the value-meta element of the base metadata
+    int end = xml.lastIndexOf( XMLHandler.closeTag( XML_META_TAG ) );
+    if ( end < 0 ) {
+      return xml + mapXml;
+    }
+    return xml.substring( 0, end ) + mapXml + xml.substring( end );
+  }
+
+  private static void appendNestedMetaXML( StringBuilder xml, String tag, ValueMetaInterface meta ) throws IOException {
+    if ( meta != null ) {
+      xml.append( XMLHandler.openTag( tag ) ).append( Const.CR );
+      xml.append( meta.getMetaXML() );
+      xml.append( XMLHandler.closeTag( tag ) ).append( Const.CR );
+    }
+  }
+
+  /**
+   * Reads the map specific part of the XML form of the metadata. Missing settings keep their current value, so older
+   * XML without them can be read.
+   */
+  public void loadMapMetaXML( Node node ) throws KettleException {
+    Node keyNode = XMLHandler.getSubNode( node, XML_KEY_META_TAG );
+    if ( keyNode != null ) {
+      setKeyMeta( loadNestedMetaXML( keyNode ) );
+    }
+    Node valueNode = XMLHandler.getSubNode( node, XML_VALUE_META_TAG );
+    if ( valueNode != null ) {
+      setValueMeta( loadNestedMetaXML( valueNode ) );
+    }
+    String value = XMLHandler.getTagValue( node, "map_write_format" );
+    if ( value != null ) {
+      int writeFormat = Const.toInt( value, MapCodec.CURRENT_FORMAT );
+      if ( !MapCodec.isWritableFormat( writeFormat ) ) {
+        throw new KettleException( toString() + " : Unsupported map serialization format version " + writeFormat
+            + " to write" );
+      }
+      setWriteFormatVersion( writeFormat );
+    }
+    value = XMLHandler.getTagValue( node, "map_lazy_decoding" );
+    if ( value != null ) {
+      setLazyDecoding( "Y".equalsIgnoreCase( value ) );
+    }
+    value = XMLHandler.getTagValue( node, "map_key_dictionary" );
+    if ( value != null ) {
+      setUseKeyDictionary( "Y".equalsIgnoreCase( value ) );
+    }
+    Node fixedKeysNode = XMLHandler.getSubNode( node, XML_FIXED_KEYS_TAG );
+    if ( fixedKeysNode != null ) {
+      List<Node> keyNodes = XMLHandler.getNodes( fixedKeysNode, "key" );
+      String[] keys = new String[keyNodes.size()];
+      for ( int i = 0; i < keys.length; i++ ) {
+        keys[i] = XMLHandler.getNodeValue( keyNodes.get( i ) );
+      }
+      setFixedKeys( keys );
+    }
+    value = XMLHandler.getTagValue( node, "map_fixed_keys_inference" );
+    if ( value != null ) {
+      setFixedKeysInferenceSize( Const.toInt( value, 0 ) );
+    }
+    value = XMLHandler.getTagValue( node, "map_entry_separator" );
+    if ( value != null ) {
+      setEntrySeparator( value );
+    }
+    value = XMLHandler.getTagValue( node, "map_key_value_separator" );
+    if ( value != null ) {
+      setKeyValueSeparator( value );
+    }
+    value = XMLHandler.getTagValue( node, "map_enclosure" );
+    if ( value != null ) {
+      setEnclosure( value );
+    }
+    value = XMLHandler.getTagValue( node, "map_escape" );
+    if ( value != null ) {
+      setEscape( value );
+    }
+    value = XMLHandler.getTagValue( node, "map_parse_format" );
+    if ( value != null ) {
+      setParseFormat( getParseFormat( value ) );
+    }
+    value = XMLHandler.getTagValue( node, "map_string_format" );
+    if ( value != null ) {
+      setStringFormat( MapFormatter.getFormat( value ) );
+    }
+    value = XMLHandler.getTagValue( node, "map_parse_cache_size" );
+    if ( value != null ) {
+      setParseCacheSize( Const.toInt( value, DEFAULT_PARSE_CACHE_SIZE ) );
+    }
+    value = XMLHandler.getTagValue( node, "map_implementation" );
+    if ( value != null ) {
+      setMapImplementation( getMapImplementation( value ) );
+    }
+  }
+
+  private static ValueMetaInterface loadNestedMetaXML( Node node ) throws KettleException {
+    Node metaNode = XMLHandler.getSubNode( node, XML_META_TAG );
+    if ( metaNode == null ) {
+      return null;
+    }
+    int type = ValueMetaFactory.getIdForValueMeta( XMLHandler.getTagValue( metaNode, "type" ) );
+    if ( type == TYPE_MAP ) {
+      return new ValueMetaMap( metaNode );
+    }
+    // The base metadata reads the common settings (format, length, storage...), then gets the class of its type
+    return ValueMetaFactory.cloneValueMeta( new ValueMetaBase( metaNode ), type );
+  }
+
+  private static ValueMetaInterface readNestedMeta( DataInputStream inputStream ) throws IOException,
+    KettleFileException, KettlePluginException {
+    if ( !inputStream.readBoolean() ) {
+      return null;
+    }
+    ValueMetaInterface meta = ValueMetaFactory.createValueMeta( inputStream.readInt() );
+    meta.readMetaData( inputStream ); // nested map metadata reads its own key/value metadata
+    return meta;
   }
 
   @Override
@@ -234,24 +1467,18 @@ public class ValueMetaMap extends ValueMetaBase implements Cloneable {
 
       switch ( storageType ) {
         case STORAGE_TYPE_NORMAL:
-          try {
-            // Handle Content -- only when not NULL
-            int numEntries = inputStream.readInt();
-            int keyType = inputStream.readInt();
-            int valueType = inputStream.readInt();
-            ValueMetaInterface inputKeyMeta = ValueMetaFactory.createValueMeta( keyType );
-            ValueMetaInterface inputValueMeta = ValueMetaFactory.createValueMeta( valueType );
-            Map<Object, Object> map = new ConcurrentHashMap<Object, Object>( numEntries );
-            for ( int i = 0; i < numEntries; i++ ) {
-              Object key = inputKeyMeta.readData( inputStream );
-              Object value = inputValueMeta.readData( inputStream );
-              map.put( key, value );
+          // Handle Content -- only when not NULL
+          int marker = inputStream.readUnsignedByte();
+          if ( MapCodec.isVersionMarker( marker ) ) {
+            if ( MapCodec.getVersion( marker ) == MapCodec.FORMAT_DICTIONARY ) {
+              return MapCodec.readDictionaryMap( inputStream, getReadKeys( inputStream ), this );
             }
-
-            return map;
-          } catch ( KettlePluginException kpe ) {
-            throw new KettleEOFException( kpe );
+            if ( lazyDecoding ) {
+              return MapCodec.readLazyMap( inputStream, MapCodec.getVersion( marker ), this );
+            }
+            return MapCodec.readMap( inputStream, MapCodec.getVersion( marker ), this );
           }
+          return readLegacyMap( inputStream, marker );
 
         case STORAGE_TYPE_BINARY_STRING:
           return readBinaryString( inputStream );
@@ -268,9 +1495,39 @@ public class ValueMetaMap extends ValueMetaBase implements Cloneable {
       throw e;
     } catch ( IOException e ) {
       throw new KettleFileException( toString() + " : Unable to read value map data from input stream", e );
+    } catch ( KettleFileException e ) {
+      throw e;
+    } catch ( KettleException e ) {
+      throw new KettleFileException( toString() + " : Unable to read value map data from input stream", e );
     }
   }
 
+  /**
+   * Reads a map written by earlier versions: 4-byte entry count, 4-byte key and value types, then every key and value
+   * as written by their metadata.
+   * 
+   * @param firstByte
+   *          the high byte of the entry count, already consumed to check for a version marker
+   */
+  protected Map<Object, Object> readLegacyMap( DataInputStream inputStream, int firstByte ) throws IOException,
+    KettleException {
+    int numEntries =
+        ( firstByte << 24 ) | ( inputStream.readUnsignedByte() << 16 ) | ( inputStream.readUnsignedByte() << 8 )
+            | inputStream.readUnsignedByte();
+    int keyType = inputStream.readInt();
+    int valueType = inputStream.readInt();
+    ValueMetaInterface inputKeyMeta = getKeyCodecMeta( keyType );
+    ValueMetaInterface inputValueMeta = getValueCodecMeta( valueType );
+    Map<Object, Object> map = createMap( numEntries );
+    for ( int i = 0; i < numEntries; i++ ) {
+      Object key = inputKeyMeta.readData( inputStream );
+      Object value = inputValueMeta.readData( inputStream );
+      map.put( key, value );
+    }
+
+    return observeKeys( map );
+  }
+
   @Override
   public void writeData( DataOutputStream outputStream, Object object ) throws KettleFileException {
     try {
@@ -283,16 +1540,10 @@ public class ValueMetaMap extends ValueMetaBase implements Cloneable {
             // Handle Content -- only when not NULL
             @SuppressWarnings( "unchecked" )
             Map<Object, Object> map = (Map<Object, Object>) object;
-            // Write number of elements
-            outputStream.writeInt( map.size() );
-            // Write key,value types
-            outputStream.writeInt( keyMeta.getType() );
-            outputStream.writeInt( valueMeta.getType() );
-
-            for ( @SuppressWarnings( "rawtypes" )
-            Map.Entry entry : map.entrySet() ) {
-              keyMeta.writeData( outputStream, entry.getKey() );
-              valueMeta.writeData( outputStream, entry.getValue() );
+            if ( writeFormatVersion == MapCodec.FORMAT_LEGACY ) {
+              writeLegacyMap( outputStream, map );
+            } else if ( !writeDictionaryMap( outputStream, map ) ) {
+              MapCodec.writeMap( outputStream, map, keyMeta, valueMeta, writeFormatVersion );
             }
             break;
 
@@ -320,6 +1571,68 @@ public class ValueMetaMap extends ValueMetaBase implements Cloneable {
           + toStringMeta() + "]" );
     } catch ( IOException e ) {
       throw new KettleFileException( toString() + " : Unable to write value map data to output stream", e );
+    } catch ( KettleFileException e ) {
+      throw e;
+    } catch ( KettleException e ) {
+      throw new KettleFileException( toString() + " : Unable to write value map data to output stream", e );
+    }
+  }
+
+  /**
+   * Writes the map with key ids when the key dictionary is in use with the current format.
+   * 
+   * @return false if the map wasn't written, e.g. into a stream embedded in another value
+   */
+  private boolean writeDictionaryMap( DataOutputStream outputStream, Map<Object, Object> map ) throws IOException,
+    KettleException {
+    if ( !useKeyDictionary || writeFormatVersion != MapCodec.FORMAT_V1 ) {
+      return false;
+    }
+    return MapCodec.writeDictionaryMap( outputStream, map, getKeyDictionary(), getWrittenKeyIds( outputStream ),
+        keyMeta, valueMeta );
+  }
+
+  /**
+   * @return the ids of the dictionary keys this metadata wrote to the stream
+   */
+  private synchronized BitSet getWrittenKeyIds( Object stream ) {
+    if ( writtenKeyIds == null ) {
+      writtenKeyIds = new WeakHashMap<Object, BitSet>();
+    }
+    BitSet written = writtenKeyIds.get( stream );
+    if ( written == null ) {
+      written = new BitSet();
+      writtenKeyIds.put( stream, written );
+    }
+    return written;
+  }
+
+  /**
+   * @return the keys this metadata read from the stream so far, indexed by the ids of the writing side
+   */
+  private synchronized List<Object> getReadKeys( Object stream ) {
+    if ( readKeys == null ) {
+      readKeys = new WeakHashMap<Object, List<Object>>();
+    }
+    List<Object> read = readKeys.get( stream );
+    if ( read == null ) {
+      read = new ArrayList<Object>();
+      readKeys.put( stream, read );
+    }
+    return read;
+  }
+
+  protected void writeLegacyMap( DataOutputStream outputStream, Map<Object, Object> map ) throws IOException,
+    KettleFileException {
+    // Write number of elements
+    outputStream.writeInt( map.size() );
+    // Write key,value types
+    outputStream.writeInt( keyMeta.getType() );
+    outputStream.writeInt( valueMeta.getType() );
+
+    for ( Map.Entry<Object, Object> entry : map.entrySet() ) {
+      keyMeta.writeData( outputStream, entry.getKey() );
+      valueMeta.writeData( outputStream, entry.getValue() );
     }
   }
 
@@ -0,0 +1,315 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Map;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Canonical, binary-comparable payload for map values (format version 2). Two payloads of maps with the same key and
+ * value types compare byte by byte (unsigned) the same way MapComparator compares the maps, and equal maps always get
+ * equal payloads, whatever the order their entries were added in. Rows can be sorted and deduplicated on the
+ * serialized form, without rebuilding the maps.
+ * <p>
+ * Layout:
+ *
+ * <pre>
+ *   varint flags (FLAG_CANONICAL), varint key type, varint value type, varint number of entries
+ *   entries sorted by encoded key: 0x01, key, value
+ *   0x00
+ * </pre>
+ *
+ * The header is skipped when comparing. Keys and values start with 0x00 for null (nulls first) or 0x01 followed by an
+ * order-preserving, self-delimiting encoding:
+ * <ul>
+ * <li>Integer, Date: 8 bytes big-endian with the sign bit flipped</li>
+ * <li>Number: the IEEE 754 bits, all flipped for negative numbers, only the sign bit flipped otherwise</li>
+ * <li>Boolean: one byte</li>
+ * <li>BigNumber: sign byte, then for non-zero numbers the decimal exponent and the digits (all bytes inverted for
+ * negative numbers)</li>
+ * <li>String (UTF-8), Binary: the bytes with 0x00 escaped as 0x00 0xFF, terminated by 0x00 0x01</li>
+ * </ul>
+ * Other types (Timestamp, nested maps, ...) are written by their metadata and escaped like Binary: not ordered by value,
+ * nor necessarily equal for equal values. Binary is ordered unsigned, unlike its metadata. Only payloads whose key and
+ * value types are all order-preserving (see isOrderPreserving) are compared byte by byte; others are decoded and
+ * compared by MapComparator.
+ */
+public class CanonicalCodec {
+
+  static final int END = 0x00;
+  static final int ENTRY = 0x01;
+
+  static final int NULL = 0x00;
+  static final int NOT_NULL = 0x01;
+
+  static final int BIGNUMBER_NEGATIVE = 0x01;
+  static final int BIGNUMBER_ZERO = 0x02;
+  static final int BIGNUMBER_POSITIVE = 0x03;
+
+  private static final Comparator<byte[][]> ENTRY_ORDER = new Comparator<byte[][]>() {
+    @Override
+    public int compare( byte[][] entry1, byte[][] entry2 ) {
+      return compareBytes( entry1[0], 0, entry1[0].length, entry2[0], 0, entry2[0].length );
+    }
+  };
+
+  private CanonicalCodec() {
+  }
+
+  /**
+   * @return true if the encoding of the type orders values the way their metadata compares them (ascending and
+   *         case-sensitively) and gives equal values equal bytes. UTF-8 orders Strings by code point, which differs
+   *         from String.compareTo only between supplementary characters and U+E000 to U+FFFF.
+   */
+  public static boolean isOrderPreserving( int type ) {
+    switch ( type ) {
+      case ValueMetaInterface.TYPE_STRING:
+      case ValueMetaInterface.TYPE_INTEGER:
+      case ValueMetaInterface.TYPE_NUMBER:
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+      case ValueMetaInterface.TYPE_BOOLEAN:
+      case ValueMetaInterface.TYPE_DATE:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return true if the payload (as kept by LazyMap) is in the canonical format
+   */
+  public static boolean isCanonical( byte[] payload ) {
+    return ( payload[0] & MapCodec.FLAG_CANONICAL ) != 0;
+  }
+
+  public static void writePayload( DataOutputStream out, Map<?, ?> map, ValueMetaInterface keyMeta,
+    ValueMetaInterface valueMeta ) throws IOException, KettleException {
+    int keyType = keyMeta.getType();
+    int valueType = valueMeta.getType();
+
+    // Encode every entry first: the entries are ordered by their encoded keys
+    byte[][][] entries = new byte[map.size()][][];
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 );
+    DataOutputStream data = new DataOutputStream( bytes );
+    int i = 0;
+    for ( Map.Entry<?, ?> entry : map.entrySet() ) {
+      bytes.reset();
+      writeValue( data, keyType, keyMeta, entry.getKey() );
+      byte[] key = bytes.toByteArray();
+      bytes.reset();
+      writeValue( data, valueType, valueMeta, entry.getValue() );
+      entries[i++] = new byte[][] { key, bytes.toByteArray() };
+    }
+    Arrays.sort( entries, ENTRY_ORDER );
+
+    MapCodec.writeVarInt( out, MapCodec.FLAG_CANONICAL );
+    MapCodec.writeVarInt( out, keyType );
+    MapCodec.writeVarInt( out, valueType );
+    MapCodec.writeVarInt( out, entries.length );
+    for ( byte[][] entry : entries ) {
+      out.writeByte( ENTRY );
+      out.write( entry[0] );
+      out.write( entry[1] );
+    }
+    out.writeByte( END );
+  }
+
+  /**
+   * Reads the entries of a canonical payload, after the header.
+   */
+  public static void readEntries( DataInputStream in, Map<Object, Object> map, int keyType,
+    ValueMetaInterface keyMeta, int valueType, ValueMetaInterface valueMeta ) throws IOException, KettleException {
+    while ( in.readUnsignedByte() == ENTRY ) {
+      Object key = readValue( in, keyType, keyMeta );
+      Object value = readValue( in, valueType, valueMeta );
+      map.put( key, value );
+    }
+  }
+
+  /**
+   * Compares two canonical payloads of maps with the same key and value types.
+   */
+  public static int compare( byte[] payload1, byte[] payload2 ) {
+    int start1 = skipHeader( payload1 );
+    int start2 = skipHeader( payload2 );
+    return compareBytes( payload1, start1, payload1.length, payload2, start2, payload2.length );
+  }
+
+  static int compareBytes( byte[] bytes1, int from1, int to1, byte[] bytes2, int from2, int to2 ) {
+    int length = Math.min( to1 - from1, to2 - from2 );
+    for ( int i = 0; i < length; i++ ) {
+      int b1 = bytes1[from1 + i] & 0xFF;
+      int b2 = bytes2[from2 + i] & 0xFF;
+      if ( b1 != b2 ) {
+        return b1 < b2 ? -1 : 1;
+      }
+    }
+    int length1 = to1 - from1;
+    int length2 = to2 - from2;
+    return length1 < length2 ? -1 : ( length1 == length2 ? 0 : 1 );
+  }
+
+  private static int skipHeader( byte[] payload ) {
+    int position = 0;
+    for ( int i = 0; i < 4; i++ ) {
+      while ( ( payload[position++] & 0x80 ) != 0 ) {
+        // skip varint continuation bytes
+      }
+    }
+    return position;
+  }
+
+  static void writeValue( DataOutputStream out, int type, ValueMetaInterface meta, Object value )
+    throws IOException, KettleException {
+    if ( value == null ) {
+      out.writeByte( NULL );
+      return;
+    }
+    out.writeByte( NOT_NULL );
+    switch ( type ) {
+      case ValueMetaInterface.TYPE_STRING:
+        writeEscaped( out, ( value instanceof String ? (String) value : meta.getString( value ) )
+            .getBytes( MapCodec.UTF8 ) );
+        break;
+      case ValueMetaInterface.TYPE_INTEGER:
+        out.writeLong( ( value instanceof Long ? ( (Long) value ).longValue() : meta.getInteger( value ).longValue() )
+            ^ Long.MIN_VALUE );
+        break;
+      case ValueMetaInterface.TYPE_DATE:
+        out.writeLong( ( value instanceof Date ? (Date) value : meta.getDate( value ) ).getTime() ^ Long.MIN_VALUE );
+        break;
+      case ValueMetaInterface.TYPE_NUMBER:
+        double d = value instanceof Double ? ( (Double) value ).doubleValue() : meta.getNumber( value ).doubleValue();
+        long bits = Double.doubleToLongBits( d ); // NaNs collapsed to a single canonical NaN
+        out.writeLong( bits ^ ( bits < 0 ? -1L : Long.MIN_VALUE ) );
+        break;
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        boolean b = value instanceof Boolean ? ( (Boolean) value ).booleanValue() : meta.getBoolean( value )
+            .booleanValue();
+        out.writeByte( b ? 1 : 0 );
+        break;
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        writeBigNumber( out, value instanceof BigDecimal ? (BigDecimal) value : meta.getBigNumber( value ) );
+        break;
+      case ValueMetaInterface.TYPE_BINARY:
+        writeEscaped( out, value instanceof byte[] ? (byte[]) value : meta.getBinary( value ) );
+        break;
+      default:
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        meta.writeData( new MapCodec.EmbeddedDataOutputStream( bytes ), value );
+        writeEscaped( out, bytes.toByteArray() );
+        break;
+    }
+  }
+
+  static Object readValue( DataInputStream in, int type, ValueMetaInterface meta ) throws IOException,
+    KettleException {
+    if ( in.readUnsignedByte() == NULL ) {
+      return null;
+    }
+    switch ( type ) {
+      case ValueMetaInterface.TYPE_STRING:
+        return new String( readEscaped( in ), MapCodec.UTF8 );
+      case ValueMetaInterface.TYPE_INTEGER:
+        return Long.valueOf( in.readLong() ^ Long.MIN_VALUE );
+      case ValueMetaInterface.TYPE_DATE:
+        return new Date( in.readLong() ^ Long.MIN_VALUE );
+      case ValueMetaInterface.TYPE_NUMBER:
+        long bits = in.readLong();
+        return Double.valueOf( Double.longBitsToDouble( bits ^ ( bits < 0 ? Long.MIN_VALUE : -1L ) ) );
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return Boolean.valueOf( in.readUnsignedByte() != 0 );
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        return readBigNumber( in );
+      case ValueMetaInterface.TYPE_BINARY:
+        return readEscaped( in );
+      default:
+        return meta.readData( new DataInputStream( new ByteArrayInputStream( readEscaped( in ) ) ) );
+    }
+  }
+
+  /**
+   * Writes the number as 0.digits x 10^exponent: a larger exponent means a larger magnitude, and with equal exponents
+   * the digits compare as strings. Trailing zeros are stripped, so 1.0 and 1.00 get the same encoding.
+   */
+  private static void writeBigNumber( DataOutputStream out, BigDecimal number ) throws IOException {
+    int signum = number.signum();
+    if ( signum == 0 ) {
+      out.writeByte( BIGNUMBER_ZERO );
+      return;
+    }
+    out.writeByte( signum < 0 ? BIGNUMBER_NEGATIVE : BIGNUMBER_POSITIVE );
+    BigDecimal magnitude = number.abs().stripTrailingZeros();
+    String digits = magnitude.unscaledValue().toString();
+    int exponent = digits.length() - magnitude.scale();
+    int invert = signum < 0 ? 0xFF : 0;
+
+    int e = exponent ^ Integer.MIN_VALUE;
+    out.writeByte( ( ( e >>> 24 ) & 0xFF ) ^ invert );
+    out.writeByte( ( ( e >>> 16 ) & 0xFF ) ^ invert );
+    out.writeByte( ( ( e >>> 8 ) & 0xFF ) ^ invert );
+    out.writeByte( ( e & 0xFF ) ^ invert );
+    for ( int i = 0; i < digits.length(); i++ ) {
+      out.writeByte( digits.charAt( i ) ^ invert );
+    }
+    out.writeByte( invert ); // terminator, sorts before any digit
+  }
+
+  private static BigDecimal readBigNumber( DataInputStream in ) throws IOException {
+    int sign = in.readUnsignedByte();
+    if ( sign == BIGNUMBER_ZERO ) {
+      return BigDecimal.ZERO;
+    }
+    int invert = sign == BIGNUMBER_NEGATIVE ? 0xFF : 0;
+    int e = 0;
+    for ( int i = 0; i < 4; i++ ) {
+      e = ( e << 8 ) | ( in.readUnsignedByte() ^ invert );
+    }
+    int exponent = e ^ Integer.MIN_VALUE;
+    StringBuilder digits = new StringBuilder();
+    int c;
+    while ( ( c = in.readUnsignedByte() ^ invert ) != 0 ) {
+      digits.append( (char) c );
+    }
+    BigDecimal magnitude = new BigDecimal( new BigInteger( digits.toString() ), digits.length() - exponent );
+    return invert == 0 ? magnitude : magnitude.negate();
+  }
+
+  private static void writeEscaped( DataOutputStream out, byte[] bytes ) throws IOException {
+    int start = 0;
+    for ( int i = 0; i < bytes.length; i++ ) {
+      if ( bytes[i] == 0 ) {
+        out.write( bytes, start, i + 1 - start );
+        out.writeByte( 0xFF );
+        start = i + 1;
+      }
+    }
+    out.write( bytes, start, bytes.length - start );
+    out.writeByte( 0x00 );
+    out.writeByte( 0x01 );
+  }
+
+  private static byte[] readEscaped( DataInputStream in ) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for ( ;; ) {
+      int b = in.readUnsignedByte();
+      if ( b != 0 ) {
+        bytes.write( b );
+      } else if ( in.readUnsignedByte() == 0xFF ) {
+        bytes.write( 0 );
+      } else {
+        return bytes.toByteArray();
+      }
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.pentaho.di.core.row.value.ValueMetaMap;
+
+/**
+ * A frozen map that stays writable: the entries are held by a SortedArrayMap, shared with the copies of the map, until
+ * the map is first modified, when they are copied into a new map of the map metadata (see ValueMetaMap.createMap()).
+ * Maps that are only read keep the compact heap of a SortedArrayMap and are copied in constant time, while steps that
+ * modify them see an ordinary mutable map.
+ */
+public class CopyOnWriteMap extends AbstractMap<Object, Object> {
+
+  private final ValueMetaMap mapMeta;
+
+  /** The shared entries, null once the map has been modified */
+  private SortedArrayMap frozen;
+
+  /** The entries copied on the first modification, null until then */
+  private Map<Object, Object> thawed;
+
+  private transient Set<Map.Entry<Object, Object>> entrySet;
+
+  public CopyOnWriteMap( ValueMetaMap mapMeta, SortedArrayMap frozen ) {
+    this.mapMeta = mapMeta;
+    this.frozen = frozen;
+  }
+
+  /**
+   * @return the shared entries, null if the map has been modified
+   */
+  public SortedArrayMap getFrozen() {
+    return frozen;
+  }
+
+  /**
+   * @return a copy of this map, sharing the frozen entries while this map hasn't been modified
+   */
+  public Map<Object, Object> copy() {
+    if ( frozen != null ) {
+      return new CopyOnWriteMap( mapMeta, frozen );
+    }
+    return mapMeta.copyMap( thawed );
+  }
+
+  protected Map<Object, Object> delegate() {
+    return frozen != null ? frozen : thawed;
+  }
+
+  protected Map<Object, Object> modify() {
+    if ( thawed == null ) {
+      thawed = mapMeta.createMap( frozen.size() );
+      thawed.putAll( frozen );
+      frozen = null;
+    }
+    return thawed;
+  }
+
+  @Override
+  public int size() {
+    return delegate().size();
+  }
+
+  @Override
+  public boolean containsKey( Object key ) {
+    return delegate().containsKey( key );
+  }
+
+  @Override
+  public boolean containsValue( Object value ) {
+    return delegate().containsValue( value );
+  }
+
+  @Override
+  public Object get( Object key ) {
+    return delegate().get( key );
+  }
+
+  @Override
+  public Object put( Object key, Object value ) {
+    return modify().put( key, value );
+  }
+
+  @Override
+  public Object remove( Object key ) {
+    return frozen != null && !frozen.containsKey( key ) ? null : modify().remove( key );
+  }
+
+  @Override
+  public void putAll( Map<? extends Object, ? extends Object> m ) {
+    modify().putAll( m );
+  }
+
+  @Override
+  public void clear() {
+    modify().clear();
+  }
+
+  @Override
+  public boolean equals( Object o ) {
+    return o == this || delegate().equals( o );
+  }
+
+  /**
+   * @return the hash code of the entries, which both the frozen and the thawed maps cache
+   */
+  @Override
+  public int hashCode() {
+    return delegate().hashCode();
+  }
+
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet() {
+    if ( entrySet == null ) {
+      entrySet = new AbstractSet<Map.Entry<Object, Object>>() {
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator() {
+          if ( frozen == null ) {
+            return thawed.entrySet().iterator();
+          }
+          final Iterator<Map.Entry<Object, Object>> iterator = frozen.entrySet().iterator();
+          return new Iterator<Map.Entry<Object, Object>>() {
+            private Object lastKey;
+            private boolean removable;
+
+            @Override
+            public boolean hasNext() {
+              return iterator.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Object, Object> next() {
+              final Map.Entry<Object, Object> entry = iterator.next();
+              lastKey = entry.getKey();
+              removable = true;
+              return new SimpleEntry<Object, Object>( entry ) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public Object setValue( Object value ) {
+                  put( getKey(), value );
+                  return super.setValue( value );
+                }
+              };
+            }
+
+            @Override
+            public void remove() {
+              if ( !removable ) {
+                throw new IllegalStateException();
+              }
+              // The iteration goes on over the frozen entries, which the copy doesn't change
+              modify().remove( lastKey );
+              removable = false;
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return CopyOnWriteMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+          CopyOnWriteMap.this.clear();
+        }
+      };
+    }
+    return entrySet;
+  }
+}
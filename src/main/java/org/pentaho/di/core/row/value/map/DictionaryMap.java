@@ -0,0 +1,313 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map whose keys are held as ids of a KeyDictionary shared by many maps, for maps with recurring key sets: each map
+ * only holds an int array of ids and an array of values, in insertion order, instead of its own entry objects. Small
+ * maps are searched linearly, larger ones get an index on the ids.
+ * <p>
+ * Keys the dictionary refuses (once it is full) are kept in a small overflow map, so the full Map contract is honoured.
+ */
+public class DictionaryMap extends AbstractMap<Object, Object> {
+
+  /** Maps up to this size are searched linearly */
+  static final int LINEAR_SCAN_LIMIT = 16;
+
+  private final KeyDictionary dictionary;
+  private int[] ids;
+  private Object[] values;
+  private int size;
+
+  /** Open-addressing index of positions (plus one) by id, only for maps larger than LINEAR_SCAN_LIMIT */
+  private int[] index;
+
+  /** Entries whose key isn't in the dictionary, null until needed */
+  private Map<Object, Object> overflow;
+
+  private transient Set<Map.Entry<Object, Object>> entrySet;
+
+  public DictionaryMap( KeyDictionary dictionary, int expectedSize ) {
+    this.dictionary = dictionary;
+    int capacity = Math.max( expectedSize, 4 );
+    ids = new int[capacity];
+    values = new Object[capacity];
+  }
+
+  private DictionaryMap( DictionaryMap map ) {
+    dictionary = map.dictionary;
+    size = map.size;
+    ids = Arrays.copyOf( map.ids, Math.max( size, 4 ) );
+    values = Arrays.copyOf( map.values, Math.max( size, 4 ) );
+    if ( map.overflow != null ) {
+      overflow = new HashMap<Object, Object>( map.overflow );
+    }
+  }
+
+  public KeyDictionary getDictionary() {
+    return dictionary;
+  }
+
+  /**
+   * @return a copy of the map, sharing its dictionary
+   */
+  public DictionaryMap copy() {
+    return new DictionaryMap( this );
+  }
+
+  /**
+   * @return true if every key is in the dictionary
+   */
+  boolean isFullyEncoded() {
+    return overflow == null || overflow.isEmpty();
+  }
+
+  /**
+   * @return the number of entries whose key is in the dictionary
+   */
+  int encodedSize() {
+    return size;
+  }
+
+  /**
+   * @return the length of the id and value arrays
+   */
+  int capacity() {
+    return ids.length;
+  }
+
+  int idAt( int position ) {
+    return ids[position];
+  }
+
+  Object valueAt( int position ) {
+    return values[position];
+  }
+
+  private int position( int id ) {
+    if ( size <= LINEAR_SCAN_LIMIT ) {
+      for ( int i = 0; i < size; i++ ) {
+        if ( ids[i] == id ) {
+          return i;
+        }
+      }
+      return -1;
+    }
+    if ( index == null ) {
+      buildIndex();
+    }
+    int mask = index.length - 1;
+    int slot = slotOf( id, mask );
+    int entry;
+    while ( ( entry = index[slot] ) != 0 ) {
+      if ( ids[entry - 1] == id ) {
+        return entry - 1;
+      }
+      slot = ( slot + 1 ) & mask;
+    }
+    return -1;
+  }
+
+  private static int slotOf( int id, int mask ) {
+    int h = id * 0x9E3779B9;
+    return ( h ^ ( h >>> 16 ) ) & mask;
+  }
+
+  private void buildIndex() {
+    int capacity = Integer.highestOneBit( size * 4 - 1 ) << 1;
+    index = new int[capacity];
+    for ( int i = 0; i < size; i++ ) {
+      indexPosition( i );
+    }
+  }
+
+  private void indexPosition( int position ) {
+    int mask = index.length - 1;
+    int slot = slotOf( ids[position], mask );
+    while ( index[slot] != 0 ) {
+      slot = ( slot + 1 ) & mask;
+    }
+    index[slot] = position + 1;
+  }
+
+  @Override
+  public int size() {
+    return size + ( overflow == null ? 0 : overflow.size() );
+  }
+
+  @Override
+  public boolean containsKey( Object key ) {
+    int id = dictionary.lookup( key );
+    if ( id >= 0 && position( id ) >= 0 ) {
+      return true;
+    }
+    return overflow != null && overflow.containsKey( key );
+  }
+
+  @Override
+  public Object get( Object key ) {
+    int id = dictionary.lookup( key );
+    if ( id >= 0 ) {
+      int position = position( id );
+      if ( position >= 0 ) {
+        return values[position];
+      }
+    }
+    return overflow == null ? null : overflow.get( key );
+  }
+
+  @Override
+  public Object put( Object key, Object value ) {
+    int id = dictionary.intern( key );
+    if ( id < 0 ) {
+      if ( overflow == null ) {
+        overflow = new HashMap<Object, Object>();
+      }
+      return overflow.put( key, value );
+    }
+    int position = position( id );
+    if ( position >= 0 ) {
+      Object previous = values[position];
+      values[position] = value;
+      return previous;
+    }
+    if ( size == ids.length ) {
+      ids = Arrays.copyOf( ids, size * 2 );
+      values = Arrays.copyOf( values, size * 2 );
+    }
+    ids[size] = id;
+    values[size] = value;
+    size++;
+    if ( index != null ) {
+      if ( size * 2 > index.length ) {
+        index = null; // rebuilt larger on the next lookup
+      } else {
+        indexPosition( size - 1 );
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Object remove( Object key ) {
+    int id = dictionary.lookup( key );
+    if ( id >= 0 ) {
+      int position = position( id );
+      if ( position >= 0 ) {
+        Object previous = values[position];
+        removeAt( position );
+        return previous;
+      }
+    }
+    return overflow == null ? null : overflow.remove( key );
+  }
+
+  private void removeAt( int position ) {
+    int moved = size - position - 1;
+    System.arraycopy( ids, position + 1, ids, position, moved );
+    System.arraycopy( values, position + 1, values, position, moved );
+    values[--size] = null;
+    index = null;
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill( values, 0, size, null );
+    size = 0;
+    index = null;
+    overflow = null;
+  }
+
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet() {
+    if ( entrySet == null ) {
+      entrySet = new AbstractSet<Map.Entry<Object, Object>>() {
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator() {
+          return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+          return DictionaryMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+          DictionaryMap.this.clear();
+        }
+      };
+    }
+    return entrySet;
+  }
+
+  private class EntryIterator implements Iterator<Map.Entry<Object, Object>> {
+    private int position;
+    private boolean removable;
+    private boolean inOverflow;
+    private Iterator<Map.Entry<Object, Object>> overflowIterator;
+
+    @Override
+    public boolean hasNext() {
+      if ( position < size ) {
+        return true;
+      }
+      if ( overflow == null ) {
+        return false;
+      }
+      if ( overflowIterator == null ) {
+        overflowIterator = overflow.entrySet().iterator();
+      }
+      return overflowIterator.hasNext();
+    }
+
+    @Override
+    public Map.Entry<Object, Object> next() {
+      if ( !hasNext() ) {
+        throw new NoSuchElementException();
+      }
+      removable = true;
+      inOverflow = position >= size;
+      if ( inOverflow ) {
+        return overflowIterator.next();
+      }
+      Map.Entry<Object, Object> next = new Entry( dictionary.getKey( ids[position] ), values[position] );
+      position++;
+      return next;
+    }
+
+    @Override
+    public void remove() {
+      if ( !removable ) {
+        throw new IllegalStateException();
+      }
+      removable = false;
+      if ( inOverflow ) {
+        overflowIterator.remove();
+      } else {
+        removeAt( --position );
+      }
+    }
+  }
+
+  private class Entry extends SimpleEntry<Object, Object> {
+    private static final long serialVersionUID = 1L;
+
+    Entry( Object key, Object value ) {
+      super( key, value );
+    }
+
+    @Override
+    public Object setValue( Object value ) {
+      put( getKey(), value );
+      return super.setValue( value );
+    }
+  }
+}
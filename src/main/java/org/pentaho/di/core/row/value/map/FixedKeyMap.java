@@ -0,0 +1,270 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map of a known key set (see FixedKeySchema), backed by a plain array of values indexed by key position, like the
+ * fields of a row. Keys outside the schema are kept in a small overflow map, so the full Map contract is honoured.
+ */
+public class FixedKeyMap extends AbstractMap<Object, Object> {
+
+  /** Marks the positions whose key isn't in the map, as opposed to a null value */
+  private static final Object ABSENT = new Object();
+
+  private final FixedKeySchema schema;
+  private final Object[] values;
+
+  /** Number of schema keys in the map */
+  private int size;
+
+  /** Entries whose key isn't part of the schema, null until needed */
+  private Map<Object, Object> overflow;
+
+  private transient Set<Map.Entry<Object, Object>> entrySet;
+
+  public FixedKeyMap( FixedKeySchema schema ) {
+    this.schema = schema;
+    this.values = new Object[schema.size()];
+    Arrays.fill( values, ABSENT );
+  }
+
+  private FixedKeyMap( FixedKeyMap map ) {
+    schema = map.schema;
+    values = map.values.clone();
+    size = map.size;
+    if ( map.overflow != null ) {
+      overflow = new HashMap<Object, Object>( map.overflow );
+    }
+  }
+
+  public FixedKeySchema getSchema() {
+    return schema;
+  }
+
+  public FixedKeyMap copy() {
+    return new FixedKeyMap( this );
+  }
+
+  /**
+   * @return the value at the position of the schema, null if the key isn't in the map
+   */
+  public Object getAt( int position ) {
+    Object value = values[position];
+    return value == ABSENT ? null : value;
+  }
+
+  @Override
+  public int size() {
+    return size + ( overflow == null ? 0 : overflow.size() );
+  }
+
+  @Override
+  public boolean containsKey( Object key ) {
+    int position = schema.indexOf( key );
+    if ( position >= 0 ) {
+      return values[position] != ABSENT;
+    }
+    return overflow != null && overflow.containsKey( key );
+  }
+
+  @Override
+  public Object get( Object key ) {
+    int position = schema.indexOf( key );
+    if ( position >= 0 ) {
+      return getAt( position );
+    }
+    return overflow == null ? null : overflow.get( key );
+  }
+
+  @Override
+  public Object put( Object key, Object value ) {
+    int position = schema.indexOf( key );
+    if ( position < 0 ) {
+      if ( overflow == null ) {
+        overflow = new HashMap<Object, Object>();
+      }
+      return overflow.put( key, value );
+    }
+    return putAt( position, value );
+  }
+
+  /**
+   * Puts the value of the key at the position of the schema, without looking the key up.
+   *
+   * @return the previous value, null if the key wasn't in the map
+   */
+  public Object putAt( int position, Object value ) {
+    Object previous = values[position];
+    values[position] = value;
+    if ( previous == ABSENT ) {
+      size++;
+      return null;
+    }
+    return previous;
+  }
+
+  @Override
+  public Object remove( Object key ) {
+    int position = schema.indexOf( key );
+    if ( position < 0 ) {
+      return overflow == null ? null : overflow.remove( key );
+    }
+    return removeAt( position );
+  }
+
+  private Object removeAt( int position ) {
+    Object previous = values[position];
+    if ( previous == ABSENT ) {
+      return null;
+    }
+    values[position] = ABSENT;
+    size--;
+    return previous;
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill( values, ABSENT );
+    size = 0;
+    overflow = null;
+  }
+
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet() {
+    if ( entrySet == null ) {
+      entrySet = new AbstractSet<Map.Entry<Object, Object>>() {
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator() {
+          return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+          return FixedKeyMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+          FixedKeyMap.this.clear();
+        }
+      };
+    }
+    return entrySet;
+  }
+
+  private class EntryIterator implements Iterator<Map.Entry<Object, Object>> {
+    private int next = -1;
+    private int last = -1;
+    private Iterator<Map.Entry<Object, Object>> overflowIterator;
+
+    EntryIterator() {
+      advance();
+    }
+
+    private void advance() {
+      do {
+        next++;
+      } while ( next < values.length && values[next] == ABSENT );
+    }
+
+    @Override
+    public boolean hasNext() {
+      if ( next < values.length ) {
+        return true;
+      }
+      if ( overflow == null ) {
+        return false;
+      }
+      if ( overflowIterator == null ) {
+        overflowIterator = overflow.entrySet().iterator();
+      }
+      return overflowIterator.hasNext();
+    }
+
+    @Override
+    public Map.Entry<Object, Object> next() {
+      if ( !hasNext() ) {
+        throw new NoSuchElementException();
+      }
+      if ( overflowIterator != null ) {
+        last = -1;
+        return overflowIterator.next();
+      }
+      last = next;
+      advance();
+      return new Entry( last );
+    }
+
+    @Override
+    public void remove() {
+      if ( last >= 0 ) {
+        removeAt( last );
+        last = -1;
+      } else if ( overflowIterator != null ) {
+        overflowIterator.remove();
+      } else {
+        throw new IllegalStateException();
+      }
+    }
+  }
+
+  private class Entry implements Map.Entry<Object, Object> {
+    private final int position;
+
+    Entry( int position ) {
+      this.position = position;
+    }
+
+    @Override
+    public Object getKey() {
+      return schema.getKey( position );
+    }
+
+    @Override
+    public Object getValue() {
+      return getAt( position );
+    }
+
+    @Override
+    public Object setValue( Object value ) {
+      Object previous = values[position];
+      values[position] = value;
+      if ( previous == ABSENT ) {
+        size++;
+        return null;
+      }
+      return previous;
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+      if ( !( o instanceof Map.Entry ) ) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      Object key = getKey();
+      Object value = getValue();
+      return ( key == null ? e.getKey() == null : key.equals( e.getKey() ) )
+          && ( value == null ? e.getValue() == null : value.equals( e.getValue() ) );
+    }
+
+    @Override
+    public int hashCode() {
+      Object key = getKey();
+      Object value = getValue();
+      return ( key == null ? 0 : key.hashCode() ) ^ ( value == null ? 0 : value.hashCode() );
+    }
+
+    @Override
+    public String toString() {
+      return getKey() + "=" + getValue();
+    }
+  }
+}
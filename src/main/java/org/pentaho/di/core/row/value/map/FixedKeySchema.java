@@ -0,0 +1,126 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Random;
+
+/**
+ * Immutable key set of FixedKeyMaps: assigns each key a position, looked up through a hash table whose multiplier is
+ * searched so that every key lands in a slot of its own (a perfect hash). Looking a key up then takes a single hash
+ * code, multiplication and equals(). Key sets without such a multiplier (e.g. distinct keys with equal hash codes) fall
+ * back to linear probing.
+ */
+public final class FixedKeySchema {
+
+  /** Multipliers tried per table size before doubling it */
+  private static final int SEED_ATTEMPTS = 256;
+
+  /** Table sizes tried, as powers of two above the key count, before giving up on a perfect hash */
+  private static final int EXTRA_BITS = 3;
+
+  private final Object[] keys;
+  private final int[] slots; // position plus one, 0 for a free slot
+  private final int seed;
+  private final int shift;
+  private final int mask;
+  private final boolean perfect;
+
+  public FixedKeySchema( Collection<?> keys ) {
+    this.keys = new LinkedHashSet<Object>( keys ).toArray();
+    int n = this.keys.length;
+    int[] hashes = new int[n];
+    for ( int i = 0; i < n; i++ ) {
+      hashes[i] = this.keys[i] == null ? 0 : this.keys[i].hashCode();
+    }
+
+    int minBits = Math.max( 1, 32 - Integer.numberOfLeadingZeros( Math.max( n - 1, 1 ) ) );
+    Random random = new Random( n );
+    int[] table = null;
+    int foundSeed = 0;
+    int bits = minBits;
+    search: for ( ; bits <= minBits + EXTRA_BITS; bits++ ) {
+      for ( int attempt = 0; attempt < SEED_ATTEMPTS; attempt++ ) {
+        int candidate = random.nextInt() | 1;
+        table = tryPerfect( hashes, candidate, bits );
+        if ( table != null ) {
+          foundSeed = candidate;
+          break search;
+        }
+      }
+    }
+
+    if ( table != null ) {
+      perfect = true;
+      seed = foundSeed;
+      shift = 32 - bits;
+      slots = table;
+    } else {
+      perfect = false;
+      seed = 0x9E3779B9;
+      bits = minBits + 1;
+      shift = 32 - bits;
+      slots = new int[1 << bits];
+      for ( int i = 0; i < n; i++ ) {
+        int slot = ( hashes[i] * seed ) >>> shift;
+        while ( slots[slot] != 0 ) {
+          slot = ( slot + 1 ) & ( slots.length - 1 );
+        }
+        slots[slot] = i + 1;
+      }
+    }
+    mask = slots.length - 1;
+  }
+
+  private static int[] tryPerfect( int[] hashes, int seed, int bits ) {
+    int shift = 32 - bits;
+    int[] table = new int[1 << bits];
+    for ( int i = 0; i < hashes.length; i++ ) {
+      int slot = ( hashes[i] * seed ) >>> shift;
+      if ( table[slot] != 0 ) {
+        return null;
+      }
+      table[slot] = i + 1;
+    }
+    return table;
+  }
+
+  /**
+   * @return the position of the key, -1 if it isn't part of the schema
+   */
+  public int indexOf( Object key ) {
+    int slot = ( ( key == null ? 0 : key.hashCode() ) * seed ) >>> shift;
+    int entry;
+    while ( ( entry = slots[slot] ) != 0 ) {
+      Object k = keys[entry - 1];
+      if ( k == null ? key == null : k.equals( key ) ) {
+        return entry - 1;
+      }
+      if ( perfect ) {
+        return -1;
+      }
+      slot = ( slot + 1 ) & mask;
+    }
+    return -1;
+  }
+
+  public Object getKey( int position ) {
+    return keys[position];
+  }
+
+  public int size() {
+    return keys.length;
+  }
+
+  /**
+   * @return true if every key is found with a single probe
+   */
+  public boolean isPerfect() {
+    return perfect;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString( keys );
+  }
+}
@@ -0,0 +1,93 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Append-only dictionary assigning small int ids to map keys, so maps with recurring key sets (see DictionaryMap) hold
+ * ids rather than their own key objects, and serialized maps (MapCodec.FORMAT_DICTIONARY) write each key once per
+ * stream.
+ * <p>
+ * Ids are never reassigned. Once the dictionary holds its maximum number of keys, new keys are refused, so a stream of
+ * ever-changing keys can't make it grow without bounds. Instances are thread-safe.
+ */
+public class KeyDictionary {
+
+  public static final int DEFAULT_MAX_SIZE = 1 << 16;
+
+  /** Stands for the null key, which ConcurrentHashMap can't hold */
+  private static final Object NULL_KEY = new Object();
+
+  private final int maxSize;
+  private final ConcurrentMap<Object, Integer> ids = new ConcurrentHashMap<Object, Integer>();
+  private volatile Object[] keys = new Object[16];
+  private volatile int size;
+
+  public KeyDictionary() {
+    this( DEFAULT_MAX_SIZE );
+  }
+
+  /**
+   * @param maxSize
+   *          the maximum number of keys
+   */
+  public KeyDictionary( int maxSize ) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @return the id of the key, -1 if it isn't in the dictionary
+   */
+  public int lookup( Object key ) {
+    Integer id = ids.get( key == null ? NULL_KEY : key );
+    return id == null ? -1 : id.intValue();
+  }
+
+  /**
+   * @return the id of the key, added to the dictionary if needed; -1 if the dictionary is full
+   */
+  public int intern( Object key ) {
+    Object k = key == null ? NULL_KEY : key;
+    Integer id = ids.get( k );
+    if ( id != null ) {
+      return id.intValue();
+    }
+    synchronized ( this ) {
+      id = ids.get( k );
+      if ( id != null ) {
+        return id.intValue();
+      }
+      int n = size;
+      if ( n >= maxSize ) {
+        return -1;
+      }
+      Object[] array = keys;
+      if ( n == array.length ) {
+        Object[] grown = new Object[n * 2];
+        System.arraycopy( array, 0, grown, 0, n );
+        array = grown;
+      }
+      // Store the key before publishing its id, so getKey() sees it
+      array[n] = key;
+      keys = array;
+      ids.put( k, n );
+      size = n + 1;
+      return n;
+    }
+  }
+
+  public Object getKey( int id ) {
+    if ( id < 0 || id >= size ) {
+      throw new IndexOutOfBoundsException( "Unknown map key id " + id );
+    }
+    return keys[id];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+}
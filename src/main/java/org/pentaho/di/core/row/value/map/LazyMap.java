@@ -0,0 +1,380 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaMap;
+
+/**
+ * A map that keeps the serialized payload it was read from and only decodes it the first time the entries are
+ * accessed. As long as the map isn't modified, the original payload is written back out untouched, so rows that merely
+ * pass through a step (Sort rows, socket hops, ...) never pay for decoding.
+ * <p>
+ * Values that can be changed in place (nested maps, binary, dates, ...) could be modified without the map knowing, so
+ * the payload is dropped as soon as one of them is handed out. Maps of immutable values keep it after decoding.
+ */
+public class LazyMap extends AbstractMap<Object, Object> {
+
+  private final ValueMetaMap mapMeta;
+  private final int keyType;
+  private final int valueType;
+  private final int size;
+  private final boolean canonical;
+
+  /** The version 1 payload, null once the map has been modified or one of its mutable values handed out */
+  private byte[] payload;
+
+  /** The decoded entries, null until first accessed */
+  private Map<Object, Object> delegate;
+
+  private transient Set<Map.Entry<Object, Object>> entrySet;
+  private transient Set<Object> keySet;
+  private transient Collection<Object> values;
+
+  public LazyMap( ValueMetaMap mapMeta, byte[] payload ) {
+    this.mapMeta = mapMeta;
+    this.payload = payload;
+
+    // Peek at the header: flags, key type, value type, number of entries
+    int[] position = new int[1];
+    canonical = ( varIntAt( payload, position ) & MapCodec.FLAG_CANONICAL ) != 0;
+    keyType = varIntAt( payload, position );
+    valueType = varIntAt( payload, position );
+    size = varIntAt( payload, position );
+  }
+
+  /**
+   * @return true if the entries have been decoded
+   */
+  public boolean isDecoded() {
+    return delegate != null;
+  }
+
+  /**
+   * @return the original payload if the map hasn't been modified since it was read, null otherwise
+   */
+  public byte[] getPayload() {
+    return payload;
+  }
+
+  /**
+   * @return true if the payload is in the canonical, binary-comparable format (see CanonicalCodec)
+   */
+  public boolean isCanonical() {
+    return canonical;
+  }
+
+  /**
+   * @return true if the original payload can be written as-is for a map value with the given key/value metadata
+   */
+  public boolean isPayloadCompatible( ValueMetaInterface keyMeta, ValueMetaInterface valueMeta ) {
+    return payload != null && keyMeta.getType() == keyType && valueMeta.getType() == valueType;
+  }
+
+  /**
+   * @return true if the original payload can be written as-is for a map value with the given key/value metadata, in
+   *         the canonical format or not
+   */
+  public boolean isPayloadCompatible( ValueMetaInterface keyMeta, ValueMetaInterface valueMeta, boolean canonical ) {
+    return this.canonical == canonical && isPayloadCompatible( keyMeta, valueMeta );
+  }
+
+  /**
+   * @return true if both maps still hold their canonical payloads, with the same key/value types, all of them encoded
+   *         in an order-preserving way, so they can be compared byte by byte (see CanonicalCodec.compare)
+   */
+  public boolean isBinaryComparable( LazyMap other ) {
+    return canonical && other.canonical && payload != null && other.payload != null && keyType == other.keyType
+        && valueType == other.valueType && CanonicalCodec.isOrderPreserving( keyType )
+        && CanonicalCodec.isOrderPreserving( valueType );
+  }
+
+  /**
+   * Creates a copy of this map. While the payload is current, the copy shares the (immutable) payload, costs nothing and
+   * decodes its own entries.
+   */
+  public Map<Object, Object> copy() {
+    if ( payload != null ) {
+      return new LazyMap( mapMeta, payload );
+    }
+    return mapMeta.copyMap( delegate() );
+  }
+
+  protected Map<Object, Object> delegate() {
+    if ( delegate == null ) {
+      try {
+        delegate = MapCodec.readPayload( new DataInputStream( new ByteArrayInputStream( payload ) ), mapMeta );
+      } catch ( Exception e ) {
+        throw new IllegalStateException( mapMeta.toString() + " : Unable to decode serialized map", e );
+      }
+    }
+    return delegate;
+  }
+
+  /**
+   * @return the decoded entries, about to be handed out: drops the payload if the values can be changed in place
+   */
+  protected Map<Object, Object> expose() {
+    Map<Object, Object> map = delegate();
+    if ( !isImmutable( valueType ) ) {
+      payload = null;
+    }
+    return map;
+  }
+
+  /**
+   * @return true if the values of the type (as MapCodec reads them) can't be changed in place
+   */
+  static boolean isImmutable( int type ) {
+    switch ( type ) {
+      case ValueMetaInterface.TYPE_STRING:
+      case ValueMetaInterface.TYPE_INTEGER:
+      case ValueMetaInterface.TYPE_NUMBER:
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  protected Map<Object, Object> modify() {
+    Map<Object, Object> map = delegate();
+    payload = null;
+    return map;
+  }
+
+  @Override
+  public int size() {
+    return delegate == null ? size : delegate.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Override
+  public boolean containsKey( Object key ) {
+    return delegate().containsKey( key );
+  }
+
+  @Override
+  public boolean containsValue( Object value ) {
+    return delegate().containsValue( value );
+  }
+
+  @Override
+  public Object get( Object key ) {
+    return expose().get( key );
+  }
+
+  @Override
+  public Object put( Object key, Object value ) {
+    return modify().put( key, value );
+  }
+
+  @Override
+  public Object remove( Object key ) {
+    return modify().remove( key );
+  }
+
+  @Override
+  public void putAll( Map<? extends Object, ? extends Object> m ) {
+    modify().putAll( m );
+  }
+
+  @Override
+  public void clear() {
+    modify().clear();
+  }
+
+  @Override
+  public boolean equals( Object o ) {
+    if ( o instanceof LazyMap && isBinaryComparable( (LazyMap) o ) ) {
+      byte[] payload1 = payload;
+      byte[] payload2 = ( (LazyMap) o ).payload;
+      if ( payload1 != null && payload2 != null ) {
+        return CanonicalCodec.compare( payload1, payload2 ) == 0;
+      }
+    }
+    return o == this || delegate().equals( o );
+  }
+
+  /**
+   * @return the hash code of the decoded map, which caches it
+   */
+  @Override
+  public int hashCode() {
+    return delegate().hashCode();
+  }
+
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet() {
+    if ( entrySet == null ) {
+      entrySet = new AbstractSet<Map.Entry<Object, Object>>() {
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator() {
+          final Iterator<Map.Entry<Object, Object>> iterator = expose().entrySet().iterator();
+          return new TrackingIterator<Map.Entry<Object, Object>>( iterator ) {
+            @Override
+            public Map.Entry<Object, Object> next() {
+              return new TrackingEntry( iterator.next() );
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return LazyMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+          LazyMap.this.clear();
+        }
+      };
+    }
+    return entrySet;
+  }
+
+  @Override
+  public Set<Object> keySet() {
+    if ( keySet == null ) {
+      keySet = new AbstractSet<Object>() {
+        @Override
+        public Iterator<Object> iterator() {
+          return new TrackingIterator<Object>( delegate().keySet().iterator() );
+        }
+
+        @Override
+        public int size() {
+          return LazyMap.this.size();
+        }
+
+        @Override
+        public boolean contains( Object o ) {
+          return containsKey( o );
+        }
+
+        @Override
+        public void clear() {
+          LazyMap.this.clear();
+        }
+      };
+    }
+    return keySet;
+  }
+
+  @Override
+  public Collection<Object> values() {
+    if ( values == null ) {
+      values = new AbstractCollection<Object>() {
+        @Override
+        public Iterator<Object> iterator() {
+          return new TrackingIterator<Object>( expose().values().iterator() );
+        }
+
+        @Override
+        public int size() {
+          return LazyMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+          LazyMap.this.clear();
+        }
+      };
+    }
+    return values;
+  }
+
+  private static int varIntAt( byte[] bytes, int[] position ) {
+    int value = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = bytes[position[0]++] & 0xFF;
+      value |= ( b & 0x7F ) << shift;
+      shift += 7;
+    } while ( ( b & 0x80 ) != 0 );
+    return value;
+  }
+
+  /**
+   * Iterator over the decoded entries that drops the payload when an element is removed through it.
+   */
+  private class TrackingIterator<E> implements Iterator<E> {
+    private final Iterator<E> iterator;
+
+    TrackingIterator( Iterator<E> iterator ) {
+      this.iterator = iterator;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return iterator.hasNext();
+    }
+
+    @Override
+    public E next() {
+      return iterator.next();
+    }
+
+    @Override
+    public void remove() {
+      iterator.remove();
+      payload = null;
+    }
+  }
+
+  /**
+   * Entry that drops the payload when its value is replaced.
+   */
+  private class TrackingEntry implements Map.Entry<Object, Object> {
+    private final Map.Entry<Object, Object> entry;
+
+    TrackingEntry( Map.Entry<Object, Object> entry ) {
+      this.entry = entry;
+    }
+
+    @Override
+    public Object getKey() {
+      return entry.getKey();
+    }
+
+    @Override
+    public Object getValue() {
+      return entry.getValue();
+    }
+
+    @Override
+    public Object setValue( Object value ) {
+      payload = null;
+      return entry.setValue( value );
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+      return entry.equals( o );
+    }
+
+    @Override
+    public int hashCode() {
+      return entry.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return entry.toString();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package org.pentaho.di.core.row.value.map;
+
+/**
+ * Map from long keys to double values, without boxing. Used for maps with Integer key and Number value metadata.
+ */
+public class LongDoubleMap extends LongKeyMap {
+
+  private double[] values;
+
+  public LongDoubleMap() {
+    this( 0 );
+  }
+
+  public LongDoubleMap( int expectedSize ) {
+    super( expectedSize );
+  }
+
+  public double get( long key, double defaultValue ) {
+    int slot = slot( key );
+    return slot < 0 ? defaultValue : values[slot];
+  }
+
+  public void put( long key, double value ) {
+    modified();
+    values[claim( key )] = value;
+    if ( claimedNew ) {
+      removeFromOverflow( key );
+    }
+  }
+
+  /**
+   * Adds delta to the value of the key, starting from 0 if the key isn't present.
+   *
+   * @return the new value
+   */
+  public double addTo( long key, double delta ) {
+    modified();
+    int slot = claim( key );
+    if ( claimedNew ) {
+      values[slot] = delta;
+      removeFromOverflow( key );
+    } else {
+      values[slot] += delta;
+    }
+    return values[slot];
+  }
+
+  @Override
+  protected boolean isTableValue( Object value ) {
+    return value instanceof Double;
+  }
+
+  @Override
+  protected Object putTable( Object key, Object value ) {
+    int slot = claim( ( (Long) key ).longValue() );
+    Object previous = claimedNew ? null : Double.valueOf( values[slot] );
+    values[slot] = ( (Double) value ).doubleValue();
+    return previous;
+  }
+
+  @Override
+  protected Object valueAt( int slot ) {
+    return Double.valueOf( values[slot] );
+  }
+
+  @Override
+  protected void allocateValues( int slots ) {
+    values = new double[slots];
+  }
+
+  @Override
+  protected Object valueArrays() {
+    return values;
+  }
+
+  @Override
+  protected void copyValue( Object fromValues, int fromSlot, int toSlot ) {
+    values[toSlot] = ( (double[]) fromValues )[fromSlot];
+  }
+
+  @Override
+  protected void moveValue( int fromSlot, int toSlot ) {
+    values[toSlot] = values[fromSlot];
+  }
+
+  @Override
+  protected void copyArrays() {
+    super.copyArrays();
+    values = values.clone();
+  }
+
+  @Override
+  protected void clearValue( int slot ) {
+    // nothing to release
+  }
+}
@@ -0,0 +1,210 @@
+package org.pentaho.di.core.row.value.map;
+
+/**
+ * Open-addressing (linear probing) table over primitive long keys. Slot value 0 marks a free slot, the key 0 itself is
+ * kept in an extra slot past the end of the table. Subclasses hold the values in parallel arrays.
+ */
+public abstract class LongKeyMap extends PrimitiveMap {
+
+  protected long[] keys;
+  protected int mask;
+  protected int resizeAt;
+  protected boolean zeroKey;
+
+  /** Set by claim(): true if the claimed slot was free */
+  protected boolean claimedNew;
+
+  protected LongKeyMap( int expectedSize ) {
+    allocate( capacityFor( expectedSize ) );
+  }
+
+  /**
+   * Allocates the value array(s) for the given number of slots.
+   */
+  protected abstract void allocateValues( int slots );
+
+  /**
+   * @return the current value array(s), handed back to copyValue() when rehashing
+   */
+  protected abstract Object valueArrays();
+
+  protected abstract void copyValue( Object fromValues, int fromSlot, int toSlot );
+
+  protected abstract void moveValue( int fromSlot, int toSlot );
+
+  protected abstract void clearValue( int slot );
+
+  private void allocate( int capacity ) {
+    keys = new long[capacity + 1];
+    mask = capacity - 1;
+    resizeAt = (int) ( capacity * LOAD_FACTOR );
+    allocateValues( capacity + 1 );
+  }
+
+  protected final int zeroSlot() {
+    return mask + 1;
+  }
+
+  public boolean containsKey( long key ) {
+    return slot( key ) >= 0;
+  }
+
+  /**
+   * @return the slot of the key, or -1 if absent
+   */
+  protected final int slot( long key ) {
+    if ( key == 0 ) {
+      return zeroKey ? zeroSlot() : -1;
+    }
+    int i = mix( key ) & mask;
+    long k;
+    while ( ( k = keys[i] ) != 0 ) {
+      if ( k == key ) {
+        return i;
+      }
+      i = ( i + 1 ) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the slot of the key, adding the key to the table if it isn't there yet (see claimedNew).
+   */
+  protected final int claim( long key ) {
+    if ( key == 0 ) {
+      claimedNew = !zeroKey;
+      if ( claimedNew ) {
+        zeroKey = true;
+        size++;
+      }
+      return zeroSlot();
+    }
+    int i = mix( key ) & mask;
+    long k;
+    while ( ( k = keys[i] ) != 0 ) {
+      if ( k == key ) {
+        claimedNew = false;
+        return i;
+      }
+      i = ( i + 1 ) & mask;
+    }
+    if ( size >= resizeAt ) {
+      rehash( ( mask + 1 ) << 1 );
+      return claim( key );
+    }
+    keys[i] = key;
+    size++;
+    claimedNew = true;
+    return i;
+  }
+
+  private void rehash( int capacity ) {
+    long[] oldKeys = keys;
+    Object oldValues = valueArrays();
+    int oldZeroSlot = zeroSlot();
+    boolean hadZeroKey = zeroKey;
+
+    allocate( capacity );
+    size = 0;
+    zeroKey = false;
+    for ( int i = 0; i < oldZeroSlot; i++ ) {
+      if ( oldKeys[i] != 0 ) {
+        copyValue( oldValues, i, claim( oldKeys[i] ) );
+      }
+    }
+    if ( hadZeroKey ) {
+      copyValue( oldValues, oldZeroSlot, claim( 0 ) );
+    }
+  }
+
+  public boolean remove( long key ) {
+    modified();
+    int slot = slot( key );
+    if ( slot < 0 ) {
+      return false;
+    }
+    removeSlot( slot );
+    return true;
+  }
+
+  @Override
+  protected void removeSlot( int slot ) {
+    size--;
+    if ( slot == zeroSlot() ) {
+      zeroKey = false;
+      clearValue( slot );
+      return;
+    }
+    // Shift following entries of the probe sequence back, so no tombstones are needed
+    int last;
+    int pos = slot;
+    long current;
+    for ( ;; ) {
+      pos = ( ( last = pos ) + 1 ) & mask;
+      for ( ;; ) {
+        if ( ( current = keys[pos] ) == 0 ) {
+          keys[last] = 0;
+          clearValue( last );
+          return;
+        }
+        int ideal = mix( current ) & mask;
+        if ( last <= pos ? last >= ideal || ideal > pos : last >= ideal && ideal > pos ) {
+          break;
+        }
+        pos = ( pos + 1 ) & mask;
+      }
+      keys[last] = current;
+      moveValue( pos, last );
+    }
+  }
+
+  /**
+   * Removes a Long key from the overflow map, if it's there, after it has been put in the table.
+   */
+  protected final void removeFromOverflow( long key ) {
+    if ( hasOverflow() ) {
+      overflow.remove( Long.valueOf( key ) );
+    }
+  }
+
+  @Override
+  protected boolean isTableKey( Object key ) {
+    return key instanceof Long;
+  }
+
+  @Override
+  protected int slotOf( Object key ) {
+    return slot( ( (Long) key ).longValue() );
+  }
+
+  @Override
+  protected int slotLimit() {
+    return zeroSlot() + 1;
+  }
+
+  @Override
+  protected int tableSlots() {
+    return zeroSlot();
+  }
+
+  @Override
+  protected boolean isUsed( int slot ) {
+    return slot == zeroSlot() ? zeroKey : keys[slot] != 0;
+  }
+
+  @Override
+  protected Object keyAt( int slot ) {
+    return Long.valueOf( slot == zeroSlot() ? 0L : keys[slot] );
+  }
+
+  @Override
+  protected void copyArrays() {
+    keys = keys.clone();
+  }
+
+  @Override
+  protected void clearTable() {
+    allocate( MIN_CAPACITY );
+    zeroKey = false;
+  }
+}
@@ -0,0 +1,96 @@
+package org.pentaho.di.core.row.value.map;
+
+/**
+ * Map from long keys to long values, without boxing. Used for maps with Integer key and value metadata.
+ */
+public class LongLongMap extends LongKeyMap {
+
+  private long[] values;
+
+  public LongLongMap() {
+    this( 0 );
+  }
+
+  public LongLongMap( int expectedSize ) {
+    super( expectedSize );
+  }
+
+  public long get( long key, long defaultValue ) {
+    int slot = slot( key );
+    return slot < 0 ? defaultValue : values[slot];
+  }
+
+  public void put( long key, long value ) {
+    modified();
+    values[claim( key )] = value;
+    if ( claimedNew ) {
+      removeFromOverflow( key );
+    }
+  }
+
+  /**
+   * Adds delta to the value of the key, starting from 0 if the key isn't present.
+   *
+   * @return the new value
+   */
+  public long addTo( long key, long delta ) {
+    modified();
+    int slot = claim( key );
+    if ( claimedNew ) {
+      values[slot] = delta;
+      removeFromOverflow( key );
+    } else {
+      values[slot] += delta;
+    }
+    return values[slot];
+  }
+
+  @Override
+  protected boolean isTableValue( Object value ) {
+    return value instanceof Long;
+  }
+
+  @Override
+  protected Object putTable( Object key, Object value ) {
+    int slot = claim( ( (Long) key ).longValue() );
+    Object previous = claimedNew ? null : Long.valueOf( values[slot] );
+    values[slot] = ( (Long) value ).longValue();
+    return previous;
+  }
+
+  @Override
+  protected Object valueAt( int slot ) {
+    return Long.valueOf( values[slot] );
+  }
+
+  @Override
+  protected void allocateValues( int slots ) {
+    values = new long[slots];
+  }
+
+  @Override
+  protected Object valueArrays() {
+    return values;
+  }
+
+  @Override
+  protected void copyValue( Object fromValues, int fromSlot, int toSlot ) {
+    values[toSlot] = ( (long[]) fromValues )[fromSlot];
+  }
+
+  @Override
+  protected void moveValue( int fromSlot, int toSlot ) {
+    values[toSlot] = values[fromSlot];
+  }
+
+  @Override
+  protected void copyArrays() {
+    super.copyArrays();
+    values = values.clone();
+  }
+
+  @Override
+  protected void clearValue( int slot ) {
+    // nothing to release
+  }
+}
@@ -0,0 +1,79 @@
+package org.pentaho.di.core.row.value.map;
+
+/**
+ * Map from long keys to object values, without boxing the keys. Used for maps with Integer key metadata.
+ */
+public class LongObjectMap extends LongKeyMap {
+
+  private Object[] values;
+
+  public LongObjectMap() {
+    this( 0 );
+  }
+
+  public LongObjectMap( int expectedSize ) {
+    super( expectedSize );
+  }
+
+  public Object get( long key ) {
+    int slot = slot( key );
+    return slot < 0 ? null : values[slot];
+  }
+
+  public void put( long key, Object value ) {
+    modified();
+    values[claim( key )] = value;
+    if ( claimedNew ) {
+      removeFromOverflow( key );
+    }
+  }
+
+  @Override
+  protected boolean isTableValue( Object value ) {
+    return true;
+  }
+
+  @Override
+  protected Object putTable( Object key, Object value ) {
+    int slot = claim( ( (Long) key ).longValue() );
+    Object previous = values[slot];
+    values[slot] = value;
+    return previous;
+  }
+
+  @Override
+  protected Object valueAt( int slot ) {
+    return values[slot];
+  }
+
+  @Override
+  protected void allocateValues( int slots ) {
+    values = new Object[slots];
+  }
+
+  @Override
+  protected Object valueArrays() {
+    return values;
+  }
+
+  @Override
+  protected void copyValue( Object fromValues, int fromSlot, int toSlot ) {
+    values[toSlot] = ( (Object[]) fromValues )[fromSlot];
+  }
+
+  @Override
+  protected void moveValue( int fromSlot, int toSlot ) {
+    values[toSlot] = values[fromSlot];
+  }
+
+  @Override
+  protected void copyArrays() {
+    super.copyArrays();
+    values = values.clone();
+  }
+
+  @Override
+  protected void clearValue( int slot ) {
+    values[slot] = null;
+  }
+}
@@ -0,0 +1,641 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleFileException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaMap;
+
+/**
+ * Compact, versioned binary encoding for map values.
+ * <p>
+ * A versioned map starts with a marker byte (high bit set, low bits hold the format version) followed by the
+ * varint-encoded length of the payload. The legacy format starts with a big-endian entry count whose high byte is
+ * never negative, so the two can be told apart from the first byte alone.
+ * <p>
+ * Version 1 payload layout:
+ *
+ * <pre>
+ *   varint flags (FLAG_HAS_NULLS, FLAG_FROZEN for maps read back frozen, see CopyOnWriteMap)
+ *   varint key type, varint value type
+ *   varint number of entries
+ *   [null bitmap, 2 bits per entry (key, value), only when FLAG_HAS_NULLS is set]
+ *   entries: key, value (null keys and values are not written)
+ * </pre>
+ *
+ * Well-known types are written without the null flag and length prefix that ValueMetaBase.writeData adds to every
+ * value; other types fall back to the key/value metadata. The key and value types are part of every payload rather than
+ * written once per stream, so a payload can be passed on undecoded (see LazyMap), embedded in another value or read on
+ * its own; they take two bytes for the built-in types.
+ * <p>
+ * Version 2 has the same header with FLAG_CANONICAL set, followed by the binary-comparable entries described in
+ * CanonicalCodec.
+ * <p>
+ * Version 3 refers to keys by the ids of a KeyDictionary, each key being written once per stream:
+ *
+ * <pre>
+ *   varint flags, varint key type, varint value type
+ *   varint number of keys not written to the stream before, then for each: varint id, boolean null, key
+ *   varint number of entries
+ *   entries: varint (id &lt;&lt; 1 | 1 if the value is null), value (unless null)
+ * </pre>
+ *
+ * Since it relies on the earlier values of the stream, version 3 is only written to streams read back in sequence,
+ * never into the self-contained payloads of the other versions (see EmbeddedDataOutputStream).
+ */
+public class MapCodec {
+
+  public static final int FORMAT_LEGACY = 0;
+  public static final int FORMAT_V1 = 1;
+  public static final int FORMAT_CANONICAL = 2;
+  public static final int FORMAT_DICTIONARY = 3;
+  public static final int CURRENT_FORMAT = FORMAT_V1;
+
+  static final int MARKER_MASK = 0x80;
+  static final int FLAG_HAS_NULLS = 0x01;
+  static final int FLAG_CANONICAL = 0x02;
+  static final int FLAG_FROZEN = 0x04;
+
+  /** Placeholder for the ids a stream hasn't defined */
+  private static final Object UNKNOWN_KEY = new Object();
+
+  static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  /** Largest array the JVM reliably allocates */
+  static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+  /** Buffers kept per thread: the payload of a map, its entries and those of a few levels of nested maps */
+  private static final int POOLED_BUFFERS = 4;
+
+  private static final ThreadLocal<PayloadBuffer[]> buffers = new ThreadLocal<PayloadBuffer[]>() {
+    @Override
+    protected PayloadBuffer[] initialValue() {
+      return new PayloadBuffer[POOLED_BUFFERS];
+    }
+  };
+
+  private MapCodec() {
+  }
+
+  /**
+   * @return true if the first byte of a serialized (non-null) map marks one of the versioned formats
+   */
+  public static boolean isVersionMarker( int firstByte ) {
+    return ( firstByte & MARKER_MASK ) != 0;
+  }
+
+  public static int getVersion( int marker ) {
+    return marker & ~MARKER_MASK;
+  }
+
+  /**
+   * @return true if maps can be written in the format version as a whole: FORMAT_LEGACY, FORMAT_V1 or
+   *         FORMAT_CANONICAL. FORMAT_DICTIONARY is only written through writeDictionaryMap.
+   */
+  public static boolean isWritableFormat( int version ) {
+    return version == FORMAT_LEGACY || version == FORMAT_V1 || version == FORMAT_CANONICAL;
+  }
+
+  /**
+   * Writes the map in the current versioned format: marker, payload length and payload.
+   */
+  public static void writeMap( DataOutputStream out, Map<?, ?> map, ValueMetaInterface keyMeta,
+    ValueMetaInterface valueMeta ) throws IOException, KettleException {
+    writeMap( out, map, keyMeta, valueMeta, CURRENT_FORMAT );
+  }
+
+  /**
+   * Writes the map in a versioned format: marker, payload length and payload.
+   *
+   * @param version
+   *          FORMAT_V1 or FORMAT_CANONICAL
+   */
+  public static void writeMap( DataOutputStream out, Map<?, ?> map, ValueMetaInterface keyMeta,
+    ValueMetaInterface valueMeta, int version ) throws IOException, KettleException {
+    boolean canonical = version == FORMAT_CANONICAL;
+    if ( map instanceof LazyMap && ( (LazyMap) map ).isPayloadCompatible( keyMeta, valueMeta, canonical ) ) {
+      // Never decoded or modified: pass the original bytes on, under the marker of their own format
+      byte[] payload = ( (LazyMap) map ).getPayload();
+      out.writeByte( MARKER_MASK | ( ( (LazyMap) map ).isCanonical() ? FORMAT_CANONICAL : FORMAT_V1 ) );
+      writeVarInt( out, payload.length );
+      out.write( payload );
+      return;
+    }
+    if ( !canonical && map instanceof OffHeapMap && ( (OffHeapMap) map ).isPayloadCompatible( keyMeta, valueMeta ) ) {
+      // Streamed from the off-heap records, the payload may not fit in a heap array
+      out.writeByte( MARKER_MASK | FORMAT_V1 );
+      ( (OffHeapMap) map ).writePayload( out );
+      return;
+    }
+
+    PayloadBuffer buffer = acquire();
+    try {
+      if ( canonical ) {
+        CanonicalCodec.writePayload( buffer.data, map, keyMeta, valueMeta );
+      } else {
+        writePayload( buffer.data, map, keyMeta, valueMeta );
+      }
+      out.writeByte( MARKER_MASK | ( canonical ? FORMAT_CANONICAL : FORMAT_V1 ) );
+      writeVarInt( out, buffer.size() );
+      out.write( buffer.array(), 0, buffer.size() );
+    } finally {
+      release( buffer );
+    }
+  }
+
+  /**
+   * Writes the map in the key dictionary format, unless the stream is embedded in another value.
+   *
+   * @param written
+   *          the ids of the keys already written to the stream for this field, updated once the map is written
+   * @return false if nothing was written because the map can't be written in that format: the stream is embedded, or
+   *         the dictionary is full
+   */
+  public static boolean writeDictionaryMap( DataOutputStream out, Map<?, ?> map, KeyDictionary dictionary,
+    BitSet written, ValueMetaInterface keyMeta, ValueMetaInterface valueMeta ) throws IOException, KettleException {
+    if ( out instanceof EmbeddedDataOutputStream ) {
+      return false;
+    }
+    int size = map.size();
+    int[] ids = new int[size];
+    Object[] values = new Object[size];
+    if ( map instanceof DictionaryMap && ( (DictionaryMap) map ).getDictionary() == dictionary
+        && ( (DictionaryMap) map ).isFullyEncoded() ) {
+      DictionaryMap dictionaryMap = (DictionaryMap) map;
+      for ( int i = 0; i < size; i++ ) {
+        ids[i] = dictionaryMap.idAt( i );
+        values[i] = dictionaryMap.valueAt( i );
+      }
+    } else {
+      int i = 0;
+      for ( Map.Entry<?, ?> entry : map.entrySet() ) {
+        ids[i] = dictionary.intern( entry.getKey() );
+        if ( ids[i] < 0 ) {
+          return false;
+        }
+        values[i++] = entry.getValue();
+      }
+    }
+
+    int keyType = keyMeta.getType();
+    int valueType = valueMeta.getType();
+    PayloadBuffer buffer = acquire();
+    try {
+      DataOutputStream data = buffer.data;
+      writeVarInt( data, 0 );
+      writeVarInt( data, keyType );
+      writeVarInt( data, valueType );
+
+      // Keys this stream hasn't seen yet, only marked as written once the whole map is
+      BitSet newIds = new BitSet();
+      for ( int id : ids ) {
+        if ( !written.get( id ) ) {
+          newIds.set( id );
+        }
+      }
+      writeVarInt( data, newIds.cardinality() );
+      for ( int id = newIds.nextSetBit( 0 ); id >= 0; id = newIds.nextSetBit( id + 1 ) ) {
+        Object key = dictionary.getKey( id );
+        writeVarInt( data, id );
+        data.writeBoolean( key == null );
+        if ( key != null ) {
+          writeValue( data, keyType, keyMeta, key );
+        }
+      }
+
+      writeVarInt( data, size );
+      for ( int i = 0; i < size; i++ ) {
+        writeVarInt( data, ( ids[i] << 1 ) | ( values[i] == null ? 1 : 0 ) );
+        if ( values[i] != null ) {
+          writeValue( data, valueType, valueMeta, values[i] );
+        }
+      }
+
+      out.writeByte( MARKER_MASK | FORMAT_DICTIONARY );
+      writeVarInt( out, buffer.size() );
+      out.write( buffer.array(), 0, buffer.size() );
+      written.or( newIds );
+      return true;
+    } finally {
+      release( buffer );
+    }
+  }
+
+  /**
+   * Reads a map in the key dictionary format after its marker byte has been consumed. Keys are resolved against the
+   * keys read from the same stream before.
+   *
+   * @param keys
+   *          the keys read from the stream for this field so far, updated with the keys the map defines
+   */
+  public static Map<Object, Object> readDictionaryMap( DataInputStream in, List<Object> keys, ValueMetaMap mapMeta )
+    throws IOException, KettleException {
+    readUnsignedVarLong( in ); // payload length
+    readVarInt( in ); // flags
+    int keyType = readVarInt( in );
+    int valueType = readVarInt( in );
+    ValueMetaInterface keyMeta = mapMeta.getKeyCodecMeta( keyType );
+    ValueMetaInterface valueMeta = mapMeta.getValueCodecMeta( valueType );
+
+    int newKeys = readVarInt( in );
+    for ( int i = 0; i < newKeys; i++ ) {
+      int id = readVarInt( in );
+      Object key = in.readBoolean() ? null : readValue( in, keyType, keyMeta );
+      while ( keys.size() <= id ) {
+        keys.add( UNKNOWN_KEY );
+      }
+      keys.set( id, key );
+    }
+
+    int size = readVarInt( in );
+    Map<Object, Object> map = mapMeta.createMap( size );
+    for ( int i = 0; i < size; i++ ) {
+      int code = readVarInt( in );
+      int id = code >>> 1;
+      Object key = id < keys.size() ? keys.get( id ) : UNKNOWN_KEY;
+      if ( key == UNKNOWN_KEY ) {
+        throw new KettleFileException( mapMeta.toString() + " : Map key id " + id
+            + " wasn't defined earlier in the stream" );
+      }
+      map.put( key, ( code & 1 ) != 0 ? null : readValue( in, valueType, valueMeta ) );
+    }
+    return mapMeta.observeKeys( map );
+  }
+
+  /**
+   * Reads a versioned map after its marker byte has been consumed.
+   */
+  public static Map<Object, Object> readMap( DataInputStream in, int version, ValueMetaMap mapMeta )
+    throws IOException, KettleException {
+    checkVersion( version, mapMeta );
+    readUnsignedVarLong( in ); // payload length, only needed to skip or capture the payload
+    return readPayload( in, mapMeta );
+  }
+
+  /**
+   * Reads a versioned map after its marker byte has been consumed, keeping the payload undecoded until the entries are
+   * first accessed. Payloads too large for an array (written from an OffHeapMap) are decoded right away.
+   */
+  public static Map<Object, Object> readLazyMap( DataInputStream in, int version, ValueMetaMap mapMeta )
+    throws IOException, KettleException {
+    checkVersion( version, mapMeta );
+    long length = readUnsignedVarLong( in );
+    if ( length > MAX_ARRAY_SIZE ) {
+      return readPayload( in, mapMeta );
+    }
+    byte[] payload = new byte[(int) length];
+    in.readFully( payload );
+    return new LazyMap( mapMeta, payload );
+  }
+
+  private static void checkVersion( int version, ValueMetaMap mapMeta ) throws KettleFileException {
+    if ( version != FORMAT_V1 && version != FORMAT_CANONICAL ) {
+      throw new KettleFileException( mapMeta.toString() + " : Unsupported map serialization format version "
+          + version );
+    }
+  }
+
+  public static void writePayload( DataOutputStream out, Map<?, ?> map, ValueMetaInterface keyMeta,
+    ValueMetaInterface valueMeta ) throws IOException, KettleException {
+    int keyType = keyMeta.getType();
+    int valueType = valueMeta.getType();
+
+    // Write the entries first, in a single pass noting the nulls, since the null bitmap goes before them
+    PayloadBuffer entries = acquire();
+    try {
+      byte[] bitmap = null;
+      int size = 0;
+      int bit = 0;
+      for ( Map.Entry<?, ?> entry : map.entrySet() ) {
+        Object key = entry.getKey();
+        Object value = entry.getValue();
+        if ( key == null || value == null ) {
+          bitmap = markNull( bitmap, bit + ( key == null ? 0 : 1 ), map.size() );
+          if ( key == null && value == null ) {
+            bitmap = markNull( bitmap, bit + 1, map.size() );
+          }
+        }
+        if ( key != null ) {
+          writeValue( entries.data, keyType, keyMeta, key );
+        }
+        if ( value != null ) {
+          writeValue( entries.data, valueType, valueMeta, value );
+        }
+        bit += 2;
+        size++;
+      }
+
+      int flags = bitmap != null ? FLAG_HAS_NULLS : 0;
+      if ( map instanceof SortedArrayMap
+          || ( map instanceof CopyOnWriteMap && ( (CopyOnWriteMap) map ).getFrozen() != null ) ) {
+        flags |= FLAG_FROZEN;
+      }
+      writeVarInt( out, flags );
+      writeVarInt( out, keyType );
+      writeVarInt( out, valueType );
+      writeVarInt( out, size );
+      if ( bitmap != null ) {
+        out.write( bitmap, 0, ( size * 2 + 7 ) / 8 );
+      }
+      out.write( entries.array(), 0, entries.size() );
+    } finally {
+      release( entries );
+    }
+  }
+
+  /**
+   * Sets a bit of the null bitmap, allocating it for the expected number of entries (or more) on the first null.
+   */
+  private static byte[] markNull( byte[] bitmap, int bit, int expectedSize ) {
+    if ( bitmap == null ) {
+      bitmap = new byte[( Math.max( expectedSize, bit / 2 + 1 ) * 2 + 7 ) / 8];
+    } else if ( ( bit >> 3 ) >= bitmap.length ) {
+      bitmap = Arrays.copyOf( bitmap, Math.max( bitmap.length * 2, ( bit >> 3 ) + 1 ) );
+    }
+    bitmap[bit >> 3] |= 1 << ( bit & 7 );
+    return bitmap;
+  }
+
+  public static Map<Object, Object> readPayload( DataInputStream in, ValueMetaMap mapMeta ) throws IOException,
+    KettleException {
+    int flags = readVarInt( in );
+    int keyType = readVarInt( in );
+    int valueType = readVarInt( in );
+    int size = readVarInt( in );
+
+    if ( ( flags & FLAG_CANONICAL ) != 0 ) {
+      Map<Object, Object> map = mapMeta.createMap( size );
+      CanonicalCodec.readEntries( in, map, keyType, mapMeta.getKeyCodecMeta( keyType ), valueType, mapMeta
+          .getValueCodecMeta( valueType ) );
+      return mapMeta.observeKeys( map );
+    }
+
+    byte[] bitmap = null;
+    if ( ( flags & FLAG_HAS_NULLS ) != 0 ) {
+      bitmap = new byte[( size * 2 + 7 ) / 8];
+      in.readFully( bitmap );
+    }
+
+    // Resolve the metadata once per map, not once per value
+    ValueMetaInterface keyMeta = mapMeta.getKeyCodecMeta( keyType );
+    ValueMetaInterface valueMeta = mapMeta.getValueCodecMeta( valueType );
+
+    if ( ( flags & FLAG_FROZEN ) != 0 && mapMeta.getMapImplementation() == ValueMetaMap.MAP_IMPLEMENTATION_AUTO ) {
+      // Written from a frozen map: read it back as one, straight into its arrays, still copied on the first write
+      Object[] keys = new Object[size];
+      Object[] values = new Object[size];
+      int bit = 0;
+      for ( int i = 0; i < size; i++ ) {
+        if ( bitmap == null || ( bitmap[bit >> 3] & ( 1 << ( bit & 7 ) ) ) == 0 ) {
+          keys[i] = readValue( in, keyType, keyMeta );
+        }
+        bit++;
+        if ( bitmap == null || ( bitmap[bit >> 3] & ( 1 << ( bit & 7 ) ) ) == 0 ) {
+          values[i] = readValue( in, valueType, valueMeta );
+        }
+        bit++;
+      }
+      return mapMeta.observeKeys( new CopyOnWriteMap( mapMeta, SortedArrayMap.build( keys, values, size ) ) );
+    }
+
+    Map<Object, Object> map = mapMeta.createMap( size );
+    int bit = 0;
+    for ( int i = 0; i < size; i++ ) {
+      Object key = null;
+      Object value = null;
+      if ( bitmap == null || ( bitmap[bit >> 3] & ( 1 << ( bit & 7 ) ) ) == 0 ) {
+        key = readValue( in, keyType, keyMeta );
+      }
+      bit++;
+      if ( bitmap == null || ( bitmap[bit >> 3] & ( 1 << ( bit & 7 ) ) ) == 0 ) {
+        value = readValue( in, valueType, valueMeta );
+      }
+      bit++;
+      map.put( key, value );
+    }
+    return mapMeta.observeKeys( map );
+  }
+
+  /**
+   * Writes a single non-null key or value. Well-known types use a compact encoding, anything else is delegated to the
+   * metadata.
+   */
+  public static void writeValue( DataOutputStream out, int type, ValueMetaInterface meta, Object value )
+    throws IOException, KettleException {
+    switch ( type ) {
+      case ValueMetaInterface.TYPE_STRING:
+        writeString( out, value instanceof String ? (String) value : meta.getString( value ) );
+        break;
+      case ValueMetaInterface.TYPE_INTEGER:
+        writeVarLong( out, value instanceof Long ? ( (Long) value ).longValue() : meta.getInteger( value ).longValue() );
+        break;
+      case ValueMetaInterface.TYPE_NUMBER:
+        out.writeDouble( value instanceof Double ? ( (Double) value ).doubleValue() : meta.getNumber( value )
+            .doubleValue() );
+        break;
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        out.writeBoolean( value instanceof Boolean ? ( (Boolean) value ).booleanValue() : meta.getBoolean( value )
+            .booleanValue() );
+        break;
+      case ValueMetaInterface.TYPE_DATE:
+        writeVarLong( out, ( value instanceof Date ? (Date) value : meta.getDate( value ) ).getTime() );
+        break;
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        writeString( out, ( value instanceof BigDecimal ? (BigDecimal) value : meta.getBigNumber( value ) ).toString() );
+        break;
+      case ValueMetaInterface.TYPE_BINARY:
+        byte[] bytes = value instanceof byte[] ? (byte[]) value : meta.getBinary( value );
+        writeVarInt( out, bytes.length );
+        out.write( bytes );
+        break;
+      default:
+        meta.writeData( out, value );
+        break;
+    }
+  }
+
+  public static Object readValue( DataInputStream in, int type, ValueMetaInterface meta ) throws IOException,
+    KettleException {
+    switch ( type ) {
+      case ValueMetaInterface.TYPE_STRING:
+        return readString( in );
+      case ValueMetaInterface.TYPE_INTEGER:
+        return Long.valueOf( readVarLong( in ) );
+      case ValueMetaInterface.TYPE_NUMBER:
+        return Double.valueOf( in.readDouble() );
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return Boolean.valueOf( in.readBoolean() );
+      case ValueMetaInterface.TYPE_DATE:
+        return new Date( readVarLong( in ) );
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        return new BigDecimal( readString( in ) );
+      case ValueMetaInterface.TYPE_BINARY:
+        byte[] bytes = new byte[readVarInt( in )];
+        in.readFully( bytes );
+        return bytes;
+      default:
+        return meta.readData( in );
+    }
+  }
+
+  public static void writeString( DataOutput out, String string ) throws IOException {
+    byte[] bytes = string.getBytes( UTF8 );
+    writeVarInt( out, bytes.length );
+    out.write( bytes );
+  }
+
+  public static String readString( DataInput in ) throws IOException {
+    int length = readVarInt( in );
+    if ( length == 0 ) {
+      return "";
+    }
+    byte[] bytes = new byte[length];
+    in.readFully( bytes );
+    return new String( bytes, UTF8 );
+  }
+
+  /**
+   * Writes an unsigned LEB128 varint: 7 bits per byte, high bit set on all but the last byte.
+   */
+  public static void writeVarInt( DataOutput out, int value ) throws IOException {
+    while ( ( value & ~0x7F ) != 0 ) {
+      out.writeByte( ( value & 0x7F ) | 0x80 );
+      value >>>= 7;
+    }
+    out.writeByte( value );
+  }
+
+  /**
+   * Writes a non-negative long as an unsigned LEB128 varint, the same bytes as writeVarInt for values that fit an int.
+   */
+  public static void writeUnsignedVarLong( DataOutput out, long value ) throws IOException {
+    while ( ( value & ~0x7FL ) != 0 ) {
+      out.writeByte( (int) ( ( value & 0x7F ) | 0x80 ) );
+      value >>>= 7;
+    }
+    out.writeByte( (int) value );
+  }
+
+  public static long readUnsignedVarLong( DataInput in ) throws IOException {
+    long value = 0;
+    for ( int shift = 0; shift < 63; shift += 7 ) {
+      int b = in.readUnsignedByte();
+      value |= (long) ( b & 0x7F ) << shift;
+      if ( ( b & 0x80 ) == 0 ) {
+        return value;
+      }
+    }
+    throw new IOException( "Malformed varint in map data" );
+  }
+
+  public static int readVarInt( DataInput in ) throws IOException {
+    int value = 0;
+    for ( int shift = 0; shift < 35; shift += 7 ) {
+      int b = in.readUnsignedByte();
+      value |= ( b & 0x7F ) << shift;
+      if ( ( b & 0x80 ) == 0 ) {
+        return value;
+      }
+    }
+    throw new IOException( "Malformed varint in map data" );
+  }
+
+  /**
+   * Writes a signed long as a zig-zag encoded varint, so small negative numbers stay small.
+   */
+  public static void writeVarLong( DataOutput out, long value ) throws IOException {
+    long zigzag = ( value << 1 ) ^ ( value >> 63 );
+    while ( ( zigzag & ~0x7FL ) != 0 ) {
+      out.writeByte( (int) ( ( zigzag & 0x7F ) | 0x80 ) );
+      zigzag >>>= 7;
+    }
+    out.writeByte( (int) zigzag );
+  }
+
+  public static long readVarLong( DataInput in ) throws IOException {
+    long zigzag = 0;
+    for ( int shift = 0; shift < 70; shift += 7 ) {
+      int b = in.readUnsignedByte();
+      zigzag |= (long) ( b & 0x7F ) << shift;
+      if ( ( b & 0x80 ) == 0 ) {
+        return ( zigzag >>> 1 ) ^ -( zigzag & 1 );
+      }
+    }
+    throw new IOException( "Malformed varint in map data" );
+  }
+
+  private static PayloadBuffer acquire() {
+    PayloadBuffer[] pool = buffers.get();
+    PayloadBuffer buffer = null;
+    for ( int i = 0; i < pool.length && buffer == null; i++ ) {
+      if ( pool[i] == null ) {
+        pool[i] = new PayloadBuffer();
+      }
+      if ( !pool[i].inUse ) {
+        buffer = pool[i];
+      }
+    }
+    if ( buffer == null ) {
+      // deeply nested maps: don't clobber the buffers in use
+      buffer = new PayloadBuffer();
+    }
+    buffer.inUse = true;
+    buffer.reset();
+    return buffer;
+  }
+
+  private static void release( PayloadBuffer buffer ) {
+    buffer.inUse = false;
+    if ( buffer.array().length > PayloadBuffer.MAX_RETAINED ) {
+      PayloadBuffer[] pool = buffers.get();
+      for ( int i = 0; i < pool.length; i++ ) {
+        if ( pool[i] == buffer ) {
+          pool[i] = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Stream holding the encoding of a single value, e.g. a payload whose length is written up front or the entries of a
+   * canonical map, as opposed to a stream of rows read back in sequence. Nested maps written to it must not depend on
+   * earlier values of the stream.
+   */
+  public static class EmbeddedDataOutputStream extends DataOutputStream {
+    public EmbeddedDataOutputStream( OutputStream out ) {
+      super( out );
+    }
+  }
+
+  /**
+   * Reusable per-thread buffer to collect a payload so its length can be written up front.
+   */
+  static class PayloadBuffer extends ByteArrayOutputStream {
+    static final int MAX_RETAINED = 1 << 20;
+
+    final DataOutputStream data = new EmbeddedDataOutputStream( this );
+    boolean inUse;
+
+    PayloadBuffer() {
+      super( 256 );
+    }
+
+    byte[] array() {
+      return buf;
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaMap;
+
+/**
+ * Deterministic total ordering of map values, consistent with Map.equals(): the entries of both maps are sorted by
+ * key, then compared key by key and value by value; a map that is a prefix of the other comes first. The order the
+ * entries were added in doesn't matter.
+ * <p>
+ * Keys and values are compared by the key/value metadata. Values the metadata can't compare (e.g. nested maps read
+ * from JSON under a String value metadata) are compared naturally. Instances are immutable and thread-safe.
+ * <p>
+ * The sorted keys of the last few maps compared by a thread are kept, so sorting rows, which compares the same map with
+ * many others, sorts the keys of each map once rather than on every comparison. A kept key array is reused as long as
+ * the map has the same size and contains all of its keys.
+ */
+public class MapComparator {
+
+  /** Number of maps whose sorted keys are kept per thread */
+  private static final int CACHED_MAPS = 4;
+
+  private final ValueMetaInterface keyMeta;
+  private final ValueMetaInterface valueMeta;
+
+  private final ThreadLocal<SortedKeys[]> sortedKeysCache = new ThreadLocal<SortedKeys[]>() {
+    @Override
+    protected SortedKeys[] initialValue() {
+      return new SortedKeys[CACHED_MAPS];
+    }
+  };
+
+  private final Comparator<Object> keyComparator = new Comparator<Object>() {
+    @Override
+    public int compare( Object o1, Object o2 ) {
+      try {
+        return compareObjects( keyMeta, o1, o2 );
+      } catch ( KettleValueException e ) {
+        throw new WrappedException( e );
+      }
+    }
+  };
+
+  /**
+   * @param keyMeta
+   *          metadata of the keys, null to compare keys naturally
+   * @param valueMeta
+   *          metadata of the values, null to compare values naturally
+   */
+  public MapComparator( ValueMetaInterface keyMeta, ValueMetaInterface valueMeta ) {
+    this.keyMeta = keyMeta;
+    this.valueMeta = valueMeta;
+  }
+
+  public int compare( Map<?, ?> map1, Map<?, ?> map2 ) throws KettleValueException {
+    if ( map1 == map2 ) {
+      return 0;
+    }
+    if ( map1.size() == map2.size() && map1.hashCode() == map2.hashCode() && map1.equals( map2 ) ) {
+      return 0;
+    }
+
+    Object[] keys1 = sortedKeys( map1 );
+    Object[] keys2 = sortedKeys( map2 );
+    int common = Math.min( keys1.length, keys2.length );
+    for ( int i = 0; i < common; i++ ) {
+      int cmp = compareObjects( keyMeta, keys1[i], keys2[i] );
+      if ( cmp != 0 ) {
+        return cmp;
+      }
+      cmp = compareObjects( valueMeta, map1.get( keys1[i] ), map2.get( keys2[i] ) );
+      if ( cmp != 0 ) {
+        return cmp;
+      }
+    }
+    return keys1.length < keys2.length ? -1 : ( keys1.length == keys2.length ? 0 : 1 );
+  }
+
+  private Object[] sortedKeys( Map<?, ?> map ) throws KettleValueException {
+    SortedKeys[] cache = sortedKeysCache.get();
+    for ( int i = 0; i < cache.length; i++ ) {
+      SortedKeys cached = cache[i];
+      if ( cached != null && cached.map.get() == map && cached.isCurrent( map ) ) {
+        System.arraycopy( cache, 0, cache, 1, i );
+        cache[0] = cached;
+        return cached.keys;
+      }
+    }
+
+    Object[] keys = map.keySet().toArray();
+    try {
+      Arrays.sort( keys, keyComparator );
+    } catch ( WrappedException e ) {
+      throw e.cause;
+    }
+    System.arraycopy( cache, 0, cache, 1, cache.length - 1 );
+    cache[0] = new SortedKeys( map, keys );
+    return keys;
+  }
+
+  /**
+   * Compares two keys or values, nulls first.
+   */
+  @SuppressWarnings( { "unchecked", "rawtypes" } )
+  static int compareObjects( ValueMetaInterface meta, Object o1, Object o2 ) throws KettleValueException {
+    if ( o1 == o2 ) {
+      return 0;
+    }
+    if ( o1 == null ) {
+      return -1;
+    }
+    if ( o2 == null ) {
+      return 1;
+    }
+    if ( o1 instanceof Map && o2 instanceof Map && !( meta instanceof ValueMetaMap ) ) {
+      return new MapComparator( null, null ).compare( (Map<?, ?>) o1, (Map<?, ?>) o2 );
+    }
+    if ( meta != null ) {
+      try {
+        return meta.compare( o1, o2 );
+      } catch ( ClassCastException e ) {
+        // Not of the type of the metadata, compare naturally
+      }
+    }
+    if ( o1.getClass() == o2.getClass() && o1 instanceof Comparable ) {
+      return ( (Comparable) o1 ).compareTo( o2 );
+    }
+    if ( o1 instanceof Number && o2 instanceof Number ) {
+      return Double.compare( ( (Number) o1 ).doubleValue(), ( (Number) o2 ).doubleValue() );
+    }
+    int cmp = o1.getClass().getName().compareTo( o2.getClass().getName() );
+    return cmp != 0 ? cmp : o1.toString().compareTo( o2.toString() );
+  }
+
+  /**
+   * The sorted keys of a map, referenced weakly so the cache doesn't retain the maps of rows long gone.
+   */
+  private static final class SortedKeys {
+    final WeakReference<Map<?, ?>> map;
+    final Object[] keys;
+
+    SortedKeys( Map<?, ?> map, Object[] keys ) {
+      this.map = new WeakReference<Map<?, ?>>( map );
+      this.keys = keys;
+    }
+
+    /**
+     * @return true if the map still has these keys: the same number of keys, all of them contained
+     */
+    boolean isCurrent( Map<?, ?> map ) {
+      if ( map.size() != keys.length ) {
+        return false;
+      }
+      if ( map instanceof SortedArrayMap
+          || ( map instanceof CopyOnWriteMap && ( (CopyOnWriteMap) map ).getFrozen() != null ) ) {
+        return true; // immutable, or not modified yet
+      }
+      for ( Object key : keys ) {
+        if ( !map.containsKey( key ) ) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Carries a KettleValueException out of Arrays.sort().
+   */
+  private static class WrappedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    final KettleValueException cause;
+
+    WrappedException( KettleValueException cause ) {
+      super( cause );
+      this.cause = cause;
+    }
+  }
+}
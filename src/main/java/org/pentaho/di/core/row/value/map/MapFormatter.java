@@ -0,0 +1,365 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Map;
+
+/**
+ * Writes the textual form of a map straight into an Appendable (a Writer, a StringBuilder, ...), without building
+ * intermediate strings for the entries.
+ * <p>
+ * Two formats are supported:
+ * <ul>
+ * <li>KEY_VALUE: <code>a=1, b=2</code>, the format of earlier versions (Map.toString() without the braces). Keys and
+ * values containing a separator, the enclosure, a brace or leading/trailing spaces are enclosed, so MapStringParser reads them
+ * back as they were.</li>
+ * <li>JSON: <code>{"a":1,"b":2}</code>. Numbers and booleans are written as such, nested maps as nested objects, any
+ * other value as a string.</li>
+ * </ul>
+ * Instances are immutable and thread-safe.
+ */
+public class MapFormatter {
+
+  public static final int FORMAT_KEY_VALUE = 0;
+  public static final int FORMAT_JSON = 1;
+
+  public static final String[] formatCodes = { "KEY_VALUE", "JSON" };
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /** Buffers retained per thread are dropped when they grew larger than this (in characters) */
+  private static final int MAX_RETAINED = 1 << 20;
+
+  private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder( 256 );
+    }
+  };
+
+  private static final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+    @Override
+    protected Encoder initialValue() {
+      return new Encoder();
+    }
+  };
+
+  private final int format;
+  private final String entrySeparator;
+  private final String keyValueSeparator;
+  private final char enclosure;
+  private final boolean hasEnclosure;
+  private final char escape;
+  private final boolean hasEscape;
+
+  public MapFormatter() {
+    this( FORMAT_KEY_VALUE, MapStringParser.DEFAULT_ENTRY_SEPARATOR, MapStringParser.DEFAULT_KEY_VALUE_SEPARATOR,
+        MapStringParser.DEFAULT_ENCLOSURE );
+  }
+
+  /**
+   * @param format
+   *          FORMAT_KEY_VALUE or FORMAT_JSON
+   * @param entrySeparator
+   *          separator between entries (KEY_VALUE only), a space is added after it
+   * @param keyValueSeparator
+   *          separator between a key and its value (KEY_VALUE only)
+   * @param enclosure
+   *          quote character for keys/values containing separators (KEY_VALUE only), null or empty for none
+   */
+  public MapFormatter( int format, String entrySeparator, String keyValueSeparator, String enclosure ) {
+    this( format, entrySeparator, keyValueSeparator, enclosure, null );
+  }
+
+  /**
+   * @param format
+   *          FORMAT_KEY_VALUE or FORMAT_JSON
+   * @param entrySeparator
+   *          separator between entries (KEY_VALUE only), a space is added after it
+   * @param keyValueSeparator
+   *          separator between a key and its value (KEY_VALUE only)
+   * @param enclosure
+   *          quote character for keys/values containing separators (KEY_VALUE only), null or empty for none
+   * @param escape
+   *          escape character of the parser (KEY_VALUE only), doubled within enclosures, null or empty for none
+   */
+  public MapFormatter( int format, String entrySeparator, String keyValueSeparator, String enclosure, String escape ) {
+    this.format = format;
+    this.entrySeparator = entrySeparator;
+    this.keyValueSeparator = keyValueSeparator;
+    this.hasEnclosure = enclosure != null && enclosure.length() > 0;
+    this.enclosure = hasEnclosure ? enclosure.charAt( 0 ) : 0;
+    this.hasEscape = escape != null && escape.length() > 0;
+    this.escape = hasEscape ? escape.charAt( 0 ) : 0;
+  }
+
+  /**
+   * @return the format code (see formatCodes) of the format
+   */
+  public static String getFormatCode( int format ) {
+    if ( format < 0 || format >= formatCodes.length ) {
+      return formatCodes[FORMAT_KEY_VALUE];
+    }
+    return formatCodes[format];
+  }
+
+  /**
+   * @return the format of the format code, FORMAT_KEY_VALUE if the code is unknown
+   */
+  public static int getFormat( String code ) {
+    for ( int i = 0; i < formatCodes.length; i++ ) {
+      if ( formatCodes[i].equalsIgnoreCase( code ) ) {
+        return i;
+      }
+    }
+    return FORMAT_KEY_VALUE;
+  }
+
+  public int getFormat() {
+    return format;
+  }
+
+  /**
+   * @return the textual form of the map, built in a buffer reused by the calling thread
+   */
+  public String format( Map<?, ?> map ) {
+    StringBuilder buffer = acquire();
+    try {
+      appendTo( map, buffer );
+      return buffer.toString();
+    } finally {
+      release( buffer );
+    }
+  }
+
+  /**
+   * @return the textual form of the map encoded in the given character set, without creating a String first. The
+   *         encoder and byte buffer are reused by the calling thread, only the resulting array is allocated.
+   */
+  public byte[] encode( Map<?, ?> map, Charset charset ) {
+    StringBuilder buffer = acquire();
+    try {
+      appendTo( map, buffer );
+      return encoders.get().encode( buffer, charset );
+    } finally {
+      release( buffer );
+    }
+  }
+
+  /**
+   * Appends the textual form of the map to the StringBuilder.
+   */
+  public void appendTo( Map<?, ?> map, StringBuilder out ) {
+    try {
+      write( map, out );
+    } catch ( IOException e ) {
+      throw new IllegalStateException( e ); // StringBuilder doesn't throw
+    }
+  }
+
+  /**
+   * Writes the textual form of the map to the Appendable, e.g. the Writer of a text file.
+   */
+  public void write( Map<?, ?> map, Appendable out ) throws IOException {
+    if ( format == FORMAT_JSON ) {
+      writeJsonObject( map, out );
+    } else {
+      writeKeyValues( map, out );
+    }
+  }
+
+  private StringBuilder acquire() {
+    StringBuilder buffer = buffers.get();
+    // Mark the buffer as taken, so re-entrant use (nested map values) gets a buffer of its own
+    buffers.set( null );
+    if ( buffer == null ) {
+      buffer = new StringBuilder( 256 );
+    }
+    buffer.setLength( 0 );
+    return buffer;
+  }
+
+  private void release( StringBuilder buffer ) {
+    if ( buffer.capacity() <= MAX_RETAINED ) {
+      buffers.set( buffer );
+    } else {
+      buffers.remove();
+    }
+  }
+
+  /**
+   * Encoder of a thread, replacing malformed and unmappable characters like Charset.encode does.
+   */
+  private static final class Encoder {
+    private CharsetEncoder encoder;
+    private ByteBuffer bytes = ByteBuffer.allocate( 256 );
+
+    byte[] encode( CharSequence chars, Charset charset ) {
+      if ( encoder == null || !encoder.charset().equals( charset ) ) {
+        encoder = charset.newEncoder().onMalformedInput( CodingErrorAction.REPLACE )
+            .onUnmappableCharacter( CodingErrorAction.REPLACE );
+      }
+      int maxBytes = (int) Math.ceil( chars.length() * (double) encoder.maxBytesPerChar() );
+      if ( bytes.capacity() < maxBytes ) {
+        bytes = ByteBuffer.allocate( maxBytes );
+      }
+      bytes.clear();
+      encoder.reset();
+      CharBuffer in = CharBuffer.wrap( chars );
+      try {
+        CoderResult result = encoder.encode( in, bytes, true );
+        if ( !result.isUnderflow() ) {
+          result.throwException();
+        }
+        result = encoder.flush( bytes );
+        if ( !result.isUnderflow() ) {
+          result.throwException();
+        }
+      } catch ( CharacterCodingException e ) {
+        throw new IllegalStateException( e ); // the buffer fits the longest encoding and errors are replaced
+      }
+      bytes.flip();
+      byte[] result = new byte[bytes.remaining()];
+      bytes.get( result );
+      if ( bytes.capacity() > MAX_RETAINED ) {
+        bytes = ByteBuffer.allocate( 256 );
+      }
+      return result;
+    }
+  }
+
+  private void writeKeyValues( Map<?, ?> map, Appendable out ) throws IOException {
+    boolean first = true;
+    for ( Map.Entry<?, ?> entry : map.entrySet() ) {
+      if ( !first ) {
+        out.append( entrySeparator ).append( ' ' );
+      }
+      first = false;
+      writeToken( entry.getKey(), out );
+      out.append( keyValueSeparator );
+      writeToken( entry.getValue(), out );
+    }
+  }
+
+  private void writeToken( Object object, Appendable out ) throws IOException {
+    if ( object instanceof Map ) {
+      out.append( '{' );
+      writeKeyValues( (Map<?, ?>) object, out );
+      out.append( '}' );
+      return;
+    }
+    if ( object instanceof Number || object instanceof Boolean ) {
+      out.append( object.toString() );
+      return;
+    }
+    String text = String.valueOf( object );
+    if ( !needsEnclosure( text ) ) {
+      out.append( text );
+      return;
+    }
+    out.append( enclosure );
+    for ( int i = 0; i < text.length(); i++ ) {
+      char c = text.charAt( i );
+      if ( c == enclosure ) {
+        out.append( enclosure );
+      } else if ( hasEscape && c == escape ) {
+        out.append( escape );
+      }
+      out.append( c );
+    }
+    out.append( enclosure );
+  }
+
+  private boolean needsEnclosure( String text ) {
+    int length = text.length();
+    if ( !hasEnclosure || length == 0 ) {
+      return false;
+    }
+    if ( Character.isWhitespace( text.charAt( 0 ) ) || Character.isWhitespace( text.charAt( length - 1 ) ) ) {
+      return true;
+    }
+    // Braces are enclosed too, so they can't be mistaken for the bounds of a nested map
+    return text.indexOf( enclosure ) >= 0 || text.indexOf( entrySeparator ) >= 0
+        || text.indexOf( keyValueSeparator ) >= 0 || text.indexOf( '{' ) >= 0 || text.indexOf( '}' ) >= 0;
+  }
+
+  private void writeJsonObject( Map<?, ?> map, Appendable out ) throws IOException {
+    out.append( '{' );
+    boolean first = true;
+    for ( Map.Entry<?, ?> entry : map.entrySet() ) {
+      if ( !first ) {
+        out.append( ',' );
+      }
+      first = false;
+      writeJsonString( String.valueOf( entry.getKey() ), out );
+      out.append( ':' );
+      writeJsonValue( entry.getValue(), out );
+    }
+    out.append( '}' );
+  }
+
+  private void writeJsonValue( Object object, Appendable out ) throws IOException {
+    if ( object == null ) {
+      out.append( "null" );
+    } else if ( object instanceof Map ) {
+      writeJsonObject( (Map<?, ?>) object, out );
+    } else if ( object instanceof Double || object instanceof Float ) {
+      double d = ( (Number) object ).doubleValue();
+      if ( Double.isNaN( d ) || Double.isInfinite( d ) ) {
+        out.append( "null" ); // not representable in JSON
+      } else {
+        out.append( object.toString() );
+      }
+    } else if ( object instanceof BigDecimal ) {
+      out.append( ( (BigDecimal) object ).toString() );
+    } else if ( object instanceof Number || object instanceof Boolean ) {
+      out.append( object.toString() );
+    } else {
+      writeJsonString( object.toString(), out );
+    }
+  }
+
+  private static void writeJsonString( String text, Appendable out ) throws IOException {
+    out.append( '"' );
+    int start = 0;
+    int length = text.length();
+    for ( int i = 0; i < length; i++ ) {
+      char c = text.charAt( i );
+      if ( c >= 0x20 && c != '"' && c != '\\' ) {
+        continue;
+      }
+      // Copy the run of plain characters in one go, then the escaped character
+      out.append( text, start, i );
+      start = i + 1;
+      switch ( c ) {
+        case '"':
+          out.append( "\\\"" );
+          break;
+        case '\\':
+          out.append( "\\\\" );
+          break;
+        case '\n':
+          out.append( "\\n" );
+          break;
+        case '\r':
+          out.append( "\\r" );
+          break;
+        case '\t':
+          out.append( "\\t" );
+          break;
+        default:
+          out.append( "\\u00" ).append( HEX[c >> 4] ).append( HEX[c & 0xF] );
+          break;
+      }
+    }
+    out.append( text, start, length );
+    out.append( '"' );
+  }
+}
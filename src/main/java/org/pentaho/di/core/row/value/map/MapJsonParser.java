@@ -0,0 +1,363 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaMap;
+
+/**
+ * Single-pass parser for maps in the form of a JSON object, e.g. <code>{"a":1,"b":{"c":true}}</code>.
+ * <p>
+ * Keys and values of the top-level object are converted to the key/value metadata of the map metadata as they are
+ * read: numbers are converted from their literal text, so a Number value metadata gets Doubles and a String value
+ * metadata gets the number as written. Nested objects become nested maps if the value metadata is a map metadata
+ * itself. Otherwise nested objects and arrays are kept as their JSON text, which a String value metadata takes as it is;
+ * they can't be converted to any other type, nor can an array be converted to a map.
+ * <p>
+ * The parser is stateless and thread-safe.
+ */
+public class MapJsonParser {
+
+  /**
+   * Thrown when the text isn't a well-formed JSON object (as opposed to a value that can't be converted).
+   */
+  public static class SyntaxException extends KettleValueException {
+    private static final long serialVersionUID = 1L;
+
+    public SyntaxException( String message ) {
+      super( message );
+    }
+  }
+
+  /**
+   * @return true if the text looks like a JSON object: an opening brace followed by a quote or a closing brace
+   */
+  public static boolean isJsonObject( String text ) {
+    int length = text.length();
+    int i = skipWhitespace( text, 0, length );
+    if ( i >= length || text.charAt( i ) != '{' ) {
+      return false;
+    }
+    i = skipWhitespace( text, i + 1, length );
+    return i < length && ( text.charAt( i ) == '"' || text.charAt( i ) == '}' );
+  }
+
+  /**
+   * Parses the JSON object and puts its entries into the map.
+   *
+   * @param mapMeta
+   *          metadata of the map, used to convert the keys and values and to create nested maps
+   */
+  public void parse( String text, Map<Object, Object> map, ValueMetaMap mapMeta ) throws KettleValueException {
+    Cursor cursor = new Cursor( text );
+    cursor.skipWhitespace();
+    readObject( cursor, map, mapMeta );
+    cursor.skipWhitespace();
+    if ( cursor.position < cursor.end ) {
+      throw cursor.error( "Unexpected text after the JSON object" );
+    }
+  }
+
+  private void readObject( Cursor cursor, Map<Object, Object> map, ValueMetaMap mapMeta )
+    throws KettleValueException {
+    StringValueConverter keyConverter = mapMeta == null ? null : mapMeta.getKeyConverter();
+    StringValueConverter valueConverter = mapMeta == null ? null : mapMeta.getValueConverter();
+    ValueMetaMap nestedMeta = null;
+    if ( mapMeta != null && mapMeta.getValueMeta() instanceof ValueMetaMap ) {
+      nestedMeta = (ValueMetaMap) mapMeta.getValueMeta();
+    }
+
+    cursor.expect( '{' );
+    cursor.skipWhitespace();
+    if ( cursor.peek() == '}' ) {
+      cursor.position++;
+      return;
+    }
+    for ( ;; ) {
+      cursor.skipWhitespace();
+      String key = readString( cursor );
+      cursor.skipWhitespace();
+      cursor.expect( ':' );
+      cursor.skipWhitespace();
+      Object value = readValue( cursor, valueConverter, nestedMeta );
+      map.put( keyConverter == null ? key : keyConverter.convert( key ), value );
+
+      cursor.skipWhitespace();
+      char c = cursor.next();
+      if ( c == '}' ) {
+        return;
+      }
+      if ( c != ',' ) {
+        throw cursor.error( "Expected ',' or '}'" );
+      }
+    }
+  }
+
+  private Object readValue( Cursor cursor, StringValueConverter converter, ValueMetaMap nestedMeta )
+    throws KettleValueException {
+    char c = cursor.peek();
+    switch ( c ) {
+      case '{':
+        if ( nestedMeta != null ) {
+          Map<Object, Object> nested = nestedMeta.createMap( 0 );
+          readObject( cursor, nested, nestedMeta );
+          return nested;
+        }
+        return readJsonText( cursor, converter );
+      case '[':
+        if ( nestedMeta != null ) {
+          throw new KettleValueException( "Unable to convert the JSON array at position " + cursor.position
+              + " to a map" );
+        }
+        return readJsonText( cursor, converter );
+      case '"':
+        String string = readString( cursor );
+        return converter == null ? string : converter.convert( string );
+      case 't':
+        cursor.expectWord( "true" );
+        return convertLiteral( converter, "true", Boolean.TRUE );
+      case 'f':
+        cursor.expectWord( "false" );
+        return convertLiteral( converter, "false", Boolean.FALSE );
+      case 'n':
+        cursor.expectWord( "null" );
+        return null;
+      default:
+        String number = readNumber( cursor );
+        if ( converter != null ) {
+          return converter.convert( number );
+        }
+        return naturalNumber( number );
+    }
+  }
+
+  /**
+   * Reads a nested object or array as its JSON text, for a value metadata that isn't a map metadata.
+   */
+  private Object readJsonText( Cursor cursor, StringValueConverter converter ) throws KettleValueException {
+    int start = cursor.position;
+    skipValue( cursor );
+    String json = cursor.text.substring( start, cursor.position );
+    if ( converter == null ) {
+      return json;
+    }
+    ValueMetaInterface valueMeta = converter.getValueMeta();
+    if ( valueMeta.getType() != ValueMetaInterface.TYPE_STRING ) {
+      throw new KettleValueException( "Unable to convert the nested JSON value at position " + start + " to "
+          + valueMeta.getTypeDesc() + ", only String or Map values can hold it" );
+    }
+    return converter.convert( json );
+  }
+
+  /**
+   * Checks the syntax of a value and moves past it, without building it.
+   */
+  private void skipValue( Cursor cursor ) throws KettleValueException {
+    char c = cursor.peek();
+    switch ( c ) {
+      case '{':
+      case '[':
+        char close = c == '{' ? '}' : ']';
+        cursor.position++;
+        cursor.skipWhitespace();
+        if ( cursor.peek() == close ) {
+          cursor.position++;
+          return;
+        }
+        for ( ;; ) {
+          cursor.skipWhitespace();
+          if ( c == '{' ) {
+            readString( cursor );
+            cursor.skipWhitespace();
+            cursor.expect( ':' );
+            cursor.skipWhitespace();
+          }
+          skipValue( cursor );
+          cursor.skipWhitespace();
+          char next = cursor.next();
+          if ( next == close ) {
+            return;
+          }
+          if ( next != ',' ) {
+            throw cursor.error( "Expected ',' or '" + close + "'" );
+          }
+        }
+      case '"':
+        readString( cursor );
+        return;
+      case 't':
+        cursor.expectWord( "true" );
+        return;
+      case 'f':
+        cursor.expectWord( "false" );
+        return;
+      case 'n':
+        cursor.expectWord( "null" );
+        return;
+      default:
+        readNumber( cursor );
+        return;
+    }
+  }
+
+  private static Object convertLiteral( StringValueConverter converter, String literal, Boolean value )
+    throws KettleValueException {
+    if ( converter == null || converter.getValueMeta().getType() == ValueMetaInterface.TYPE_BOOLEAN ) {
+      return value;
+    }
+    return converter.convert( literal );
+  }
+
+  private static Object naturalNumber( String number ) {
+    boolean integral = true;
+    for ( int i = 0; i < number.length() && integral; i++ ) {
+      char c = number.charAt( i );
+      integral = c != '.' && c != 'e' && c != 'E';
+    }
+    if ( integral ) {
+      try {
+        return Long.valueOf( number );
+      } catch ( NumberFormatException e ) {
+        return new BigDecimal( number ); // too large for a long
+      }
+    }
+    return Double.valueOf( number );
+  }
+
+  private String readNumber( Cursor cursor ) throws KettleValueException {
+    int start = cursor.position;
+    String text = cursor.text;
+    while ( cursor.position < cursor.end ) {
+      char c = text.charAt( cursor.position );
+      if ( ( c >= '0' && c <= '9' ) || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' ) {
+        cursor.position++;
+      } else {
+        break;
+      }
+    }
+    if ( cursor.position == start ) {
+      throw cursor.error( "Unexpected character" );
+    }
+    return text.substring( start, cursor.position );
+  }
+
+  /**
+   * Reads a string; strings without escapes are extracted with a single substring.
+   */
+  private String readString( Cursor cursor ) throws KettleValueException {
+    cursor.expect( '"' );
+    String text = cursor.text;
+    int start = cursor.position;
+    StringBuilder buffer = null;
+    while ( cursor.position < cursor.end ) {
+      char c = text.charAt( cursor.position++ );
+      if ( c == '"' ) {
+        if ( buffer == null ) {
+          return text.substring( start, cursor.position - 1 );
+        }
+        buffer.append( text, start, cursor.position - 1 );
+        return buffer.toString();
+      }
+      if ( c == '\\' ) {
+        if ( buffer == null ) {
+          buffer = new StringBuilder();
+        }
+        buffer.append( text, start, cursor.position - 1 );
+        buffer.append( readEscape( cursor ) );
+        start = cursor.position;
+      }
+    }
+    throw cursor.error( "Unterminated string" );
+  }
+
+  private char readEscape( Cursor cursor ) throws KettleValueException {
+    char c = cursor.next();
+    switch ( c ) {
+      case '"':
+      case '\\':
+      case '/':
+        return c;
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'u':
+        if ( cursor.position + 4 > cursor.end ) {
+          throw cursor.error( "Invalid unicode escape" );
+        }
+        try {
+          char u = (char) Integer.parseInt( cursor.text.substring( cursor.position, cursor.position + 4 ), 16 );
+          cursor.position += 4;
+          return u;
+        } catch ( NumberFormatException e ) {
+          throw cursor.error( "Invalid unicode escape" );
+        }
+      default:
+        throw cursor.error( "Invalid escape" );
+    }
+  }
+
+  private static int skipWhitespace( String text, int position, int end ) {
+    while ( position < end && Character.isWhitespace( text.charAt( position ) ) ) {
+      position++;
+    }
+    return position;
+  }
+
+  /**
+   * Parse position, kept separately so the parser itself stays stateless.
+   */
+  private static final class Cursor {
+    final String text;
+    final int end;
+    int position;
+
+    Cursor( String text ) {
+      this.text = text;
+      this.end = text.length();
+    }
+
+    void skipWhitespace() {
+      position = MapJsonParser.skipWhitespace( text, position, end );
+    }
+
+    char peek() throws SyntaxException {
+      if ( position >= end ) {
+        throw error( "Unexpected end of text" );
+      }
+      return text.charAt( position );
+    }
+
+    char next() throws SyntaxException {
+      char c = peek();
+      position++;
+      return c;
+    }
+
+    void expect( char c ) throws SyntaxException {
+      if ( next() != c ) {
+        position--;
+        throw error( "Expected '" + c + "'" );
+      }
+    }
+
+    void expectWord( String word ) throws SyntaxException {
+      if ( !text.startsWith( word, position ) ) {
+        throw error( "Unexpected character" );
+      }
+      position += word.length();
+    }
+
+    SyntaxException error( String message ) {
+      return new SyntaxException( message + " at position " + position + " of JSON map" );
+    }
+  }
+}
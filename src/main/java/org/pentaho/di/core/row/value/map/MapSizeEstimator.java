@@ -0,0 +1,155 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Cheap estimates of the heap retained by map values, so steps can account for the bytes held in row buffers rather
+ * than the number of rows. The structure of the maps of this package is sized from the lengths of their arrays, and the
+ * keys and values from a few sampled entries scaled up to the size of the map, so estimating a map doesn't walk it.
+ * <p>
+ * Sizes assume a 64-bit JVM with compressed references. Objects shared between maps (dictionary or fixed schema keys,
+ * cached Booleans) and off-heap storage aren't counted.
+ */
+public final class MapSizeEstimator {
+
+  public static final int OBJECT_HEADER = 12;
+  public static final int ARRAY_HEADER = 16;
+  public static final int REFERENCE = 4;
+
+  /** Entries sampled to estimate the size of the keys and values */
+  static final int SAMPLE_SIZE = 8;
+
+  /** Per entry overhead of a hash map (node object plus table slot) */
+  static final int HASH_ENTRY = 40;
+
+  /** Per entry overhead of a persistent hash map (key and value slots plus the amortized trie nodes) */
+  static final int TRIE_ENTRY = 24;
+
+  /** Fields of a map object, its views and cached hash code */
+  static final int MAP_OBJECT = 48;
+
+  private MapSizeEstimator() {
+  }
+
+  /**
+   * @return the estimated heap retained by the map, 0 for null
+   */
+  public static long estimate( Map<?, ?> map ) {
+    if ( map == null ) {
+      return 0;
+    }
+    int size = map.size();
+    if ( map instanceof LazyMap ) {
+      LazyMap lazyMap = (LazyMap) map;
+      if ( !lazyMap.isDecoded() ) {
+        // Don't decode the map just to measure it: it only holds its payload
+        return MAP_OBJECT + arraySize( lazyMap.getPayload().length, 1 );
+      }
+      return MAP_OBJECT + estimate( lazyMap.delegate() );
+    }
+    if ( map instanceof CopyOnWriteMap ) {
+      return MAP_OBJECT + estimate( ( (CopyOnWriteMap) map ).delegate() );
+    }
+    if ( map instanceof OffHeapMap ) {
+      return MAP_OBJECT * 2; // the entries are stored off heap, see getOffHeapSize()
+    }
+    if ( map instanceof SortedArrayMap ) {
+      return MAP_OBJECT + arraySize( size, 4 ) + 2 * arraySize( size, REFERENCE ) + sample( map, size, true, true );
+    }
+    if ( map instanceof FixedKeyMap ) {
+      // The keys belong to the schema, shared by every map
+      return MAP_OBJECT + arraySize( ( (FixedKeyMap) map ).getSchema().size(), REFERENCE )
+          + sample( map, size, false, true );
+    }
+    if ( map instanceof DictionaryMap ) {
+      // The keys belong to the dictionary, except for the ones it refused
+      DictionaryMap dictionaryMap = (DictionaryMap) map;
+      int capacity = dictionaryMap.capacity();
+      int overflow = size - dictionaryMap.encodedSize();
+      return MAP_OBJECT + arraySize( capacity, 4 ) + arraySize( capacity, REFERENCE ) + (long) overflow * HASH_ENTRY
+          + sample( map, size, false, true );
+    }
+    if ( map instanceof PrimitiveMap ) {
+      PrimitiveMap primitiveMap = (PrimitiveMap) map;
+      boolean objectKeys = map instanceof ObjectLongMap;
+      boolean objectValues = map instanceof LongObjectMap;
+      int slotSize = 8 + ( objectKeys || objectValues ? REFERENCE : 8 );
+      return MAP_OBJECT + arraySize( primitiveMap.slotLimit(), slotSize ) + sample( map, size, objectKeys, objectValues );
+    }
+    if ( map instanceof PersistentHashMap ) {
+      return MAP_OBJECT + (long) size * TRIE_ENTRY + sample( map, size, true, true );
+    }
+    return MAP_OBJECT + (long) size * HASH_ENTRY + sample( map, size, true, true );
+  }
+
+  /**
+   * @return the estimated heap added to a general map by an entry
+   */
+  public static long estimateEntry( Object key, Object value ) {
+    return HASH_ENTRY + estimateValue( key ) + estimateValue( value );
+  }
+
+  /**
+   * @return the estimated heap retained by a key or value, 0 for null
+   */
+  public static long estimateValue( Object value ) {
+    if ( value == null || value instanceof Boolean ) {
+      return 0;
+    }
+    if ( value instanceof String ) {
+      return align( OBJECT_HEADER + 12 ) + arraySize( ( (String) value ).length(), 2 );
+    }
+    if ( value instanceof Long || value instanceof Double || value instanceof Integer ) {
+      return 16;
+    }
+    if ( value instanceof BigDecimal ) {
+      BigDecimal number = (BigDecimal) value;
+      // The unscaled value only gets a BigInteger of its own when it doesn't fit a long
+      return number.precision() > 18 ? 40 + 32 + arraySize( number.unscaledValue().bitLength() / 32 + 1, 4 ) : 40;
+    }
+    if ( value instanceof Date ) {
+      return 24;
+    }
+    if ( value instanceof byte[] ) {
+      return arraySize( ( (byte[]) value ).length, 1 );
+    }
+    if ( value instanceof Map ) {
+      return estimate( (Map<?, ?>) value );
+    }
+    return 16;
+  }
+
+  /**
+   * @return the estimated size of the keys and/or values of the map, from the first few entries
+   */
+  private static long sample( Map<?, ?> map, int size, boolean keys, boolean values ) {
+    if ( size == 0 || !( keys || values ) ) {
+      return 0;
+    }
+    long bytes = 0;
+    int sampled = 0;
+    Iterator<? extends Map.Entry<?, ?>> iterator = map.entrySet().iterator();
+    while ( sampled < SAMPLE_SIZE && iterator.hasNext() ) {
+      Map.Entry<?, ?> entry = iterator.next();
+      if ( keys ) {
+        bytes += estimateValue( entry.getKey() );
+      }
+      if ( values ) {
+        bytes += estimateValue( entry.getValue() );
+      }
+      sampled++;
+    }
+    return sampled == 0 ? 0 : bytes * size / sampled;
+  }
+
+  static long arraySize( int length, int elementSize ) {
+    return align( ARRAY_HEADER + (long) length * elementSize );
+  }
+
+  private static long align( long bytes ) {
+    return ( bytes + 7 ) & ~7L;
+  }
+}
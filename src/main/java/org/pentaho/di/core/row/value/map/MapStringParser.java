@@ -0,0 +1,301 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.util.Map;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.value.ValueMetaMap;
+
+/**
+ * Single-pass parser for the textual form of a map, e.g. <code>{a=1, b=2}</code>.
+ * <p>
+ * The surrounding braces are optional. Entries are separated by the entry separator, keys from values by the first
+ * key/value separator of the entry; keys and values are trimmed. Keys and values can be surrounded by the enclosure
+ * character to include separators or leading/trailing spaces. Within an enclosure, a doubled enclosure character stands
+ * for the enclosure character itself, as in Const.splitString. If an escape character is set, it escapes the next
+ * character within an enclosure too; there's none by default, so paths like <code>"C:\temp"</code> read as they are.
+ * An entry without a key/value separator gets an empty value, empty entries are skipped.
+ * <p>
+ * When the values are maps themselves (the value converter is for a map metadata), a value starting with a brace
+ * extends to the matching closing brace, separators included, and is parsed by the nested map metadata.
+ * <p>
+ * The parser doesn't split the text into intermediate arrays or strings: each key and value is extracted with a single
+ * substring, or built in a buffer when it contains enclosures or escapes. Instances are immutable and thread-safe.
+ */
+public class MapStringParser {
+
+  public static final String DEFAULT_ENTRY_SEPARATOR = ",";
+  public static final String DEFAULT_KEY_VALUE_SEPARATOR = "=";
+  public static final String DEFAULT_ENCLOSURE = "\"";
+
+  private final String entrySeparator;
+  private final String keyValueSeparator;
+  private final char enclosure;
+  private final boolean hasEnclosure;
+  private final char escape;
+  private final boolean hasEscape;
+
+  public MapStringParser() {
+    this( DEFAULT_ENTRY_SEPARATOR, DEFAULT_KEY_VALUE_SEPARATOR, DEFAULT_ENCLOSURE );
+  }
+
+  /**
+   * @param entrySeparator
+   *          separator between entries, can't be empty
+   * @param keyValueSeparator
+   *          separator between the key and value of an entry, can't be empty
+   * @param enclosure
+   *          quote character (only the first character is used), null or empty for none
+   */
+  public MapStringParser( String entrySeparator, String keyValueSeparator, String enclosure ) {
+    this( entrySeparator, keyValueSeparator, enclosure, null );
+  }
+
+  /**
+   * @param entrySeparator
+   *          separator between entries, can't be empty
+   * @param keyValueSeparator
+   *          separator between the key and value of an entry, can't be empty
+   * @param enclosure
+   *          quote character (only the first character is used), null or empty for none
+   * @param escape
+   *          character escaping the next one within an enclosure (only the first character is used), null or empty for
+   *          none
+   */
+  public MapStringParser( String entrySeparator, String keyValueSeparator, String enclosure, String escape ) {
+    if ( entrySeparator == null || entrySeparator.length() == 0 ) {
+      throw new IllegalArgumentException( "The map entry separator can't be empty" );
+    }
+    if ( keyValueSeparator == null || keyValueSeparator.length() == 0 ) {
+      throw new IllegalArgumentException( "The map key/value separator can't be empty" );
+    }
+    this.entrySeparator = entrySeparator;
+    this.keyValueSeparator = keyValueSeparator;
+    this.hasEnclosure = enclosure != null && enclosure.length() > 0;
+    this.enclosure = hasEnclosure ? enclosure.charAt( 0 ) : 0;
+    this.hasEscape = escape != null && escape.length() > 0;
+    this.escape = hasEscape ? escape.charAt( 0 ) : 0;
+  }
+
+  public String getEntrySeparator() {
+    return entrySeparator;
+  }
+
+  public String getKeyValueSeparator() {
+    return keyValueSeparator;
+  }
+
+  public String getEnclosure() {
+    return hasEnclosure ? String.valueOf( enclosure ) : null;
+  }
+
+  public String getEscape() {
+    return hasEscape ? String.valueOf( escape ) : null;
+  }
+
+  /**
+   * Parses the text and puts its entries, as Strings, into the map.
+   */
+  public void parse( String text, Map<Object, Object> map ) {
+    try {
+      parse( text, map, null, null );
+    } catch ( KettleValueException e ) {
+      throw new IllegalStateException( e ); // Strings need no conversion
+    }
+  }
+
+  /**
+   * Parses the text and puts its entries into the map, converting the keys and values as they are read.
+   *
+   * @param keyConverter
+   *          converter for the keys, null to keep them as Strings
+   * @param valueConverter
+   *          converter for the values, null to keep them as Strings
+   */
+  public void parse( String text, Map<Object, Object> map, StringValueConverter keyConverter,
+    StringValueConverter valueConverter ) throws KettleValueException {
+    int start = 0;
+    int end = text.length();
+
+    // Skip whitespace and optional braces around the entries
+    while ( start < end && Character.isWhitespace( text.charAt( start ) ) ) {
+      start++;
+    }
+    while ( end > start && Character.isWhitespace( text.charAt( end - 1 ) ) ) {
+      end--;
+    }
+    if ( end - start >= 2 && text.charAt( start ) == '{' && text.charAt( end - 1 ) == '}' ) {
+      start++;
+      end--;
+    }
+
+    boolean nestedValues = valueConverter != null && valueConverter.getValueMeta() instanceof ValueMetaMap;
+    Cursor cursor = new Cursor( text, end );
+    cursor.position = start;
+    while ( cursor.position < end ) {
+      String key = token( cursor, true );
+      if ( key == null ) {
+        if ( !cursor.atKeyValueSeparator ) {
+          continue; // empty entry
+        }
+        key = "";
+      }
+      String value = "";
+      if ( cursor.atKeyValueSeparator ) {
+        value = nestedValues ? nestedToken( cursor ) : token( cursor, false );
+        if ( value == null ) {
+          value = "";
+        }
+      }
+      map.put( keyConverter == null ? key : keyConverter.convert( key ),
+          valueConverter == null ? value : valueConverter.convert( value ) );
+    }
+  }
+
+  /**
+   * Reads the next key or value, leaving the cursor after the separator that ends it.
+   *
+   * @param key
+   *          true to stop at the key/value separator as well as the entry separator
+   * @return the token, or null if it's empty
+   */
+  private String token( Cursor cursor, boolean key ) {
+    String text = cursor.text;
+    int end = cursor.end;
+    int pos = cursor.position;
+    cursor.atKeyValueSeparator = false;
+
+    // Skip leading whitespace
+    while ( pos < end && Character.isWhitespace( text.charAt( pos ) ) ) {
+      pos++;
+    }
+    int tokenStart = pos;
+    int tokenEnd = pos; // end of the last non-whitespace character
+    StringBuilder buffer = null; // only used if the token has enclosures or escapes
+    int committed = 0; // buffer length up to the last non-whitespace or enclosed character
+    boolean quoted = false;
+
+    while ( pos < end ) {
+      char c = text.charAt( pos );
+      if ( quoted ) {
+        if ( c == enclosure && pos + 1 < end && text.charAt( pos + 1 ) == enclosure ) {
+          buffer.append( c );
+          pos += 2;
+        } else if ( c == enclosure ) {
+          quoted = false;
+          pos++;
+        } else if ( hasEscape && c == escape && pos + 1 < end ) {
+          buffer.append( text.charAt( pos + 1 ) );
+          pos += 2;
+        } else {
+          buffer.append( c );
+          pos++;
+        }
+        committed = buffer.length();
+        continue;
+      }
+
+      if ( text.startsWith( entrySeparator, pos ) ) {
+        pos += entrySeparator.length();
+        break;
+      }
+      if ( key && text.startsWith( keyValueSeparator, pos ) ) {
+        pos += keyValueSeparator.length();
+        cursor.atKeyValueSeparator = true;
+        break;
+      }
+      if ( hasEnclosure && c == enclosure ) {
+        if ( buffer == null ) {
+          buffer = new StringBuilder( end - tokenStart );
+          buffer.append( text, tokenStart, pos );
+        }
+        committed = buffer.length();
+        quoted = true;
+        pos++;
+        continue;
+      }
+      if ( buffer != null ) {
+        buffer.append( c );
+        if ( !Character.isWhitespace( c ) ) {
+          committed = buffer.length();
+        }
+      } else if ( !Character.isWhitespace( c ) ) {
+        tokenEnd = pos + 1;
+      }
+      pos++;
+    }
+    cursor.position = pos;
+
+    if ( buffer != null ) {
+      buffer.setLength( committed );
+      return buffer.toString();
+    }
+    return tokenEnd > tokenStart ? text.substring( tokenStart, tokenEnd ) : null;
+  }
+
+  /**
+   * Reads the next value, keeping a brace-delimited nested map whole (with its enclosures, for the nested parser to
+   * handle), and leaves the cursor after the entry separator that follows it.
+   */
+  private String nestedToken( Cursor cursor ) {
+    String text = cursor.text;
+    int end = cursor.end;
+    int pos = cursor.position;
+    while ( pos < end && Character.isWhitespace( text.charAt( pos ) ) ) {
+      pos++;
+    }
+    if ( pos >= end || text.charAt( pos ) != '{' ) {
+      return token( cursor, false );
+    }
+
+    int tokenStart = pos;
+    int depth = 0;
+    boolean quoted = false;
+    while ( pos < end ) {
+      char c = text.charAt( pos++ );
+      if ( quoted ) {
+        if ( hasEscape && c == escape ) {
+          pos++;
+        } else if ( c == enclosure ) {
+          if ( pos < end && text.charAt( pos ) == enclosure ) {
+            pos++;
+          } else {
+            quoted = false;
+          }
+        }
+      } else if ( hasEnclosure && c == enclosure ) {
+        quoted = true;
+      } else if ( c == '{' ) {
+        depth++;
+      } else if ( c == '}' && --depth == 0 ) {
+        break;
+      }
+    }
+    pos = Math.min( pos, end ); // a trailing escape may have skipped past the end
+    String value = text.substring( tokenStart, pos );
+
+    // Skip anything up to the entry separator
+    while ( pos < end && !text.startsWith( entrySeparator, pos ) ) {
+      pos++;
+    }
+    if ( pos < end ) {
+      pos += entrySeparator.length();
+    }
+    cursor.position = pos;
+    return value;
+  }
+
+  /**
+   * Parse position, kept separately so the parser itself stays immutable.
+   */
+  private static final class Cursor {
+    final String text;
+    final int end;
+    int position;
+    boolean atKeyValueSeparator;
+
+    Cursor( String text, int end ) {
+      this.text = text;
+      this.end = end;
+    }
+  }
+}
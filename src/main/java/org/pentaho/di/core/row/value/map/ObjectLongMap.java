@@ -0,0 +1,198 @@
+package org.pentaho.di.core.row.value.map;
+
+/**
+ * Map from (non-null) object keys to long values, without boxing the values. Used for maps with Integer value metadata.
+ */
+public class ObjectLongMap extends PrimitiveMap {
+
+  private Object[] keys;
+  private long[] values;
+  private int mask;
+  private int resizeAt;
+
+  /** Set by claim(): true if the claimed slot was free */
+  private boolean claimedNew;
+
+  public ObjectLongMap() {
+    this( 0 );
+  }
+
+  public ObjectLongMap( int expectedSize ) {
+    allocate( capacityFor( expectedSize ) );
+  }
+
+  private void allocate( int capacity ) {
+    keys = new Object[capacity];
+    values = new long[capacity];
+    mask = capacity - 1;
+    resizeAt = (int) ( capacity * LOAD_FACTOR );
+  }
+
+  public long getLong( Object key, long defaultValue ) {
+    if ( key == null ) {
+      return defaultValue;
+    }
+    int slot = slot( key );
+    return slot < 0 ? defaultValue : values[slot];
+  }
+
+  public void putLong( Object key, long value ) {
+    modified();
+    if ( key == null ) {
+      put( key, Long.valueOf( value ) );
+      return;
+    }
+    values[claim( key )] = value;
+    if ( claimedNew && hasOverflow() ) {
+      overflow.remove( key );
+    }
+  }
+
+  /**
+   * Adds delta to the value of the key, starting from 0 if the key isn't present.
+   *
+   * @return the new value
+   */
+  public long addTo( Object key, long delta ) {
+    modified();
+    if ( key == null ) {
+      Object previous = get( key );
+      long value = ( previous instanceof Long ? ( (Long) previous ).longValue() : 0L ) + delta;
+      put( key, Long.valueOf( value ) );
+      return value;
+    }
+    int slot = claim( key );
+    if ( claimedNew ) {
+      values[slot] = delta;
+      if ( hasOverflow() ) {
+        overflow.remove( key );
+      }
+    } else {
+      values[slot] += delta;
+    }
+    return values[slot];
+  }
+
+  private int slot( Object key ) {
+    int i = mix( key ) & mask;
+    Object k;
+    while ( ( k = keys[i] ) != null ) {
+      if ( k.equals( key ) ) {
+        return i;
+      }
+      i = ( i + 1 ) & mask;
+    }
+    return -1;
+  }
+
+  private int claim( Object key ) {
+    int i = mix( key ) & mask;
+    Object k;
+    while ( ( k = keys[i] ) != null ) {
+      if ( k.equals( key ) ) {
+        claimedNew = false;
+        return i;
+      }
+      i = ( i + 1 ) & mask;
+    }
+    if ( size >= resizeAt ) {
+      rehash( ( mask + 1 ) << 1 );
+      return claim( key );
+    }
+    keys[i] = key;
+    size++;
+    claimedNew = true;
+    return i;
+  }
+
+  private void rehash( int capacity ) {
+    Object[] oldKeys = keys;
+    long[] oldValues = values;
+    allocate( capacity );
+    size = 0;
+    for ( int i = 0; i < oldKeys.length; i++ ) {
+      if ( oldKeys[i] != null ) {
+        values[claim( oldKeys[i] )] = oldValues[i];
+      }
+    }
+  }
+
+  @Override
+  protected void removeSlot( int slot ) {
+    size--;
+    // Shift following entries of the probe sequence back, so no tombstones are needed
+    int last;
+    int pos = slot;
+    Object current;
+    for ( ;; ) {
+      pos = ( ( last = pos ) + 1 ) & mask;
+      for ( ;; ) {
+        if ( ( current = keys[pos] ) == null ) {
+          keys[last] = null;
+          return;
+        }
+        int ideal = mix( current ) & mask;
+        if ( last <= pos ? last >= ideal || ideal > pos : last >= ideal && ideal > pos ) {
+          break;
+        }
+        pos = ( pos + 1 ) & mask;
+      }
+      keys[last] = current;
+      values[last] = values[pos];
+    }
+  }
+
+  @Override
+  protected boolean isTableKey( Object key ) {
+    return key != null;
+  }
+
+  @Override
+  protected boolean isTableValue( Object value ) {
+    return value instanceof Long;
+  }
+
+  @Override
+  protected int slotOf( Object key ) {
+    return slot( key );
+  }
+
+  @Override
+  protected Object putTable( Object key, Object value ) {
+    int slot = claim( key );
+    Object previous = claimedNew ? null : Long.valueOf( values[slot] );
+    values[slot] = ( (Long) value ).longValue();
+    return previous;
+  }
+
+  @Override
+  protected int slotLimit() {
+    return keys.length;
+  }
+
+  @Override
+  protected boolean isUsed( int slot ) {
+    return keys[slot] != null;
+  }
+
+  @Override
+  protected Object keyAt( int slot ) {
+    return keys[slot];
+  }
+
+  @Override
+  protected Object valueAt( int slot ) {
+    return Long.valueOf( values[slot] );
+  }
+
+  @Override
+  protected void copyArrays() {
+    keys = keys.clone();
+    values = values.clone();
+  }
+
+  @Override
+  protected void clearTable() {
+    allocate( MIN_CAPACITY );
+  }
+}
@@ -0,0 +1,705 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Map keeping its entries outside of the Java heap, for maps too large to be held as objects. Keys and values are
+ * serialized (see MapCodec.writeValue) into large arena chunks, and the hash index (open addressing, linear probing)
+ * lives off-heap as well, so the garbage collector never sees the entries. Chunks are either direct byte buffers or
+ * regions of a memory-mapped temporary file; the latter lets the map grow beyond physical memory.
+ * <p>
+ * Keys are matched by hash code and serialized form, so they should be of the type of the key metadata. Replacing a
+ * value appends a new record, the space of the old one isn't reclaimed. Removing entries through iterators of the
+ * views is not supported. Once frozen, the map is read-only and copies of it share its storage. Like HashMap, the map
+ * isn't thread-safe, except for concurrent reads.
+ * <p>
+ * The storage is released by close(), or by the garbage collector once the map is unreachable.
+ */
+public class OffHeapMap extends AbstractMap<Object, Object> {
+
+  public static final int DEFAULT_CHUNK_SIZE = 64 << 20;
+
+  static final float LOAD_FACTOR = 0.6f;
+  static final int MIN_CAPACITY = 1024;
+
+  /** Index pages hold at most 2^20 slots (8 MB) each */
+  static final int MAX_PAGE_BITS = 20;
+
+  /** Record header: hash code, key length, value length (-1 for null) */
+  static final int HEADER_SIZE = 12;
+
+  private static final ThreadLocal<MapCodec.PayloadBuffer> buffers = new ThreadLocal<MapCodec.PayloadBuffer>() {
+    @Override
+    protected MapCodec.PayloadBuffer initialValue() {
+      return new MapCodec.PayloadBuffer();
+    }
+  };
+
+  private final ValueMetaInterface keyMeta;
+  private final ValueMetaInterface valueMeta;
+  private final int keyType;
+  private final int valueType;
+  private final int chunkSize;
+
+  /** Directory of the memory-mapped file, null to use direct byte buffers */
+  private final File directory;
+  private RandomAccessFile file;
+  private long fileLength;
+
+  /** The temporary file, if it couldn't be deleted as soon as it was opened */
+  private File tempFile;
+
+  /** Arena chunks holding the records; a record address is the chunk number (high int) and offset (low int) */
+  private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+  private ByteBuffer current;
+
+  /** Index slots hold a record address plus one, 0 for a free slot */
+  private ByteBuffer[] pages;
+  private int pageBits;
+  private long capacity;
+  private long mask;
+  private long resizeAt;
+
+  private int size;
+  private int hash;
+  private boolean frozen;
+  private boolean closed;
+
+  private transient Set<Map.Entry<Object, Object>> entrySet;
+
+  /**
+   * Creates an off-heap map in direct byte buffers.
+   */
+  public OffHeapMap( ValueMetaInterface keyMeta, ValueMetaInterface valueMeta ) {
+    this( keyMeta, valueMeta, null, DEFAULT_CHUNK_SIZE );
+  }
+
+  /**
+   * @param directory
+   *          directory of the temporary file to memory-map, null to use direct byte buffers
+   * @param chunkSize
+   *          size of the arena chunks in bytes
+   */
+  public OffHeapMap( ValueMetaInterface keyMeta, ValueMetaInterface valueMeta, File directory, int chunkSize ) {
+    this.keyMeta = keyMeta;
+    this.valueMeta = valueMeta;
+    this.keyType = keyMeta.getType();
+    this.valueType = valueMeta.getType();
+    this.directory = directory;
+    this.chunkSize = chunkSize;
+    allocateIndex( MIN_CAPACITY );
+  }
+
+  /**
+   * Makes the map read-only: copies of a frozen map share its storage instead of duplicating it.
+   */
+  public void freeze() {
+    frozen = true;
+  }
+
+  public boolean isFrozen() {
+    return frozen;
+  }
+
+  /**
+   * @return this map if it's frozen, a copy in new off-heap storage otherwise
+   */
+  public Map<Object, Object> copy() {
+    if ( frozen ) {
+      return this;
+    }
+    OffHeapMap copy = new OffHeapMap( keyMeta, valueMeta, directory, chunkSize );
+    copy.putAll( this );
+    return copy;
+  }
+
+  /**
+   * @return the number of bytes allocated outside of the heap
+   */
+  public long getOffHeapSize() {
+    long bytes = capacity * 8;
+    for ( ByteBuffer chunk : chunks ) {
+      bytes += chunk.capacity();
+    }
+    return bytes;
+  }
+
+  /**
+   * Releases the storage of the map: the memory-mapped file is closed (and deleted if it couldn't be before), the
+   * buffers are dropped. The map can't be used anymore, copies sharing its storage included. Closing it again does
+   * nothing.
+   */
+  public void close() {
+    if ( closed ) {
+      return;
+    }
+    closed = true;
+    chunks.clear();
+    current = null;
+    pages = null;
+    capacity = 0;
+    size = 0;
+    hash = 0;
+    if ( file != null ) {
+      try {
+        file.close();
+      } catch ( IOException e ) {
+        // nothing left to release
+      }
+      file = null;
+    }
+    if ( tempFile != null ) {
+      tempFile.delete();
+      tempFile = null;
+    }
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  private void checkOpen() {
+    if ( closed ) {
+      throw new IllegalStateException( "The off-heap map is closed" );
+    }
+  }
+
+  private void checkWritable() {
+    checkOpen();
+    if ( frozen ) {
+      throw new UnsupportedOperationException( "The map is frozen" );
+    }
+  }
+
+  // Storage
+
+  private ByteBuffer allocate( int bytes ) {
+    if ( directory == null ) {
+      return ByteBuffer.allocateDirect( bytes );
+    }
+    try {
+      if ( file == null ) {
+        File newFile = File.createTempFile( "offheap-map", ".tmp", directory );
+        try {
+          file = new RandomAccessFile( newFile, "rw" );
+        } finally {
+          // The mappings stay valid once the file is deleted, it's removed from disk when they are released. Where
+          // open files can't be deleted (Windows), close() deletes it
+          if ( !newFile.delete() && file != null ) {
+            tempFile = newFile;
+          }
+        }
+      }
+      ByteBuffer buffer = file.getChannel().map( FileChannel.MapMode.READ_WRITE, fileLength, bytes );
+      fileLength += bytes;
+      return buffer;
+    } catch ( IOException e ) {
+      throw new IllegalStateException( "Unable to map off-heap map storage in " + directory, e );
+    }
+  }
+
+  private void allocateIndex( long slots ) {
+    capacity = slots;
+    mask = slots - 1;
+    resizeAt = (long) ( slots * LOAD_FACTOR );
+    pageBits = Math.min( MAX_PAGE_BITS, Long.numberOfTrailingZeros( slots ) );
+    int pageCount = (int) ( slots >>> pageBits );
+    pages = new ByteBuffer[pageCount];
+    for ( int i = 0; i < pageCount; i++ ) {
+      pages[i] = allocate( 8 << pageBits ); // zero-filled
+    }
+  }
+
+  private long slotGet( long slot ) {
+    return pages[(int) ( slot >>> pageBits )].getLong( (int) ( slot & ( ( 1L << pageBits ) - 1 ) ) << 3 );
+  }
+
+  private void slotSet( long slot, long value ) {
+    pages[(int) ( slot >>> pageBits )].putLong( (int) ( slot & ( ( 1L << pageBits ) - 1 ) ) << 3, value );
+  }
+
+  private ByteBuffer chunkOf( long address ) {
+    return chunks.get( (int) ( address >>> 32 ) );
+  }
+
+  private static int offsetOf( long address ) {
+    return (int) address;
+  }
+
+  private int hashAt( long address ) {
+    return chunkOf( address ).getInt( offsetOf( address ) );
+  }
+
+  /**
+   * Appends a record to the arena.
+   *
+   * @return its address
+   */
+  private long append( int keyHash, MapCodec.PayloadBuffer key, int keyLength, MapCodec.PayloadBuffer value,
+    int valueLength ) {
+    int recordSize = HEADER_SIZE + Math.max( keyLength, 0 ) + Math.max( valueLength, 0 );
+    if ( current == null || current.remaining() < recordSize ) {
+      current = allocate( Math.max( chunkSize, recordSize ) );
+      chunks.add( current );
+    }
+    long address = ( (long) ( chunks.size() - 1 ) << 32 ) | current.position();
+    current.putInt( keyHash );
+    current.putInt( keyLength );
+    current.putInt( valueLength );
+    if ( keyLength > 0 ) {
+      current.put( key.array(), 0, keyLength );
+    }
+    if ( valueLength > 0 ) {
+      current.put( value.array(), keyLength > 0 ? keyLength : 0, valueLength );
+    }
+    return address;
+  }
+
+  // Serialization
+
+  private static MapCodec.PayloadBuffer acquire() {
+    MapCodec.PayloadBuffer buffer = buffers.get();
+    if ( buffer.inUse ) {
+      buffer = new MapCodec.PayloadBuffer();
+    }
+    buffer.inUse = true;
+    buffer.reset();
+    return buffer;
+  }
+
+  private static void release( MapCodec.PayloadBuffer buffer ) {
+    buffer.inUse = false;
+    if ( buffer.array().length > MapCodec.PayloadBuffer.MAX_RETAINED ) {
+      buffers.remove();
+    }
+  }
+
+  /**
+   * Serializes a key or value at the end of the buffer.
+   *
+   * @return the number of bytes written, -1 for null
+   */
+  private static int serialize( MapCodec.PayloadBuffer buffer, int type, ValueMetaInterface meta, Object object ) {
+    if ( object == null ) {
+      return -1;
+    }
+    int start = buffer.size();
+    try {
+      MapCodec.writeValue( buffer.data, type, meta, object );
+      buffer.data.flush();
+    } catch ( IOException e ) {
+      throw new IllegalArgumentException( "Unable to serialize map entry " + object, e );
+    } catch ( KettleException e ) {
+      throw new IllegalArgumentException( "Unable to serialize map entry " + object, e );
+    }
+    return buffer.size() - start;
+  }
+
+  /**
+   * @return true if the records can be written as they are in a payload for the key/value metadata
+   */
+  public boolean isPayloadCompatible( ValueMetaInterface keyMeta, ValueMetaInterface valueMeta ) {
+    return !closed && keyMeta.getType() == keyType && valueMeta.getType() == valueType;
+  }
+
+  /**
+   * Writes the payload length and a MapCodec version 1 payload, copying the serialized keys and values straight from
+   * the records. The payload is never built on the heap, so its size is only bounded by the storage of the map.
+   */
+  public void writePayload( DataOutputStream out ) throws IOException {
+    checkOpen();
+    // First pass: payload length and nulls
+    boolean hasNulls = false;
+    long entryBytes = 0;
+    for ( long slot = 0; slot < capacity; slot++ ) {
+      long entry = slotGet( slot );
+      if ( entry != 0 ) {
+        ByteBuffer chunk = chunkOf( entry - 1 );
+        int offset = offsetOf( entry - 1 );
+        int keyLength = chunk.getInt( offset + 4 );
+        int valueLength = chunk.getInt( offset + 8 );
+        hasNulls |= keyLength < 0 || valueLength < 0;
+        entryBytes += Math.max( keyLength, 0 ) + Math.max( valueLength, 0 );
+      }
+    }
+    ByteArrayOutputStream header = new ByteArrayOutputStream( 16 );
+    DataOutputStream headerOut = new DataOutputStream( header );
+    MapCodec.writeVarInt( headerOut, hasNulls ? MapCodec.FLAG_HAS_NULLS : 0 );
+    MapCodec.writeVarInt( headerOut, keyType );
+    MapCodec.writeVarInt( headerOut, valueType );
+    MapCodec.writeVarInt( headerOut, size );
+    long bitmapBytes = hasNulls ? ( size * 2L + 7 ) / 8 : 0;
+    MapCodec.writeUnsignedVarLong( out, header.size() + bitmapBytes + entryBytes );
+    header.writeTo( out );
+
+    // Second pass: the null bitmap, two bits per entry
+    if ( hasNulls ) {
+      int bits = 0;
+      int bit = 0;
+      for ( long slot = 0; slot < capacity; slot++ ) {
+        long entry = slotGet( slot );
+        if ( entry != 0 ) {
+          ByteBuffer chunk = chunkOf( entry - 1 );
+          int offset = offsetOf( entry - 1 );
+          bits |= ( chunk.getInt( offset + 4 ) < 0 ? 1 : 0 ) << bit;
+          bits |= ( chunk.getInt( offset + 8 ) < 0 ? 2 : 0 ) << bit;
+          bit += 2;
+          if ( bit == 8 ) {
+            out.writeByte( bits );
+            bits = 0;
+            bit = 0;
+          }
+        }
+      }
+      if ( bit > 0 ) {
+        out.writeByte( bits );
+      }
+    }
+
+    // Third pass: the keys and values, through a view of each chunk so concurrent readers aren't disturbed
+    ByteBuffer[] views = new ByteBuffer[chunks.size()];
+    byte[] transfer = new byte[8192];
+    for ( long slot = 0; slot < capacity; slot++ ) {
+      long entry = slotGet( slot );
+      if ( entry != 0 ) {
+        int chunkIndex = (int) ( ( entry - 1 ) >>> 32 );
+        if ( views[chunkIndex] == null ) {
+          views[chunkIndex] = chunks.get( chunkIndex ).duplicate();
+        }
+        ByteBuffer view = views[chunkIndex];
+        int offset = offsetOf( entry - 1 );
+        int length = Math.max( view.getInt( offset + 4 ), 0 ) + Math.max( view.getInt( offset + 8 ), 0 );
+        view.position( offset + HEADER_SIZE );
+        while ( length > 0 ) {
+          int n = Math.min( length, transfer.length );
+          view.get( transfer, 0, n );
+          out.write( transfer, 0, n );
+          length -= n;
+        }
+      }
+    }
+  }
+
+  private Object deserialize( ByteBuffer chunk, int offset, int length, int type, ValueMetaInterface meta ) {
+    if ( length < 0 ) {
+      return null;
+    }
+    try {
+      return MapCodec.readValue( new DataInputStream( new ChunkInputStream( chunk, offset, length ) ), type, meta );
+    } catch ( IOException e ) {
+      throw new IllegalStateException( "Unable to read off-heap map entry", e );
+    } catch ( KettleException e ) {
+      throw new IllegalStateException( "Unable to read off-heap map entry", e );
+    }
+  }
+
+  private Object keyAt( long address ) {
+    ByteBuffer chunk = chunkOf( address );
+    int offset = offsetOf( address );
+    return deserialize( chunk, offset + HEADER_SIZE, chunk.getInt( offset + 4 ), keyType, keyMeta );
+  }
+
+  private Object valueAt( long address ) {
+    ByteBuffer chunk = chunkOf( address );
+    int offset = offsetOf( address );
+    int keyLength = chunk.getInt( offset + 4 );
+    return deserialize( chunk, offset + HEADER_SIZE + Math.max( keyLength, 0 ), chunk.getInt( offset + 8 ),
+        valueType, valueMeta );
+  }
+
+  private static int hashOf( Object key ) {
+    int h = key == null ? 0 : key.hashCode();
+    return h ^ ( h >>> 16 );
+  }
+
+  private static long mix( int h ) {
+    long m = h * 0x9E3779B97F4A7C15L;
+    return m ^ ( m >>> 32 );
+  }
+
+  // Index
+
+  /**
+   * @return the slot of the key serialized in the buffer, or the free slot where it would go (negated minus one)
+   */
+  private long find( int keyHash, MapCodec.PayloadBuffer key, int keyLength ) {
+    checkOpen();
+    byte[] keyBytes = key.array();
+    long slot = mix( keyHash ) & mask;
+    long entry;
+    while ( ( entry = slotGet( slot ) ) != 0 ) {
+      long address = entry - 1;
+      ByteBuffer chunk = chunkOf( address );
+      int offset = offsetOf( address );
+      if ( chunk.getInt( offset ) == keyHash && chunk.getInt( offset + 4 ) == keyLength ) {
+        boolean same = true;
+        int start = offset + HEADER_SIZE;
+        for ( int i = 0; i < keyLength && same; i++ ) {
+          same = chunk.get( start + i ) == keyBytes[i];
+        }
+        if ( same ) {
+          return slot;
+        }
+      }
+      slot = ( slot + 1 ) & mask;
+    }
+    return -slot - 1;
+  }
+
+  private void rehash() {
+    ByteBuffer[] oldPages = pages;
+    int oldPageBits = pageBits;
+    long oldCapacity = capacity;
+    allocateIndex( capacity << 1 );
+    for ( long i = 0; i < oldCapacity; i++ ) {
+      long entry = oldPages[(int) ( i >>> oldPageBits )].getLong( (int) ( i & ( ( 1L << oldPageBits ) - 1 ) ) << 3 );
+      if ( entry != 0 ) {
+        long slot = mix( hashAt( entry - 1 ) ) & mask;
+        while ( slotGet( slot ) != 0 ) {
+          slot = ( slot + 1 ) & mask;
+        }
+        slotSet( slot, entry );
+      }
+    }
+  }
+
+  private void removeSlot( long slot ) {
+    size--;
+    // Shift following entries of the probe sequence back, so no tombstones are needed
+    long last;
+    long pos = slot;
+    long entry;
+    for ( ;; ) {
+      pos = ( ( last = pos ) + 1 ) & mask;
+      for ( ;; ) {
+        if ( ( entry = slotGet( pos ) ) == 0 ) {
+          slotSet( last, 0 );
+          return;
+        }
+        long ideal = mix( hashAt( entry - 1 ) ) & mask;
+        if ( last <= pos ? last >= ideal || ideal > pos : last >= ideal && ideal > pos ) {
+          break;
+        }
+        pos = ( pos + 1 ) & mask;
+      }
+      slotSet( last, entry );
+    }
+  }
+
+  // Map
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean containsKey( Object key ) {
+    MapCodec.PayloadBuffer buffer = acquire();
+    try {
+      int keyLength = serialize( buffer, keyType, keyMeta, key );
+      return find( hashOf( key ), buffer, keyLength ) >= 0;
+    } finally {
+      release( buffer );
+    }
+  }
+
+  @Override
+  public Object get( Object key ) {
+    MapCodec.PayloadBuffer buffer = acquire();
+    try {
+      int keyLength = serialize( buffer, keyType, keyMeta, key );
+      long slot = find( hashOf( key ), buffer, keyLength );
+      return slot < 0 ? null : valueAt( slotGet( slot ) - 1 );
+    } finally {
+      release( buffer );
+    }
+  }
+
+  @Override
+  public Object put( Object key, Object value ) {
+    checkWritable();
+    MapCodec.PayloadBuffer buffer = acquire();
+    try {
+      int keyHash = hashOf( key );
+      int keyLength = serialize( buffer, keyType, keyMeta, key );
+      int valueLength = serialize( buffer, valueType, valueMeta, value );
+      long slot = find( keyHash, buffer, keyLength );
+      Object previous = null;
+      if ( slot >= 0 ) {
+        previous = valueAt( slotGet( slot ) - 1 );
+        hash -= PersistentHashMap.entryHash( key, previous );
+      } else {
+        if ( size >= resizeAt ) {
+          rehash();
+          slot = find( keyHash, buffer, keyLength );
+        }
+        slot = -slot - 1;
+        size++;
+      }
+      slotSet( slot, append( keyHash, buffer, keyLength, buffer, valueLength ) + 1 );
+      hash += PersistentHashMap.entryHash( key, value );
+      return previous;
+    } finally {
+      release( buffer );
+    }
+  }
+
+  @Override
+  public Object remove( Object key ) {
+    checkWritable();
+    MapCodec.PayloadBuffer buffer = acquire();
+    try {
+      int keyLength = serialize( buffer, keyType, keyMeta, key );
+      long slot = find( hashOf( key ), buffer, keyLength );
+      if ( slot < 0 ) {
+        return null;
+      }
+      Object previous = valueAt( slotGet( slot ) - 1 );
+      hash -= PersistentHashMap.entryHash( key, previous );
+      removeSlot( slot );
+      return previous;
+    } finally {
+      release( buffer );
+    }
+  }
+
+  @Override
+  public void clear() {
+    checkWritable();
+    chunks.clear();
+    current = null;
+    size = 0;
+    hash = 0;
+    allocateIndex( MIN_CAPACITY );
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet() {
+    if ( entrySet == null ) {
+      entrySet = new AbstractSet<Map.Entry<Object, Object>>() {
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator() {
+          return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+          return size;
+        }
+
+        @Override
+        public void clear() {
+          OffHeapMap.this.clear();
+        }
+      };
+    }
+    return entrySet;
+  }
+
+  private class EntryIterator implements Iterator<Map.Entry<Object, Object>> {
+    private long slot = -1;
+    private long entry;
+
+    EntryIterator() {
+      advance();
+    }
+
+    private void advance() {
+      do {
+        slot++;
+      } while ( slot < capacity && ( entry = slotGet( slot ) ) == 0 );
+    }
+
+    @Override
+    public boolean hasNext() {
+      return slot < capacity;
+    }
+
+    @Override
+    public Map.Entry<Object, Object> next() {
+      if ( slot >= capacity ) {
+        throw new NoSuchElementException();
+      }
+      long address = entry - 1;
+      Map.Entry<Object, Object> next = new RecordEntry( keyAt( address ), valueAt( address ) );
+      advance();
+      return next;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private class RecordEntry extends SimpleEntry<Object, Object> {
+    private static final long serialVersionUID = 1L;
+
+    RecordEntry( Object key, Object value ) {
+      super( key, value );
+    }
+
+    @Override
+    public Object setValue( Object value ) {
+      put( getKey(), value );
+      return super.setValue( value );
+    }
+  }
+
+  /**
+   * Reads a record field straight from its chunk, without copying it to the heap first.
+   */
+  private static class ChunkInputStream extends InputStream {
+    private final ByteBuffer chunk;
+    private int position;
+    private final int end;
+
+    ChunkInputStream( ByteBuffer chunk, int offset, int length ) {
+      this.chunk = chunk;
+      this.position = offset;
+      this.end = offset + length;
+    }
+
+    @Override
+    public int read() {
+      return position < end ? chunk.get( position++ ) & 0xFF : -1;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) {
+      if ( position >= end ) {
+        return -1;
+      }
+      int n = Math.min( len, end - position );
+      for ( int i = 0; i < n; i++ ) {
+        b[off + i] = chunk.get( position++ );
+      }
+      return n;
+    }
+  }
+}
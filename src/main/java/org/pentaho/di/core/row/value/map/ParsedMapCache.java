@@ -0,0 +1,113 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of maps parsed from their textual form, so inputs with few distinct map strings are only parsed once per
+ * distinct string:
+ * <ul>
+ * <li>for indexed storage, the map parsed from every slot of the index;</li>
+ * <li>for normal and binary string storage, a least recently used cache of the last strings parsed.</li>
+ * </ul>
+ * The cached maps are shared and must not be modified; callers hand out copies (see ValueMetaMap.copyMap). The cache
+ * is thread-safe so step copies can share one value metadata.
+ */
+public class ParsedMapCache {
+
+  private final int maxSize;
+  private final LinkedHashMap<String, Map<Object, Object>> recent;
+
+  /** The index the slot maps were parsed from */
+  private Object[] index;
+  private Map<?, ?>[] indexMaps;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxSize
+   *          maximum number of strings kept in the LRU cache
+   */
+  public ParsedMapCache( final int maxSize ) {
+    this.maxSize = maxSize;
+    this.recent = new LinkedHashMap<String, Map<Object, Object>>( 16, 0.75f, true ) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry( Map.Entry<String, Map<Object, Object>> eldest ) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return the map parsed from the string, or null if it isn't cached
+   */
+  public Map<Object, Object> get( String text ) {
+    Map<Object, Object> map;
+    synchronized ( recent ) {
+      map = recent.get( text );
+    }
+    count( map );
+    return map;
+  }
+
+  public void put( String text, Map<Object, Object> map ) {
+    synchronized ( recent ) {
+      recent.put( text, map );
+    }
+  }
+
+  /**
+   * @return the map parsed from the given slot of the index, or null if it hasn't been parsed yet
+   */
+  @SuppressWarnings( "unchecked" )
+  public synchronized Map<Object, Object> get( Object[] index, int slot ) {
+    Map<Object, Object> map = null;
+    if ( index == this.index ) {
+      map = (Map<Object, Object>) indexMaps[slot];
+    }
+    count( map );
+    return map;
+  }
+
+  public synchronized void put( Object[] index, int slot, Map<Object, Object> map ) {
+    if ( index != this.index ) {
+      // A new index (e.g. a new file being read), forget the maps of the previous one
+      this.index = index;
+      indexMaps = new Map<?, ?>[index.length];
+    }
+    indexMaps[slot] = map;
+  }
+
+  private void count( Map<Object, Object> map ) {
+    if ( map == null ) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return the number of strings currently in the LRU cache
+   */
+  public int size() {
+    synchronized ( recent ) {
+      return recent.size();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+}
@@ -0,0 +1,530 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Hash array mapped trie (HAMT) with structural sharing. The map is mutable like any other Map, but snapshot() returns
+ * a copy in constant time: both maps keep sharing the trie nodes, and each of them copies only the path to a node it
+ * modifies afterwards.
+ * <p>
+ * Nodes remember the "edit" token of the map that created them; a map mutates nodes carrying its own token in place and
+ * copies all others. Taking a snapshot gives both maps new tokens, which freezes every node that existed until then.
+ * Null keys and values are supported.
+ * <p>
+ * The hash code is maintained as entries are added and removed, so hashing a map (e.g. when used as a grouping key)
+ * costs O(1). As for the keys of any hash map, values must not be modified while they are in the map.
+ */
+public class PersistentHashMap extends AbstractMap<Object, Object> {
+
+  private static final Object NOT_FOUND = new Object();
+
+  private Node root;
+  private int size;
+  private boolean hasNullKey;
+  private Object nullKeyValue;
+  private Object edit = new Object();
+
+  /** Sum of the hash codes of the entries, as defined by Map.hashCode() */
+  private int hash;
+
+  private transient Set<Map.Entry<Object, Object>> entrySet;
+
+  public PersistentHashMap() {
+  }
+
+  public PersistentHashMap( Map<?, ?> map ) {
+    putAll( map );
+  }
+
+  private PersistentHashMap( Node root, int size, boolean hasNullKey, Object nullKeyValue, int hash ) {
+    this.root = root;
+    this.size = size;
+    this.hasNullKey = hasNullKey;
+    this.nullKeyValue = nullKeyValue;
+    this.hash = hash;
+  }
+
+  /**
+   * @return a copy of this map, sharing all of its structure. Costs O(1), regardless of the size of the map.
+   */
+  public PersistentHashMap snapshot() {
+    edit = new Object();
+    return new PersistentHashMap( root, size, hasNullKey, nullKeyValue, hash );
+  }
+
+  static int entryHash( Object key, Object value ) {
+    return ( key == null ? 0 : key.hashCode() ) ^ ( value == null ? 0 : value.hashCode() );
+  }
+
+  static int hash( Object key ) {
+    int h = key.hashCode();
+    return h ^ ( h >>> 16 );
+  }
+
+  static int bitpos( int hash, int shift ) {
+    return 1 << ( ( hash >>> shift ) & 0x1f );
+  }
+
+  static boolean equal( Object a, Object b ) {
+    return a == b || a.equals( b );
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean containsKey( Object key ) {
+    if ( key == null ) {
+      return hasNullKey;
+    }
+    return root != null && root.find( 0, hash( key ), key, NOT_FOUND ) != NOT_FOUND;
+  }
+
+  @Override
+  public Object get( Object key ) {
+    if ( key == null ) {
+      return hasNullKey ? nullKeyValue : null;
+    }
+    if ( root == null ) {
+      return null;
+    }
+    Object value = root.find( 0, hash( key ), key, NOT_FOUND );
+    return value == NOT_FOUND ? null : value;
+  }
+
+  @Override
+  public Object put( Object key, Object value ) {
+    if ( key == null ) {
+      Object previous = nullKeyValue;
+      if ( !hasNullKey ) {
+        hasNullKey = true;
+        size++;
+      } else {
+        hash -= entryHash( null, previous );
+      }
+      nullKeyValue = value;
+      hash += entryHash( null, value );
+      return previous;
+    }
+    Box box = new Box();
+    root = ( root == null ? BitmapNode.EMPTY : root ).assoc( edit, 0, hash( key ), key, value, box );
+    if ( box.added ) {
+      size++;
+    } else {
+      hash -= entryHash( key, box.previous );
+    }
+    hash += entryHash( key, value );
+    return box.previous;
+  }
+
+  @Override
+  public Object remove( Object key ) {
+    if ( key == null ) {
+      Object previous = nullKeyValue;
+      if ( hasNullKey ) {
+        hasNullKey = false;
+        nullKeyValue = null;
+        size--;
+        hash -= entryHash( null, previous );
+      }
+      return previous;
+    }
+    if ( root == null ) {
+      return null;
+    }
+    Box box = new Box();
+    root = root.without( edit, 0, hash( key ), key, box );
+    if ( box.found ) {
+      size--;
+      hash -= entryHash( key, box.previous );
+    }
+    return box.previous;
+  }
+
+  @Override
+  public void clear() {
+    root = null;
+    size = 0;
+    hasNullKey = false;
+    nullKeyValue = null;
+    hash = 0;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet() {
+    if ( entrySet == null ) {
+      entrySet = new AbstractSet<Map.Entry<Object, Object>>() {
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator() {
+          return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+          return size;
+        }
+
+        @Override
+        public void clear() {
+          PersistentHashMap.this.clear();
+        }
+      };
+    }
+    return entrySet;
+  }
+
+  /**
+   * Result of an update: whether the key was found or added and its previous value.
+   */
+  static final class Box {
+    boolean added;
+    boolean found;
+    Object previous;
+  }
+
+  abstract static class Node {
+    /**
+     * Key/value pairs; a null key marks a pair whose value is a child node
+     */
+    Object[] array;
+    Object edit;
+
+    abstract Object find( int shift, int hash, Object key, Object notFound );
+
+    abstract Node assoc( Object edit, int shift, int hash, Object key, Object value, Box box );
+
+    abstract Node without( Object edit, int shift, int hash, Object key, Box box );
+
+    /**
+     * Sets an array element, in place if this node is owned by the editing map, on a copy otherwise.
+     */
+    Node editAndSet( Object edit, int i, Object o ) {
+      Node node = ensureEditable( edit );
+      node.array[i] = o;
+      return node;
+    }
+
+    abstract Node ensureEditable( Object edit );
+  }
+
+  static final class BitmapNode extends Node {
+    static final BitmapNode EMPTY = new BitmapNode( null, 0, new Object[0] );
+
+    int bitmap;
+
+    BitmapNode( Object edit, int bitmap, Object[] array ) {
+      this.edit = edit;
+      this.bitmap = bitmap;
+      this.array = array;
+    }
+
+    int index( int bit ) {
+      return Integer.bitCount( bitmap & ( bit - 1 ) );
+    }
+
+    @Override
+    Object find( int shift, int hash, Object key, Object notFound ) {
+      int bit = bitpos( hash, shift );
+      if ( ( bitmap & bit ) == 0 ) {
+        return notFound;
+      }
+      int idx = index( bit );
+      Object keyOrNull = array[2 * idx];
+      Object valueOrNode = array[2 * idx + 1];
+      if ( keyOrNull == null ) {
+        return ( (Node) valueOrNode ).find( shift + 5, hash, key, notFound );
+      }
+      return equal( key, keyOrNull ) ? valueOrNode : notFound;
+    }
+
+    @Override
+    Node assoc( Object edit, int shift, int hash, Object key, Object value, Box box ) {
+      int bit = bitpos( hash, shift );
+      int idx = index( bit );
+      if ( ( bitmap & bit ) != 0 ) {
+        Object keyOrNull = array[2 * idx];
+        Object valueOrNode = array[2 * idx + 1];
+        if ( keyOrNull == null ) {
+          Node child = ( (Node) valueOrNode ).assoc( edit, shift + 5, hash, key, value, box );
+          return child == valueOrNode ? this : editAndSet( edit, 2 * idx + 1, child );
+        }
+        if ( equal( key, keyOrNull ) ) {
+          box.found = true;
+          box.previous = valueOrNode;
+          return valueOrNode == value ? this : editAndSet( edit, 2 * idx + 1, value );
+        }
+        // Two keys share this position: push both down into a new child node
+        box.added = true;
+        Node child = createNode( edit, shift + 5, keyOrNull, valueOrNode, hash, key, value );
+        BitmapNode node = (BitmapNode) ensureEditable( edit );
+        node.array[2 * idx] = null;
+        node.array[2 * idx + 1] = child;
+        return node;
+      }
+
+      box.added = true;
+      int n = Integer.bitCount( bitmap );
+      Object[] newArray = new Object[2 * ( n + 1 )];
+      System.arraycopy( array, 0, newArray, 0, 2 * idx );
+      newArray[2 * idx] = key;
+      newArray[2 * idx + 1] = value;
+      System.arraycopy( array, 2 * idx, newArray, 2 * ( idx + 1 ), 2 * ( n - idx ) );
+      if ( edit != null && edit == this.edit ) {
+        this.array = newArray;
+        this.bitmap |= bit;
+        return this;
+      }
+      return new BitmapNode( edit, bitmap | bit, newArray );
+    }
+
+    @Override
+    Node without( Object edit, int shift, int hash, Object key, Box box ) {
+      int bit = bitpos( hash, shift );
+      if ( ( bitmap & bit ) == 0 ) {
+        return this;
+      }
+      int idx = index( bit );
+      Object keyOrNull = array[2 * idx];
+      Object valueOrNode = array[2 * idx + 1];
+      if ( keyOrNull == null ) {
+        Node child = ( (Node) valueOrNode ).without( edit, shift + 5, hash, key, box );
+        if ( child == valueOrNode ) {
+          return this;
+        }
+        if ( child != null ) {
+          return editAndSet( edit, 2 * idx + 1, child );
+        }
+      } else if ( equal( key, keyOrNull ) ) {
+        box.found = true;
+        box.previous = valueOrNode;
+      } else {
+        return this;
+      }
+
+      // Remove the pair at idx
+      if ( bitmap == bit ) {
+        return null;
+      }
+      int n = Integer.bitCount( bitmap );
+      Object[] newArray = new Object[2 * ( n - 1 )];
+      System.arraycopy( array, 0, newArray, 0, 2 * idx );
+      System.arraycopy( array, 2 * ( idx + 1 ), newArray, 2 * idx, 2 * ( n - idx - 1 ) );
+      if ( edit != null && edit == this.edit ) {
+        this.array = newArray;
+        this.bitmap ^= bit;
+        return this;
+      }
+      return new BitmapNode( edit, bitmap ^ bit, newArray );
+    }
+
+    @Override
+    Node ensureEditable( Object edit ) {
+      if ( edit != null && edit == this.edit ) {
+        return this;
+      }
+      return new BitmapNode( edit, bitmap, array.clone() );
+    }
+
+    static Node createNode( Object edit, int shift, Object key1, Object value1, int hash2, Object key2, Object value2 ) {
+      int hash1 = hash( key1 );
+      if ( hash1 == hash2 ) {
+        return new CollisionNode( edit, hash1, new Object[] { key1, value1, key2, value2 } );
+      }
+      Box box = new Box();
+      return EMPTY.assoc( edit, shift, hash1, key1, value1, box ).assoc( edit, shift, hash2, key2, value2, box );
+    }
+  }
+
+  /**
+   * Leaf holding keys with identical hash codes.
+   */
+  static final class CollisionNode extends Node {
+    final int hash;
+
+    CollisionNode( Object edit, int hash, Object[] array ) {
+      this.edit = edit;
+      this.hash = hash;
+      this.array = array;
+    }
+
+    int indexOf( Object key ) {
+      for ( int i = 0; i < array.length; i += 2 ) {
+        if ( equal( key, array[i] ) ) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    Object find( int shift, int hash, Object key, Object notFound ) {
+      if ( hash != this.hash ) {
+        return notFound;
+      }
+      int i = indexOf( key );
+      return i < 0 ? notFound : array[i + 1];
+    }
+
+    @Override
+    Node assoc( Object edit, int shift, int hash, Object key, Object value, Box box ) {
+      if ( hash != this.hash ) {
+        // Nest this node in a bitmap node and add the new key next to it
+        return new BitmapNode( edit, bitpos( this.hash, shift ), new Object[] { null, this } ).assoc( edit, shift, hash,
+            key, value, box );
+      }
+      int i = indexOf( key );
+      if ( i >= 0 ) {
+        box.found = true;
+        box.previous = array[i + 1];
+        return array[i + 1] == value ? this : editAndSet( edit, i + 1, value );
+      }
+      box.added = true;
+      Object[] newArray = new Object[array.length + 2];
+      System.arraycopy( array, 0, newArray, 0, array.length );
+      newArray[array.length] = key;
+      newArray[array.length + 1] = value;
+      if ( edit != null && edit == this.edit ) {
+        this.array = newArray;
+        return this;
+      }
+      return new CollisionNode( edit, hash, newArray );
+    }
+
+    @Override
+    Node without( Object edit, int shift, int hash, Object key, Box box ) {
+      int i = hash == this.hash ? indexOf( key ) : -1;
+      if ( i < 0 ) {
+        return this;
+      }
+      box.found = true;
+      box.previous = array[i + 1];
+      if ( array.length == 2 ) {
+        return null;
+      }
+      Object[] newArray = new Object[array.length - 2];
+      System.arraycopy( array, 0, newArray, 0, i );
+      System.arraycopy( array, i + 2, newArray, i, array.length - i - 2 );
+      if ( edit != null && edit == this.edit ) {
+        this.array = newArray;
+        return this;
+      }
+      return new CollisionNode( edit, hash, newArray );
+    }
+
+    @Override
+    Node ensureEditable( Object edit ) {
+      if ( edit != null && edit == this.edit ) {
+        return this;
+      }
+      return new CollisionNode( edit, hash, array.clone() );
+    }
+  }
+
+  /**
+   * Depth-first walk over the trie. Modifications through the iterator freeze the current nodes first, so the arrays
+   * being walked are never changed underneath it.
+   */
+  private class EntryIterator implements Iterator<Map.Entry<Object, Object>> {
+    // 32-bit hashes, 5 bits per level: at most 7 bitmap levels plus a collision node
+    private final Object[][] arrays = new Object[8][];
+    private final int[] positions = new int[8];
+    private int depth = -1;
+    private boolean nullKeyPending = hasNullKey;
+    private Object nextKey;
+    private Object nextValue;
+    private boolean hasNext;
+    private Object lastKey = NOT_FOUND;
+
+    EntryIterator() {
+      if ( root != null ) {
+        depth = 0;
+        arrays[0] = root.array;
+        positions[0] = 0;
+      }
+      advance();
+    }
+
+    private void advance() {
+      if ( nullKeyPending ) {
+        nullKeyPending = false;
+        nextKey = null;
+        nextValue = nullKeyValue;
+        hasNext = true;
+        return;
+      }
+      while ( depth >= 0 ) {
+        Object[] array = arrays[depth];
+        int pos = positions[depth];
+        if ( pos >= array.length ) {
+          depth--;
+          continue;
+        }
+        positions[depth] = pos + 2;
+        if ( array[pos] == null ) {
+          depth++;
+          arrays[depth] = ( (Node) array[pos + 1] ).array;
+          positions[depth] = 0;
+        } else {
+          nextKey = array[pos];
+          nextValue = array[pos + 1];
+          hasNext = true;
+          return;
+        }
+      }
+      hasNext = false;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return hasNext;
+    }
+
+    @Override
+    public Map.Entry<Object, Object> next() {
+      if ( !hasNext ) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<Object, Object> entry = new TrieEntry( nextKey, nextValue );
+      lastKey = nextKey;
+      advance();
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      if ( lastKey == NOT_FOUND ) {
+        throw new IllegalStateException();
+      }
+      edit = new Object();
+      PersistentHashMap.this.remove( lastKey );
+      lastKey = NOT_FOUND;
+    }
+  }
+
+  private class TrieEntry extends SimpleEntry<Object, Object> {
+    private static final long serialVersionUID = 1L;
+
+    TrieEntry( Object key, Object value ) {
+      super( key, value );
+    }
+
+    @Override
+    public Object setValue( Object value ) {
+      edit = new Object();
+      put( getKey(), value );
+      return super.setValue( value );
+    }
+  }
+}
@@ -0,0 +1,386 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Base class for the open-addressing maps specialized on primitive keys and/or values. Entries whose key or value
+ * doesn't fit the primitive table (nulls, other types) are kept in a small overflow map, so the full Map contract is
+ * honoured, including removal through the iterators of the key, value and entry views.
+ */
+public abstract class PrimitiveMap extends AbstractMap<Object, Object> implements Cloneable {
+
+  static final float LOAD_FACTOR = 0.7f;
+  static final int MIN_CAPACITY = 8;
+
+  /** Number of entries in the primitive table */
+  protected int size;
+
+  /** Entries that can't be stored in the primitive table, null until needed */
+  protected Map<Object, Object> overflow;
+
+  /** Cached hash code of the entries, valid until the map is modified */
+  private int hash;
+  private boolean hashed;
+
+  private transient Set<Map.Entry<Object, Object>> entrySet;
+
+  /**
+   * Returns a map specialized for the given key and value types, or null if there is no specialization.
+   */
+  public static PrimitiveMap forTypes( int keyType, int valueType, int expectedSize ) {
+    if ( keyType == ValueMetaInterface.TYPE_INTEGER ) {
+      switch ( valueType ) {
+        case ValueMetaInterface.TYPE_INTEGER:
+          return new LongLongMap( expectedSize );
+        case ValueMetaInterface.TYPE_NUMBER:
+          return new LongDoubleMap( expectedSize );
+        default:
+          return new LongObjectMap( expectedSize );
+      }
+    }
+    if ( valueType == ValueMetaInterface.TYPE_INTEGER ) {
+      return new ObjectLongMap( expectedSize );
+    }
+    return null;
+  }
+
+  static int capacityFor( int expectedSize ) {
+    int capacity = MIN_CAPACITY;
+    while ( capacity * LOAD_FACTOR <= expectedSize ) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  static int mix( long key ) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) ( h ^ ( h >>> 32 ) );
+  }
+
+  static int mix( Object key ) {
+    int h = key.hashCode() * 0x9E3779B9;
+    return h ^ ( h >>> 16 );
+  }
+
+  /**
+   * @return true if the key can be stored in the primitive table
+   */
+  protected abstract boolean isTableKey( Object key );
+
+  /**
+   * @return true if the value can be stored in the primitive table
+   */
+  protected abstract boolean isTableValue( Object value );
+
+  /**
+   * @return the slot of a table key, or -1 if it's not in the table
+   */
+  protected abstract int slotOf( Object key );
+
+  /**
+   * Puts a table key/value pair in the table.
+   *
+   * @return the previous value or null
+   */
+  protected abstract Object putTable( Object key, Object value );
+
+  protected abstract void removeSlot( int slot );
+
+  /**
+   * @return the (exclusive) upper bound of the slot numbers
+   */
+  protected abstract int slotLimit();
+
+  /**
+   * @return the number of slots the probe sequences wrap around, slots past it (if any) are never shifted by
+   *         removeSlot()
+   */
+  protected int tableSlots() {
+    return slotLimit();
+  }
+
+  protected abstract boolean isUsed( int slot );
+
+  protected abstract Object keyAt( int slot );
+
+  protected abstract Object valueAt( int slot );
+
+  protected abstract void clearTable();
+
+  /**
+   * Replaces the table arrays of a freshly cloned map with copies of their own.
+   */
+  protected abstract void copyArrays();
+
+  /**
+   * @return a copy of this map, made by copying the table arrays rather than re-inserting every entry
+   */
+  public PrimitiveMap copy() {
+    try {
+      PrimitiveMap copy = (PrimitiveMap) clone();
+      copy.entrySet = null;
+      copy.overflow = overflow == null ? null : new HashMap<Object, Object>( overflow );
+      copy.copyArrays();
+      return copy;
+    } catch ( CloneNotSupportedException e ) {
+      throw new IllegalStateException( e );
+    }
+  }
+
+  /**
+   * Must be called by every method modifying the entries, to drop the cached hash code.
+   */
+  protected final void modified() {
+    hashed = false;
+  }
+
+  /**
+   * Same as AbstractMap.hashCode(), computed once until the map is modified.
+   */
+  @Override
+  public int hashCode() {
+    if ( !hashed ) {
+      hash = super.hashCode();
+      hashed = true;
+    }
+    return hash;
+  }
+
+  protected boolean hasOverflow() {
+    return overflow != null && !overflow.isEmpty();
+  }
+
+  protected Map<Object, Object> overflow() {
+    if ( overflow == null ) {
+      overflow = new HashMap<Object, Object>();
+    }
+    return overflow;
+  }
+
+  @Override
+  public int size() {
+    return overflow == null ? size : size + overflow.size();
+  }
+
+  @Override
+  public boolean containsKey( Object key ) {
+    if ( isTableKey( key ) && slotOf( key ) >= 0 ) {
+      return true;
+    }
+    return overflow != null && overflow.containsKey( key );
+  }
+
+  @Override
+  public Object get( Object key ) {
+    if ( isTableKey( key ) ) {
+      int slot = slotOf( key );
+      if ( slot >= 0 ) {
+        return valueAt( slot );
+      }
+    }
+    return overflow == null ? null : overflow.get( key );
+  }
+
+  @Override
+  public Object put( Object key, Object value ) {
+    modified();
+    Object previous = null;
+    if ( isTableKey( key ) ) {
+      if ( isTableValue( value ) ) {
+        if ( hasOverflow() ) {
+          previous = overflow.remove( key );
+        }
+        Object tablePrevious = putTable( key, value );
+        return tablePrevious != null ? tablePrevious : previous;
+      }
+      int slot = slotOf( key );
+      if ( slot >= 0 ) {
+        previous = valueAt( slot );
+        removeSlot( slot );
+      }
+    }
+    Object overflowPrevious = overflow().put( key, value );
+    return previous != null ? previous : overflowPrevious;
+  }
+
+  @Override
+  public Object remove( Object key ) {
+    modified();
+    if ( isTableKey( key ) ) {
+      int slot = slotOf( key );
+      if ( slot >= 0 ) {
+        Object previous = valueAt( slot );
+        removeSlot( slot );
+        return previous;
+      }
+    }
+    return overflow == null ? null : overflow.remove( key );
+  }
+
+  @Override
+  public void clear() {
+    modified();
+    clearTable();
+    size = 0;
+    overflow = null;
+  }
+
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet() {
+    if ( entrySet == null ) {
+      entrySet = new AbstractSet<Map.Entry<Object, Object>>() {
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator() {
+          return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+          return PrimitiveMap.this.size();
+        }
+
+        @Override
+        public boolean contains( Object o ) {
+          if ( !( o instanceof Map.Entry ) ) {
+            return false;
+          }
+          Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+          Object key = entry.getKey();
+          if ( !containsKey( key ) ) {
+            return false;
+          }
+          Object value = get( key );
+          return value == null ? entry.getValue() == null : value.equals( entry.getValue() );
+        }
+
+        @Override
+        public void clear() {
+          PrimitiveMap.this.clear();
+        }
+      };
+    }
+    return entrySet;
+  }
+
+  private class EntryIterator implements Iterator<Map.Entry<Object, Object>> {
+    private int slot = -1;
+    private final int limit = slotLimit();
+    private Iterator<Map.Entry<Object, Object>> overflowIterator;
+
+    /** Slot of the entry returned last, -1 if there is none in the table */
+    private int lastSlot = -1;
+    private boolean lastInOverflow;
+
+    /** Keys returned already that a removal may have shifted to slots not iterated yet, null if none */
+    private Set<Object> returned;
+
+    EntryIterator() {
+      advance();
+    }
+
+    private void advance() {
+      do {
+        slot++;
+      } while ( slot < limit && ( !isUsed( slot ) || ( returned != null && returned.contains( keyAt( slot ) ) ) ) );
+      if ( slot >= limit && overflow != null && overflowIterator == null ) {
+        overflowIterator = overflow.entrySet().iterator();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return slot < limit || ( overflowIterator != null && overflowIterator.hasNext() );
+    }
+
+    @Override
+    public Map.Entry<Object, Object> next() {
+      if ( slot < limit ) {
+        Map.Entry<Object, Object> entry = new SlotEntry( keyAt( slot ), valueAt( slot ) );
+        lastSlot = slot;
+        lastInOverflow = false;
+        advance();
+        return entry;
+      }
+      if ( overflowIterator == null ) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<Object, Object> entry = overflowIterator.next();
+      lastSlot = -1;
+      lastInOverflow = true;
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      if ( lastInOverflow ) {
+        modified();
+        overflowIterator.remove();
+        lastInOverflow = false;
+        return;
+      }
+      if ( lastSlot < 0 ) {
+        throw new IllegalStateException();
+      }
+      int removed = lastSlot;
+      lastSlot = -1;
+      List<Object> wrapped = wrappedKeys( removed );
+      modified();
+      removeSlot( removed );
+      if ( wrapped != null ) {
+        if ( returned == null ) {
+          returned = new HashSet<Object>();
+        }
+        returned.addAll( wrapped );
+      }
+      // The entries following the removed one in its probe sequence may have been shifted back, into its slot on
+      slot = removed - 1;
+      advance();
+    }
+
+    /**
+     * @return the keys at the start of the table that the probe sequence of the slot wraps around to, which have been
+     *         returned already and may be shifted past the slot by its removal; null if the sequence doesn't wrap
+     */
+    private List<Object> wrappedKeys( int removed ) {
+      int end = tableSlots();
+      if ( removed >= end ) {
+        return null;
+      }
+      for ( int i = removed + 1; i < end; i++ ) {
+        if ( !isUsed( i ) ) {
+          return null;
+        }
+      }
+      List<Object> keys = new ArrayList<Object>();
+      for ( int i = 0; i < removed && isUsed( i ); i++ ) {
+        keys.add( keyAt( i ) );
+      }
+      return keys;
+    }
+  }
+
+  private class SlotEntry extends SimpleEntry<Object, Object> {
+    private static final long serialVersionUID = 1L;
+
+    SlotEntry( Object key, Object value ) {
+      super( key, value );
+    }
+
+    @Override
+    public Object setValue( Object value ) {
+      put( getKey(), value );
+      return super.setValue( value );
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact immutable map for maps built once and only read afterwards: keys and values are held in parallel arrays
+ * ordered by key hash code, and looked up by binary search on the hash codes. There are no per-entry objects, so the
+ * map retains a fraction of the heap of a hash map, and being immutable it is shared rather than copied when cloned.
+ * <p>
+ * Mutators throw UnsupportedOperationException.
+ */
+public final class SortedArrayMap extends AbstractMap<Object, Object> {
+
+  private static final SortedArrayMap EMPTY = new SortedArrayMap( new int[0], new Object[0], new Object[0] );
+
+  private final int[] hashes;
+  private final Object[] keys;
+  private final Object[] values;
+  private final int hash;
+
+  private transient Set<Map.Entry<Object, Object>> entrySet;
+
+  private SortedArrayMap( int[] hashes, Object[] keys, Object[] values ) {
+    this.hashes = hashes;
+    this.keys = keys;
+    this.values = values;
+    int h = 0;
+    for ( int i = 0; i < keys.length; i++ ) {
+      h += hashes[i] ^ ( values[i] == null ? 0 : values[i].hashCode() );
+    }
+    this.hash = h;
+  }
+
+  /**
+   * @return an immutable copy of the map, the map itself if it's a SortedArrayMap already
+   */
+  public static SortedArrayMap copyOf( Map<?, ?> map ) {
+    if ( map instanceof SortedArrayMap ) {
+      return (SortedArrayMap) map;
+    }
+    int size = map.size();
+    Object[] keys = new Object[size];
+    Object[] values = new Object[size];
+    int i = 0;
+    for ( Map.Entry<?, ?> entry : map.entrySet() ) {
+      keys[i] = entry.getKey();
+      values[i++] = entry.getValue();
+    }
+    return build( keys, values, i );
+  }
+
+  /**
+   * Builds a map from distinct keys and their values; the arrays are reordered and kept by the map.
+   *
+   * @param size
+   *          the number of entries in the arrays
+   */
+  static SortedArrayMap build( Object[] keys, Object[] values, int size ) {
+    if ( size == 0 ) {
+      return EMPTY;
+    }
+    // Sort positions by hash code (high int) in one primitive sort; already sorted input is cheap to sort
+    long[] order = new long[size];
+    for ( int i = 0; i < size; i++ ) {
+      order[i] = ( (long) hashOf( keys[i] ) << 32 ) | i;
+    }
+    Arrays.sort( order );
+    int[] sortedHashes = new int[size];
+    Object[] sortedKeys = new Object[size];
+    Object[] sortedValues = new Object[size];
+    for ( int i = 0; i < size; i++ ) {
+      int position = (int) order[i];
+      sortedHashes[i] = (int) ( order[i] >> 32 );
+      sortedKeys[i] = keys[position];
+      sortedValues[i] = values[position];
+    }
+    return new SortedArrayMap( sortedHashes, sortedKeys, sortedValues );
+  }
+
+  private static int hashOf( Object key ) {
+    return key == null ? 0 : key.hashCode();
+  }
+
+  private int indexOf( Object key ) {
+    int h = hashOf( key );
+    int i = Arrays.binarySearch( hashes, h );
+    if ( i < 0 ) {
+      return -1;
+    }
+    // Several keys may share the hash code, scan the whole run
+    while ( i > 0 && hashes[i - 1] == h ) {
+      i--;
+    }
+    for ( ; i < hashes.length && hashes[i] == h; i++ ) {
+      Object k = keys[i];
+      if ( k == key || ( k != null && k.equals( key ) ) ) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public int size() {
+    return keys.length;
+  }
+
+  @Override
+  public boolean containsKey( Object key ) {
+    return indexOf( key ) >= 0;
+  }
+
+  @Override
+  public Object get( Object key ) {
+    int i = indexOf( key );
+    return i < 0 ? null : values[i];
+  }
+
+  @Override
+  public Object put( Object key, Object value ) {
+    throw new UnsupportedOperationException( "The map is immutable" );
+  }
+
+  @Override
+  public Object remove( Object key ) {
+    throw new UnsupportedOperationException( "The map is immutable" );
+  }
+
+  @Override
+  public void putAll( Map<? extends Object, ? extends Object> m ) {
+    throw new UnsupportedOperationException( "The map is immutable" );
+  }
+
+  @Override
+  public void clear() {
+    throw new UnsupportedOperationException( "The map is immutable" );
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet() {
+    if ( entrySet == null ) {
+      entrySet = new AbstractSet<Map.Entry<Object, Object>>() {
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator() {
+          return new Iterator<Map.Entry<Object, Object>>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+              return next < keys.length;
+            }
+
+            @Override
+            public Map.Entry<Object, Object> next() {
+              if ( next >= keys.length ) {
+                throw new NoSuchElementException();
+              }
+              Map.Entry<Object, Object> entry = new SimpleImmutableEntry<Object, Object>( keys[next], values[next] );
+              next++;
+              return entry;
+            }
+
+            @Override
+            public void remove() {
+              throw new UnsupportedOperationException( "The map is immutable" );
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return keys.length;
+        }
+      };
+    }
+    return entrySet;
+  }
+}
@@ -0,0 +1,93 @@
+package org.pentaho.di.core.row.value.map;
+
+import java.math.BigDecimal;
+
+import org.pentaho.di.core.exception.KettlePluginException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+import org.pentaho.di.core.row.value.ValueMetaMap;
+
+/**
+ * Converts the keys or values parsed from the textual form of a map to the type of the key/value metadata of the map.
+ * <p>
+ * Strings, and Integer, Number, BigNumber and Boolean values without a conversion mask, are converted directly, nested
+ * maps are parsed by the nested map metadata. Other values go through the metadata itself, using a String copy of it as
+ * storage metadata (the same way the text file steps convert their fields). As Kettle's formatters aren't thread-safe,
+ * those conversions are serialized, so one converter can be shared by all copies of a step.
+ */
+public class StringValueConverter {
+
+  private final ValueMetaInterface meta;
+  private final int type;
+  private final boolean direct;
+
+  /** String metadata with the conversion mask etc. of the target metadata, null if all conversions are direct */
+  private final ValueMetaInterface storageMeta;
+
+  public StringValueConverter( ValueMetaInterface meta ) throws KettleValueException {
+    this.meta = meta;
+    this.type = meta.getType();
+    String mask = meta.getConversionMask();
+    this.direct = type == ValueMetaInterface.TYPE_STRING || mask == null || mask.length() == 0;
+
+    if ( type == ValueMetaInterface.TYPE_STRING ) {
+      storageMeta = null;
+    } else {
+      try {
+        storageMeta = ValueMetaFactory.cloneValueMeta( meta, ValueMetaInterface.TYPE_STRING );
+      } catch ( KettlePluginException e ) {
+        throw new KettleValueException( meta.toStringMeta() + " : Unable to create String storage metadata", e );
+      }
+    }
+  }
+
+  public ValueMetaInterface getValueMeta() {
+    return meta;
+  }
+
+  /**
+   * @return the token converted to the type of the metadata, null for an empty token of a non-String type
+   */
+  public Object convert( String token ) throws KettleValueException {
+    if ( type == ValueMetaInterface.TYPE_STRING ) {
+      return token;
+    }
+    if ( token == null || token.length() == 0 ) {
+      return null;
+    }
+    if ( meta instanceof ValueMetaMap ) {
+      // Nested map: parsed by the nested metadata, with its own separators and cache
+      return ( (ValueMetaMap) meta ).getMap( token );
+    }
+    if ( direct ) {
+      try {
+        switch ( type ) {
+          case ValueMetaInterface.TYPE_INTEGER:
+            return Long.valueOf( token );
+          case ValueMetaInterface.TYPE_NUMBER:
+            return Double.valueOf( token );
+          case ValueMetaInterface.TYPE_BIGNUMBER:
+            return new BigDecimal( token );
+          case ValueMetaInterface.TYPE_BOOLEAN:
+            return Boolean.valueOf( isTrue( token ) );
+          default:
+            break;
+        }
+      } catch ( NumberFormatException e ) {
+        // Not a plain number, let the metadata have a go (and report the error if it can't be converted)
+      }
+    }
+    synchronized ( storageMeta ) {
+      return meta.convertData( storageMeta, token );
+    }
+  }
+
+  /**
+   * Same as the String to Boolean conversion of ValueMetaBase: Y, YES, TRUE and 1 are true.
+   */
+  private static boolean isTrue( String token ) {
+    return "Y".equalsIgnoreCase( token ) || "YES".equalsIgnoreCase( token ) || "TRUE".equalsIgnoreCase( token )
+        || "1".equals( token );
+  }
+}
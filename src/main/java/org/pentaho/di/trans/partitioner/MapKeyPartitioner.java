@@ -0,0 +1,200 @@
+/*******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2012 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.partitioner;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.annotations.PartitionerPlugin;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaMap;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.repository.ObjectId;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.BasePartitioner;
+import org.pentaho.di.trans.Partitioner;
+import org.w3c.dom.Node;
+
+/**
+ * Partitions rows by a map field: by the value of a given key in the map, or by the content of the whole map if no key
+ * is given. Rows whose maps agree on the key (or are equal) go to the same partition, whatever the class or storage of
+ * the maps. The hash comes from the hash codes of the value or map, which map values of this plugin maintain or cache,
+ * so rows are neither converted to strings nor copied.
+ */
+@PartitionerPlugin(
+    id = "MapKeyPartitioner",
+    name = "Map key hash",
+    description = "Partitions rows by the value of a key in a map field, or by the content of the whole map",
+    i18nPackageName = "org.pentaho.di.trans.partitioner")
+public class MapKeyPartitioner extends BasePartitioner
+{
+  private static Class<?> PKG = MapKeyPartitioner.class; // for i18n purposes, needed by Translator2!!   $NON-NLS-1$
+
+  private String fieldName;
+  private String keyName;
+
+  protected int partitionColumnIndex = -1;
+  protected ValueMetaMap mapMeta;
+
+  /** The key converted to the key type of the map, resolved with the map field */
+  protected Object key;
+
+  public MapKeyPartitioner() {
+    super();
+  }
+
+  public Partitioner getInstance() {
+    Partitioner partitioner = new MapKeyPartitioner();
+    partitioner.setId(getId());
+    partitioner.setDescription(getDescription());
+    return partitioner;
+  }
+
+  public MapKeyPartitioner clone() {
+    MapKeyPartitioner mapKeyPartitioner = (MapKeyPartitioner) super.clone();
+    mapKeyPartitioner.fieldName = fieldName;
+    mapKeyPartitioner.keyName = keyName;
+    mapKeyPartitioner.partitionColumnIndex = -1;
+    mapKeyPartitioner.mapMeta = null;
+    mapKeyPartitioner.key = null;
+    return mapKeyPartitioner;
+  }
+
+  public String getDialogClassName() {
+    return "org.pentaho.di.ui.trans.partitioner.MapKeyPartitionerDialog";
+  }
+
+  public int getPartition(RowMetaInterface rowMeta, Object[] row) throws KettleException {
+    init(rowMeta);
+
+    if (partitionColumnIndex < 0) {
+      partitionColumnIndex = rowMeta.indexOfValue(fieldName);
+      if (partitionColumnIndex < 0) {
+        throw new KettleStepException(BaseMessages.getString(PKG, "MapKeyPartitioner.Exception.FieldNotFound", fieldName, rowMeta.toString()));
+      }
+      ValueMetaInterface valueMeta = rowMeta.getValueMeta(partitionColumnIndex);
+      if (!(valueMeta instanceof ValueMetaMap)) {
+        throw new KettleStepException(BaseMessages.getString(PKG, "MapKeyPartitioner.Exception.FieldNotAMap", fieldName));
+      }
+      mapMeta = (ValueMetaMap) valueMeta;
+      if (!Const.isEmpty(keyName)) {
+        key = mapMeta.getKeyConverter().convert(keyName);
+      }
+    }
+
+    int hash;
+    Object valueData = row[partitionColumnIndex];
+    if (Const.isEmpty(keyName)) {
+      hash = mapMeta.hashCode(valueData);
+    } else {
+      Map<Object, Object> map = mapMeta.getMap(valueData);
+      hash = map == null ? 0 : hashOf(map.get(key));
+    }
+    return (mix(hash) & Integer.MAX_VALUE) % nrPartitions;
+  }
+
+  /**
+   * @return a hash code of the value that is the same on every server: binary values are hashed by content
+   */
+  private static int hashOf(Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof byte[]) {
+      return Arrays.hashCode((byte[]) value);
+    }
+    return value.hashCode();
+  }
+
+  /**
+   * Spreads the bits of the hash code, so keys that differ only in their high bits (e.g. whole Doubles) or by
+   * multiples of the number of partitions still go to different partitions.
+   */
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    return h ^ (h >>> 16);
+  }
+
+  public String getDescription() {
+    String description = BaseMessages.getString(PKG, "MapKeyPartitioner.Description");
+    if (!Const.isEmpty(fieldName)) {
+      description += "(" + fieldName + (Const.isEmpty(keyName) ? "" : "[" + keyName + "]") + ")";
+    }
+    return description;
+  }
+
+  public String getXML() {
+    StringBuffer xml = new StringBuffer(150);
+    xml.append("           ").append(XMLHandler.addTagValue("field_name", fieldName));
+    xml.append("           ").append(XMLHandler.addTagValue("map_key", keyName));
+    return xml.toString();
+  }
+
+  public void loadXML(Node partitioningMethodNode) throws KettleXMLException {
+    fieldName = XMLHandler.getTagValue(partitioningMethodNode, "field_name");
+    keyName = XMLHandler.getTagValue(partitioningMethodNode, "map_key");
+  }
+
+  public void saveRep(Repository rep, ObjectId id_transformation, ObjectId id_step) throws KettleException {
+    rep.saveStepAttribute(id_transformation, id_step, "PARTITIONING_FIELDNAME", fieldName);
+    rep.saveStepAttribute(id_transformation, id_step, "PARTITIONING_MAP_KEY", keyName);
+  }
+
+  public void loadRep(Repository rep, ObjectId id_step) throws KettleException {
+    fieldName = rep.getStepAttributeString(id_step, "PARTITIONING_FIELDNAME");
+    keyName = rep.getStepAttributeString(id_step, "PARTITIONING_MAP_KEY");
+  }
+
+  /**
+   * @return the name of the map field
+   */
+  public String getFieldName() {
+    return fieldName;
+  }
+
+  public void setFieldName(String fieldName) {
+    this.fieldName = fieldName;
+    partitionColumnIndex = -1;
+  }
+
+  /**
+   * @return the key whose value decides the partition, null or empty to partition by the whole map
+   */
+  public String getKeyName() {
+    return keyName;
+  }
+
+  public void setKeyName(String keyName) {
+    this.keyName = keyName;
+    partitionColumnIndex = -1;
+  }
+}
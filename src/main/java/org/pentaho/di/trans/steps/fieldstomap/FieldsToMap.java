@@ -22,14 +22,37 @@
 
 package org.pentaho.di.trans.steps.fieldstomap;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.RowSet;
+import org.pentaho.di.core.exception.KettleEOFException;
 import org.pentaho.di.core.exception.KettleException;
-import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaMap;
+import org.pentaho.di.core.row.value.map.FixedKeyMap;
+import org.pentaho.di.core.row.value.map.MapSizeEstimator;
+import org.pentaho.di.core.row.value.map.OffHeapMap;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransAdapter;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStep;
 import org.pentaho.di.trans.step.StepDataInterface;
@@ -50,67 +73,577 @@ public class FieldsToMap extends BaseStep implements StepInterface
 	
 	private Map<Object,Object> map;
 	
+	/** Number of spill files of the hash table of groups, read back one at a time */
+	static final int SPILL_PARTITIONS = 16;
+	
+	/** Estimated heap of a group in the hash table besides its values and map: key, row and table entry */
+	static final int GROUP_OVERHEAD = 96;
+	
 	public FieldsToMap(StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta, Trans trans) {
 		super(stepMeta, stepDataInterface, copyNr, transMeta, trans);
+		data = (FieldsToMapData)stepDataInterface; // other copies may wait for its map before it reads a row
 	}
 	
-	@Override
-  public boolean init(StepMetaInterface smi, StepDataInterface sdi) {
-    if(super.init(smi, sdi)) {
-      map = new HashMap<Object,Object>();
-      return true;
-    }
-    else return false;
-  }
-	
 	public boolean processRow(StepMetaInterface smi, StepDataInterface sdi) throws KettleException {
 	  meta = (FieldsToMapMeta)smi;
 	  data = (FieldsToMapData)sdi;
 	  
 		Object[] r=getRow();    // get row, set busy!
+		if(meta.isPivot()) {
+		  return processPivotRow(r);
+		}
 		if (r==null)  // no more input to be expected...
 		{
-		  // Output map
-		  data.outputRowMeta = new RowMeta();
-		  RowMetaInterface inputRowClone = getInputRowMeta().clone();
-		  // Get output field (map)
-	    meta.getFields(inputRowClone, getStepname(), null, null, this, repository, metaStore);
-	    
-	    // Create a new output row and add the map to it
-	    Object[] outputRowData = new Object[] {map};
-	    
-	    // The Map's valuemeta has been added to inputRowClone at the last index. Add it to the output rowMeta
-  	  data.outputRowMeta.addValueMeta(inputRowClone.getValueMeta(getInputRowMeta().size()));
-  	  
-  	  putRow(data.outputRowMeta, outputRowData);  // copy row to possible alternate rowset(s).
+		  if(data.groups != null) {
+		    putGroups();
+		  } else if((!meta.isMergeCopies() || meta.getGroupFieldNames().length > 0 || mergeCopies()) && map != null) {
+		    putMap();
+		  }
 		  
 	    setOutputDone();
 			return false;
 		}
 		
-		// Add key/value pair to map
-		int keyIndex = getInputRowMeta().indexOfValue(meta.getKeyFieldName());
-    if(keyIndex < 0) {
-      logError(BaseMessages.getString(PKG,"FieldsToMap.Error.NotFound.KeyField"));
-		  setErrors(1L);
-		  setOutputDone();
-      return false;
+		if(first) {
+		  first = false;
+		  data.inputRowMeta = getInputRowMeta();
+		  
+		  data.keyIndex = data.inputRowMeta.indexOfValue(meta.getKeyFieldName());
+		  if(data.keyIndex < 0) {
+		    logError(BaseMessages.getString(PKG,"FieldsToMap.Error.NotFound.KeyField"));
+		    setErrors(1L);
+		    setOutputDone();
+		    return false;
+		  }
+		  data.valueIndex = data.inputRowMeta.indexOfValue(meta.getValueFieldName());
+		  if(data.valueIndex < 0) {
+		    logError(BaseMessages.getString(PKG,"FieldsToMap.Error.NotFound.ValueField"));
+		    setErrors(1L);
+		    setOutputDone();
+		    return false;
+		  }
+		  String[] groupFieldNames = meta.getGroupFieldNames();
+		  data.groupIndexes = new int[groupFieldNames.length];
+		  for(int i = 0; i < groupFieldNames.length; i++) {
+		    data.groupIndexes[i] = data.inputRowMeta.indexOfValue(groupFieldNames[i]);
+		    if(data.groupIndexes[i] < 0) {
+		      logError(BaseMessages.getString(PKG,"FieldsToMap.Error.NotFound.GroupField", groupFieldNames[i]));
+		      setErrors(1L);
+		      setOutputDone();
+		      return false;
+		    }
+		  }
+		  data.keyMeta = data.inputRowMeta.getValueMeta(data.keyIndex);
+		  data.valueMeta = data.inputRowMeta.getValueMeta(data.valueIndex);
+		  
+		  // Get output fields (group fields and map). The Map's valuemeta comes last.
+		  data.outputRowMeta = data.inputRowMeta.clone();
+		  meta.getFields(data.outputRowMeta, getStepname(), null, null, this, repository, metaStore);
+		  data.mapMeta = (ValueMetaMap) data.outputRowMeta.getValueMeta(data.outputRowMeta.size() - 1);
+		  data.mergeFunction = MergeFunction.getInstance(meta.getMergeFunction(), data.mapMeta);
+		  
+		  if(meta.getGroupMode() == FieldsToMapMeta.GROUP_HASH && data.groupIndexes.length > 0) {
+		    data.groups = new HashMap<GroupKey, Object[]>();
+		    long budget = Const.toLong(environmentSubstitute(meta.getMemoryBudget()), Long.parseLong(FieldsToMapMeta.DEFAULT_MEMORY_BUDGET));
+		    data.memoryBudget = budget * 1024 * 1024;
+		  }
+		}
+		
+		if(data.groups != null) {
+		  addToGroup(r);
+		  if (checkFeedback(getLinesRead())) {
+		    if(log.isBasic()) logBasic(BaseMessages.getString(PKG, "FieldsToMap.Log.LineNumber")+getLinesRead()); 
+		    if(log.isDetailed()) logDetailed(getGroupsMessage());
+		  }
+		  return true;
+		}
+		
+		if(map != null && data.groupIndexes.length > 0 && data.inputRowMeta.compare(r, data.groupRow, data.groupIndexes) != 0) {
+		  // The input is sorted on the group fields: the group is complete, pass its map on right away
+		  putMap();
+		}
+		if(map == null) {
+		  map = createMap();
+		  data.groupRow = r;
+		}
+		
+		// Add key/value pair to map, in normal storage so they match the map's key/value metadata
+		Object key = data.keyMeta.convertToNormalStorageType(r[data.keyIndex]);
+		Object value = data.valueMeta.convertToNormalStorageType(r[data.valueIndex]);
+		long bytes = data.mergeFunction.add(map, key, value);
+		if(!(map instanceof OffHeapMap)) {
+		  // Keep the estimate up to date entry by entry rather than measuring the whole map
+		  data.mapHeapSize += bytes;
 		}
-    int valueIndex = getInputRowMeta().indexOfValue(meta.getValueFieldName());
-    if(valueIndex < 0) {
-      logError(BaseMessages.getString(PKG,"FieldsToMap.Error.NotFound.ValueField"));
-      setErrors(1L);
-      setOutputDone();
-      return false;
-    }
-    Object key = r[keyIndex];
-    Object value = r[valueIndex];
-		map.put(key, value);
 		
     if (checkFeedback(getLinesRead())) {
     	if(log.isBasic()) logBasic(BaseMessages.getString(PKG, "FieldsToMap.Log.LineNumber")+getLinesRead()); 
+    	if(log.isDetailed()) logDetailed(getMapSizeMessage());
     }
 			
 		return true;
 	}
+	
+	/**
+	 * Pivot mode: adds the map of the pivot fields to each row, field names as keys. The fields are looked up once, on
+	 * the first row, and the values are put by position in maps of the fixed key set of the field names.
+	 */
+	private boolean processPivotRow(Object[] r) throws KettleException {
+	  if(r == null) {
+	    setOutputDone();
+	    return false;
+	  }
+	  
+	  if(first) {
+	    first = false;
+	    data.inputRowMeta = getInputRowMeta();
+	    data.pivotIndexes = meta.getPivotFieldIndexes(data.inputRowMeta, this);
+	    data.pivotKeys = new String[data.pivotIndexes.length];
+	    for(int i = 0; i < data.pivotIndexes.length; i++) {
+	      data.pivotKeys[i] = data.inputRowMeta.getValueMeta(data.pivotIndexes[i]).getName();
+	    }
+	    data.outputRowMeta = data.inputRowMeta.clone();
+	    meta.getFields(data.outputRowMeta, getStepname(), null, null, this, repository, metaStore);
+	    data.mapMeta = (ValueMetaMap) data.outputRowMeta.getValueMeta(data.outputRowMeta.size() - 1);
+	    data.pivotToString = data.mapMeta.getValueMeta().isString();
+	  }
+	  
+	  Map<Object,Object> rowMap = data.mapMeta.createMap(data.pivotIndexes.length);
+	  FixedKeyMap fixedKeyMap = rowMap instanceof FixedKeyMap ? (FixedKeyMap) rowMap : null;
+	  for(int i = 0; i < data.pivotIndexes.length; i++) {
+	    ValueMetaInterface fieldMeta = data.inputRowMeta.getValueMeta(data.pivotIndexes[i]);
+	    Object fieldData = r[data.pivotIndexes[i]];
+	    Object value = data.pivotToString ? fieldMeta.getString(fieldData) : fieldMeta.convertToNormalStorageType(fieldData);
+	    if(fixedKeyMap != null) {
+	      fixedKeyMap.putAt(i, value);
+	    } else {
+	      rowMap.put(data.pivotKeys[i], value);
+	    }
+	  }
+	  
+	  Object[] outputRowData = RowDataUtil.resizeArray(r, data.outputRowMeta.size());
+	  outputRowData[data.inputRowMeta.size()] = meta.isFreezeMap() ? data.mapMeta.freezeMap(rowMap) : rowMap;
+	  putMapRow(outputRowData, data.mapMeta.estimateHeapSize(outputRowData[data.inputRowMeta.size()]));
+	  
+	  if (checkFeedback(getLinesRead())) {
+	    if(log.isBasic()) logBasic(BaseMessages.getString(PKG, "FieldsToMap.Log.LineNumber")+getLinesRead()); 
+	  }
+	  return true;
+	}
+	
+	private Map<Object,Object> createMap() {
+	  Map<Object,Object> newMap;
+	  // Collected values grow in place, which off-heap storage would have to copy for every row. Off-heap storage
+	  // reserves a whole chunk per map, so it's kept for the single map of the step, not one map per sorted group
+	  int storage = meta.getMapStorage();
+	  if(meta.getMergeFunction() == FieldsToMapMeta.MERGE_COLLECT || data.groupIndexes.length > 0) {
+	    storage = FieldsToMapMeta.STORAGE_HEAP;
+	  }
+	  switch(storage) {
+	    case FieldsToMapMeta.STORAGE_OFF_HEAP:
+	      newMap = new OffHeapMap(data.mapMeta.getKeyMeta(), data.mapMeta.getValueMeta());
+	      break;
+	    case FieldsToMapMeta.STORAGE_MEMORY_MAPPED:
+	      String directory = environmentSubstitute(meta.getStorageDirectory());
+	      if(Const.isEmpty(directory)) {
+	        directory = System.getProperty("java.io.tmpdir");
+	      }
+	      newMap = new OffHeapMap(data.mapMeta.getKeyMeta(), data.mapMeta.getValueMeta(), new File(directory), OffHeapMap.DEFAULT_CHUNK_SIZE);
+	      break;
+	    default:
+	      // Integer/Number keys and values get an unboxed map, anything else a persistent map (cheap to clone)
+	      newMap = data.mapMeta.createMap(0);
+	      break;
+	  }
+	  if(newMap instanceof OffHeapMap) {
+	    data.offHeapMaps.add((OffHeapMap) newMap);
+	  }
+	  data.mapHeapSize = data.mapMeta.estimateHeapSize(newMap);
+	  return newMap;
+	}
+	
+	/**
+	 * Passes the map of the current group on, with the group fields of its first row.
+	 */
+	private void putMap() throws KettleException {
+	  if(map instanceof OffHeapMap || meta.isFreezeMap()) {
+	    // Downstream steps mostly read the map: make it compact and frozen, so it's shared rather than copied until modified
+	    map = data.mapMeta.freezeMap(map);
+	    data.mapHeapSize = data.mapMeta.estimateHeapSize(map);
+	  }
+	  if(log.isDetailed()) logDetailed(getMapSizeMessage());
+	  
+	  // Create a new output row and add the group fields and the map to it
+	  Object[] outputRowData = RowDataUtil.allocateRowData(data.outputRowMeta.size());
+	  for(int i = 0; i < data.groupIndexes.length; i++) {
+	    outputRowData[i] = data.groupRow[data.groupIndexes[i]];
+	  }
+	  outputRowData[data.groupIndexes.length] = map;
+	  map = null;
+	  data.groupRow = null;
+	  putMapRow(outputRowData, data.mapHeapSize);
+	}
+	
+	/**
+	 * Passes an output row on, counting the estimated heap of its map for the bytes in flight.
+	 */
+	private void putMapRow(Object[] outputRowData, long mapBytes) throws KettleException {
+	  data.bytesPut += mapBytes;
+	  data.rowsPut++;
+	  putRow(data.outputRowMeta, outputRowData);  // copy row to possible alternate rowset(s).
+	}
+	
+	/**
+	 * Merges the maps of the step copies as a binary tree: copy c takes over the maps of copies c+1, c+2, c+4... for as
+	 * long as c is a multiple of twice the distance, then hands its map on to a lower copy. The merges of a level run in
+	 * parallel on the threads of the copies, and copy 0 ends up with the map of all rows. Keys found by several copies
+	 * are merged by the merge function as if the rows of higher copies came later.
+	 * 
+	 * @return true if this copy has a map to pass on, false if it handed its map on or the transformation was stopped
+	 */
+	private boolean mergeCopies() throws KettleException {
+	  List<StepInterface> stepInterfaces = getTrans().findStepInterfaces(getStepname());
+	  if(stepInterfaces == null || stepInterfaces.size() < 2) {
+	    return true;
+	  }
+	  FieldsToMap[] copies = new FieldsToMap[stepInterfaces.size()];
+	  for(StepInterface stepInterface : stepInterfaces) {
+	    copies[stepInterface.getCopy()] = (FieldsToMap) stepInterface;
+	  }
+	  
+	  int copy = getCopy();
+	  for(int distance = 1; copy % (2 * distance) == 0 && copy + distance < copies.length; distance *= 2) {
+	    FieldsToMapData copyData = copies[copy + distance].awaitCopyMap(this);
+	    if(copyData == null) {
+	      return false;
+	    }
+	    if(copyData.copyMap == null) {
+	      continue; // the copy didn't get any rows
+	    }
+	    if(data.outputRowMeta == null) {
+	      // This copy didn't get any rows: pass the map on with the metadata of the other copy
+	      data.outputRowMeta = copyData.outputRowMeta;
+	      data.mapMeta = copyData.mapMeta;
+	      data.mergeFunction = copyData.mergeFunction;
+	      data.groupIndexes = copyData.groupIndexes;
+	    }
+	    if(log.isDetailed()) logDetailed(BaseMessages.getString(PKG, "FieldsToMap.Log.MergedCopy", Integer.toString(copy + distance), Integer.toString(copyData.copyMap.size())));
+	    map = data.mergeFunction.merge(map, copyData.copyMap);
+	    data.mapHeapSize += copyData.mapHeapSize;
+	    copyData.copyMap = null;
+	  }
+	  if(copy == 0) {
+	    return true;
+	  }
+	  data.copyMap = map;
+	  map = null;
+	  data.copyMapReady.countDown();
+	  return false;
+	}
+	
+	/**
+	 * Waits for this copy to hand its map on, the map is in its data afterwards.
+	 * 
+	 * @return the data of this copy, null if it failed or the waiting copy was stopped meanwhile
+	 */
+	FieldsToMapData awaitCopyMap(FieldsToMap waiting) {
+	  try {
+	    while(!data.copyMapReady.await(100, TimeUnit.MILLISECONDS)) {
+	      if(waiting.isStopped()) {
+	        return null;
+	      }
+	    }
+	  } catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return null;
+	  }
+	  return getErrors() > 0 ? null : data;
+	}
+	
+	/**
+	 * Adds the key/value pair of the row to the map of its group in the hash table, spilling the table to disk when it
+	 * takes more than the memory budget.
+	 */
+	private void addToGroup(Object[] r) throws KettleException {
+	  GroupKey groupKey = getGroupKey(data.inputRowMeta, r, data.groupIndexes);
+	  Object[] groupRow = data.groups.get(groupKey);
+	  int mapIndex = data.groupIndexes.length;
+	  if(groupRow == null) {
+	    // The output row of the group: its group fields, then its map (always on the heap, spilled rather than off-heap)
+	    groupRow = RowDataUtil.allocateRowData(data.outputRowMeta.size());
+	    for(int i = 0; i < data.groupIndexes.length; i++) {
+	      groupRow[i] = r[data.groupIndexes[i]];
+	      data.groupsHeapSize += MapSizeEstimator.estimateValue(groupRow[i]) * 2; // row and key
+	    }
+	    Map<Object,Object> groupMap = data.mapMeta.createMap(0);
+	    groupRow[mapIndex] = groupMap;
+	    data.groups.put(groupKey, groupRow);
+	    data.groupsHeapSize += GROUP_OVERHEAD + data.mapMeta.estimateHeapSize(groupMap);
+	  }
+	  
+	  @SuppressWarnings("unchecked")
+	  Map<Object,Object> groupMap = (Map<Object,Object>) groupRow[mapIndex];
+	  Object key = data.keyMeta.convertToNormalStorageType(r[data.keyIndex]);
+	  Object value = data.valueMeta.convertToNormalStorageType(r[data.valueIndex]);
+	  data.groupsHeapSize += data.mergeFunction.add(groupMap, key, value);
+	  
+	  if(data.groupsHeapSize > data.memoryBudget) {
+	    spillGroups();
+	  }
+	}
+	
+	private static GroupKey getGroupKey(RowMetaInterface rowMeta, Object[] r, int[] groupIndexes) throws KettleException {
+	  Object[] values = new Object[groupIndexes.length];
+	  for(int i = 0; i < groupIndexes.length; i++) {
+	    values[i] = rowMeta.getValueMeta(groupIndexes[i]).convertToNormalStorageType(r[groupIndexes[i]]);
+	  }
+	  return new GroupKey(values);
+	}
+	
+	private static int spillPartition(GroupKey groupKey) {
+	  int h = groupKey.hashCode() * 0x9E3779B9;
+	  return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % SPILL_PARTITIONS;
+	}
+	
+	/**
+	 * Writes the groups of the hash table, partial maps included, to the spill files and empties the table. Groups are
+	 * spread over the files by the hash of their group fields, so all the parts of a group end up in the same file.
+	 */
+	private void spillGroups() throws KettleException {
+	  try {
+	    if(data.spillFiles == null) {
+	      String directory = environmentSubstitute(meta.getSpillDirectory());
+	      if(Const.isEmpty(directory)) {
+	        directory = System.getProperty("java.io.tmpdir");
+	      }
+	      data.spillFiles = new File[SPILL_PARTITIONS];
+	      data.spillStreams = new DataOutputStream[SPILL_PARTITIONS];
+	      for(int i = 0; i < SPILL_PARTITIONS; i++) {
+	        data.spillFiles[i] = File.createTempFile("fieldstomap_", ".tmp", new File(directory));
+	        data.spillStreams[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(data.spillFiles[i]), 65536));
+	      }
+	    }
+	    for(Map.Entry<GroupKey, Object[]> group : data.groups.entrySet()) {
+	      data.outputRowMeta.writeData(data.spillStreams[spillPartition(group.getKey())], group.getValue());
+	    }
+	  } catch(IOException e) {
+	    deleteSpillFiles();
+	    throw new KettleException(BaseMessages.getString(PKG, "FieldsToMap.Exception.UnableToSpill"), e);
+	  } catch(KettleException e) {
+	    deleteSpillFiles();
+	    throw e;
+	  }
+	  data.spills++;
+	  if(log.isDetailed()) logDetailed(BaseMessages.getString(PKG, "FieldsToMap.Log.Spill", Integer.toString(data.groups.size()), Long.toString(data.groupsHeapSize)));
+	  data.groups.clear();
+	  data.groupsHeapSize = 0L;
+	}
+	
+	/**
+	 * Passes the map of every group on. Once groups were spilled, the spill files are read back one at a time, merging
+	 * the parts of each group in the order they were spilled, so only the groups of a single file are held at once.
+	 */
+	private void putGroups() throws KettleException {
+	  if(data.spillFiles == null) {
+	    putGroupRows(data.groups);
+	    data.groups = null;
+	    return;
+	  }
+	  
+	  spillGroups();
+	  data.groups = null;
+	  closeSpillStreams();
+	  int mapIndex = data.groupIndexes.length;
+	  int[] rowGroupIndexes = new int[mapIndex];
+	  for(int i = 0; i < mapIndex; i++) {
+	    rowGroupIndexes[i] = i;
+	  }
+	  for(int i = 0; i < SPILL_PARTITIONS; i++) {
+	    Map<GroupKey, Object[]> groups = new HashMap<GroupKey, Object[]>();
+	    Set<Object> mergedMaps = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+	    DataInputStream in = null;
+	    try {
+	      in = new DataInputStream(new BufferedInputStream(new FileInputStream(data.spillFiles[i]), 65536));
+	      while(true) {
+	        Object[] row;
+	        try {
+	          row = data.outputRowMeta.readData(in);
+	        } catch(KettleEOFException e) {
+	          break;
+	        }
+	        GroupKey groupKey = getGroupKey(data.outputRowMeta, row, rowGroupIndexes);
+	        Object[] groupRow = groups.get(groupKey);
+	        if(groupRow == null) {
+	          groups.put(groupKey, row);
+	          continue;
+	        }
+	        // Another part of the group: later parts hold the later rows
+	        @SuppressWarnings("unchecked")
+	        Map<Object,Object> groupMap = (Map<Object,Object>) groupRow[mapIndex];
+	        if(!mergedMaps.contains(groupMap)) {
+	          Map<Object,Object> merged = data.mapMeta.createMap(groupMap.size());
+	          merged.putAll(groupMap);
+	          groupMap = merged;
+	          groupRow[mapIndex] = merged;
+	          mergedMaps.add(merged);
+	        }
+	        @SuppressWarnings("unchecked")
+	        Map<Object,Object> part = (Map<Object,Object>) row[mapIndex];
+	        if(part != null) {
+	          data.mergeFunction.mergeInto(groupMap, part);
+	        }
+	      }
+	    } catch(IOException e) {
+	      deleteSpillFiles();
+	      throw new KettleException(BaseMessages.getString(PKG, "FieldsToMap.Exception.UnableToReadSpill"), e);
+	    } catch(KettleException e) {
+	      deleteSpillFiles();
+	      throw e;
+	    } finally {
+	      if(in != null) {
+	        try {
+	          in.close();
+	        } catch(IOException e) {
+	          // Only read from
+	        }
+	      }
+	      if(data.spillFiles != null) {
+	        data.spillFiles[i].delete();
+	      }
+	    }
+	    putGroupRows(groups);
+	  }
+	  data.spillFiles = null;
+	}
+	
+	private void putGroupRows(Map<GroupKey, Object[]> groups) throws KettleException {
+	  int mapIndex = data.groupIndexes.length;
+	  for(Object[] groupRow : groups.values()) {
+	    if(meta.isFreezeMap()) {
+	      @SuppressWarnings("unchecked")
+	      Map<Object,Object> groupMap = (Map<Object,Object>) groupRow[mapIndex];
+	      groupRow[mapIndex] = data.mapMeta.freezeMap(groupMap);
+	    }
+	    putMapRow(groupRow, data.mapMeta.estimateHeapSize(groupRow[mapIndex]));
+	  }
+	}
+	
+	private void closeSpillStreams() {
+	  if(data.spillStreams != null) {
+	    for(DataOutputStream out : data.spillStreams) {
+	      if(out == null) {
+	        continue; // creating the spill files failed
+	      }
+	      try {
+	        out.close();
+	      } catch(IOException e) {
+	        logError(BaseMessages.getString(PKG, "FieldsToMap.Exception.UnableToSpill"), e);
+	      }
+	    }
+	    data.spillStreams = null;
+	  }
+	}
+	
+	/**
+	 * Closes and deletes the spill files left, when the groups were all passed on or spilling or reading them back failed.
+	 */
+	private void deleteSpillFiles() {
+	  closeSpillStreams();
+	  if(data.spillFiles != null) {
+	    for(File file : data.spillFiles) {
+	      if(file != null && file.exists() && !file.delete()) {
+	        logError(BaseMessages.getString(PKG, "FieldsToMap.Exception.UnableToDeleteSpill", file.getPath()));
+	      }
+	    }
+	    data.spillFiles = null;
+	  }
+	}
+	
+	@Override
+	public void dispose(StepMetaInterface smi, StepDataInterface sdi) {
+	  data = (FieldsToMapData)sdi;
+	  // Don't leave spill files behind when the transformation is stopped or fails
+	  deleteSpillFiles();
+	  data.groups = null;
+	  releaseOffHeapMaps();
+	  // Never leave a lower copy waiting for the map of this one
+	  data.copyMapReady.countDown();
+	  super.dispose(smi, sdi);
+	}
+	
+	/**
+	 * Closes the off-heap maps, releasing their files and native memory: right away if the transformation failed or was
+	 * stopped, otherwise once it's finished, since the rows passed on may still be read by the steps downstream.
+	 */
+	private void releaseOffHeapMaps() {
+	  if(data.offHeapMaps.isEmpty()) {
+	    return;
+	  }
+	  final List<OffHeapMap> maps = new ArrayList<OffHeapMap>(data.offHeapMaps);
+	  data.offHeapMaps.clear();
+	  Trans trans = getTrans();
+	  if(trans == null || isStopped() || getErrors() > 0) {
+	    closeMaps(maps);
+	    return;
+	  }
+	  trans.addTransListener(new TransAdapter() {
+	    @Override
+	    public void transFinished(Trans trans) {
+	      closeMaps(maps);
+	    }
+	  });
+	}
+	
+	private static void closeMaps(List<OffHeapMap> maps) {
+	  for(OffHeapMap offHeapMap : maps) {
+	    offHeapMap.close();
+	  }
+	}
+	
+	private String getGroupsMessage() {
+	  return BaseMessages.getString(PKG, "FieldsToMap.Log.Groups", Integer.toString(data.groups.size()),
+	      Long.toString(data.groupsHeapSize), Integer.toString(data.spills));
+	}
+	
+	/**
+	 * @return the estimated heap retained by the map built so far, in bytes
+	 */
+	public long getMapHeapSize() {
+	  return data == null ? 0L : data.mapHeapSize;
+	}
+	
+	/**
+	 * @return the off-heap storage used by the map built so far, in bytes
+	 */
+	public long getMapOffHeapSize() {
+	  return map instanceof OffHeapMap ? ((OffHeapMap) map).getOffHeapSize() : 0L;
+	}
+	
+	/**
+	 * The rows passed on but not yet taken by the following steps, times the average estimated size of the map a row
+	 * carries: the rows waiting in the output row sets are counted exactly, their sizes are averaged. Safe to call from
+	 * other threads, to throttle on the memory held between this step and the next ones.
+	 * 
+	 * @return the estimated heap of the maps in flight, in bytes
+	 */
+	public long getMapBytesInFlight() {
+	  FieldsToMapData stepData = data;
+	  if(stepData == null) {
+	    return 0L;
+	  }
+	  long rows = stepData.rowsPut;
+	  if(rows == 0L) {
+	    return 0L;
+	  }
+	  long waiting = 0L;
+	  for(RowSet rowSet : getOutputRowSets()) {
+	    waiting += rowSet.size();
+	  }
+	  return waiting * (stepData.bytesPut / rows);
+	}
+	
+	private String getMapSizeMessage() {
+	  return BaseMessages.getString(PKG, "FieldsToMap.Log.MapSize", Integer.toString(map.size()),
+	      Long.toString(getMapHeapSize()), Long.toString(getMapOffHeapSize()));
+	}
 }
\ No newline at end of file
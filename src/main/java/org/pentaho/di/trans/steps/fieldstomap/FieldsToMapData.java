@@ -22,7 +22,17 @@
 
 package org.pentaho.di.trans.steps.fieldstomap;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
 import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaMap;
+import org.pentaho.di.core.row.value.map.OffHeapMap;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
 
@@ -34,8 +44,49 @@ import org.pentaho.di.trans.step.StepDataInterface;
 public class FieldsToMapData extends BaseStepData implements StepDataInterface
 {
 
+  public RowMetaInterface inputRowMeta;
   public RowMetaInterface outputRowMeta;
   
+  public int keyIndex;
+  public int valueIndex;
+  public ValueMetaInterface keyMeta;
+  public ValueMetaInterface valueMeta;
+  public ValueMetaMap mapMeta;
+  public MergeFunction mergeFunction;
+  
+  /** Pivot mode: indexes and names of the fields making up the map, converted to Strings unless all of the same type */
+  public int[] pivotIndexes;
+  public String[] pivotKeys;
+  public boolean pivotToString;
+  
+  /** Indexes of the group fields in the input rows, and the first row of the current group */
+  public int[] groupIndexes;
+  public Object[] groupRow;
+  
+  /** Hash table of the groups and their output rows (GROUP_HASH), with the estimated heap it takes and may take */
+  public Map<GroupKey, Object[]> groups;
+  public long groupsHeapSize;
+  public long memoryBudget;
+  
+  /** Files the groups are spilled to, by hash of their group fields */
+  public File[] spillFiles;
+  public DataOutputStream[] spillStreams;
+  public int spills;
+  
+  /** Estimated heap retained by the map being built, maintained as entries are added */
+  public long mapHeapSize;
+  
+  /** Estimated heap of the maps passed on, and the number of rows carrying them, for the bytes in flight */
+  public volatile long bytesPut;
+  public volatile long rowsPut;
+  
+  /** Off-heap maps created by the step, released when it's disposed or once the transformation is finished */
+  public List<OffHeapMap> offHeapMaps = new ArrayList<OffHeapMap>();
+  
+  /** Map handed on to a lower copy when the maps of the step copies are merged, ready once the latch is released */
+  public Map<Object,Object> copyMap;
+  public final CountDownLatch copyMapReady = new CountDownLatch(1);
+  
 	/**
 	 * 
 	 */
@@ -22,7 +22,10 @@
 
 package org.pentaho.di.trans.steps.fieldstomap;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.pentaho.di.core.CheckResult;
 import org.pentaho.di.core.CheckResultInterface;
@@ -34,7 +37,9 @@ import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.exception.KettleXMLException;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
 import org.pentaho.di.core.row.value.ValueMetaMap;
+import org.pentaho.di.core.row.value.ValueMetaString;
 import org.pentaho.di.core.variables.VariableSpace;
 import org.pentaho.di.core.xml.XMLHandler;
 import org.pentaho.di.i18n.BaseMessages;
@@ -69,6 +74,63 @@ public class FieldsToMapMeta extends BaseStepMeta implements StepMetaInterface
 	private String keyFieldName;
 	private String valueFieldName;
 	private String mapFieldName;
+	
+	/**
+	 * Build a map per row instead, of the pivot fields and/or the fields whose name matches the pattern: the field names
+	 * are the keys. The map is added to the row, the key/value fields, merge function and group fields aren't used.
+	 */
+	private boolean pivot;
+	private String[] pivotFieldNames;
+	private String pivotFieldPattern;
+	
+	/** How the values of a key found in several rows are combined, see MergeFunction */
+	public static final int MERGE_LAST = 0;
+	public static final int MERGE_FIRST = 1;
+	public static final int MERGE_SUM = 2;
+	public static final int MERGE_COUNT = 3;
+	public static final int MERGE_MIN = 4;
+	public static final int MERGE_MAX = 5;
+	public static final int MERGE_COLLECT = 6;
+	
+	public static final String[] mergeFunctionCodes = { "LAST", "FIRST", "SUM", "COUNT", "MIN", "MAX", "COLLECT" };
+	
+	private int mergeFunction;
+	
+	/** Fields the rows are grouped on: one map is passed on per group of rows, carrying these fields */
+	private String[] groupFieldNames;
+	
+	/** How groups are found: on input sorted on the group fields, or in a hash table spilled to disk when it grows too large */
+	public static final int GROUP_SORTED = 0;
+	public static final int GROUP_HASH = 1;
+	
+	public static final String[] groupModeCodes = { "SORTED", "HASH" };
+	
+	public static final String DEFAULT_MEMORY_BUDGET = "256";
+	
+	private int groupMode;
+	
+	/** Estimated heap (in MB) the hash table may take before its groups are spilled to disk */
+	private String memoryBudget;
+	private String spillDirectory;
+	
+	/** Where the map entries are kept: on the heap, in direct buffers or in a memory-mapped file */
+	public static final int STORAGE_HEAP = 0;
+	public static final int STORAGE_OFF_HEAP = 1;
+	public static final int STORAGE_MEMORY_MAPPED = 2;
+	
+	public static final String[] storageCodes = { "HEAP", "OFF_HEAP", "MEMORY_MAPPED" };
+	
+	private int mapStorage;
+	private String storageDirectory;
+	
+	/** Convert the finished map into a compact frozen map before passing it on, copied on its first modification */
+	private boolean freezeMap;
+	
+	/** Class of the heap maps, see ValueMetaMap.setMapImplementation() */
+	private int mapImplementation;
+	
+	/** Combine the maps built by the copies of the step into a single map, passed on by the first copy */
+	private boolean mergeCopies;
 
 	public FieldsToMapMeta() {
 		super(); // allocate BaseStepMeta
@@ -83,6 +145,19 @@ public class FieldsToMapMeta extends BaseStepMeta implements StepMetaInterface
     retval.setKeyFieldName(this.keyFieldName);
     retval.setValueFieldName(this.valueFieldName);
     retval.setMapFieldName(this.mapFieldName);
+    retval.setMergeFunction(this.mergeFunction);
+    retval.setPivot(this.pivot);
+    retval.setPivotFieldNames(this.pivotFieldNames == null ? null : this.pivotFieldNames.clone());
+    retval.setPivotFieldPattern(this.pivotFieldPattern);
+    retval.setGroupFieldNames(this.groupFieldNames == null ? null : this.groupFieldNames.clone());
+    retval.setGroupMode(this.groupMode);
+    retval.setMemoryBudget(this.memoryBudget);
+    retval.setSpillDirectory(this.spillDirectory);
+    retval.setMapStorage(this.mapStorage);
+    retval.setStorageDirectory(this.storageDirectory);
+    retval.setFreezeMap(this.freezeMap);
+    retval.setMapImplementation(this.mapImplementation);
+    retval.setMergeCopies(this.mergeCopies);
 		return retval;
 	}
 	
@@ -91,6 +166,31 @@ public class FieldsToMapMeta extends BaseStepMeta implements StepMetaInterface
       this.keyFieldName = XMLHandler.getTagValue(stepnode, "keyfield");
       this.valueFieldName = XMLHandler.getTagValue(stepnode, "valuefield");
       this.mapFieldName = XMLHandler.getTagValue(stepnode, "mapfield");
+      this.mergeFunction = getMergeFunction(XMLHandler.getTagValue(stepnode, "mergefunction"));
+      this.pivot = "Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, "pivot"));
+      Node pivotNode = XMLHandler.getSubNode(stepnode, "pivotfields");
+      int nrPivotFields = pivotNode == null ? 0 : XMLHandler.countNodes(pivotNode, "field");
+      this.pivotFieldNames = new String[nrPivotFields];
+      for (int i = 0; i < nrPivotFields; i++) {
+        Node fieldNode = XMLHandler.getSubNodeByNr(pivotNode, "field", i);
+        this.pivotFieldNames[i] = XMLHandler.getTagValue(fieldNode, "name");
+      }
+      this.pivotFieldPattern = XMLHandler.getTagValue(stepnode, "pivotpattern");
+      Node groupNode = XMLHandler.getSubNode(stepnode, "group");
+      int nrGroups = groupNode == null ? 0 : XMLHandler.countNodes(groupNode, "field");
+      this.groupFieldNames = new String[nrGroups];
+      for (int i = 0; i < nrGroups; i++) {
+        Node fieldNode = XMLHandler.getSubNodeByNr(groupNode, "field", i);
+        this.groupFieldNames[i] = XMLHandler.getTagValue(fieldNode, "name");
+      }
+      this.groupMode = getGroupMode(XMLHandler.getTagValue(stepnode, "groupmode"));
+      this.memoryBudget = XMLHandler.getTagValue(stepnode, "memorybudget");
+      this.spillDirectory = XMLHandler.getTagValue(stepnode, "spilldirectory");
+      this.mapStorage = getStorage(XMLHandler.getTagValue(stepnode, "mapstorage"));
+      this.storageDirectory = XMLHandler.getTagValue(stepnode, "storagedirectory");
+      this.freezeMap = !"N".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, "freezemap"));
+      this.mapImplementation = ValueMetaMap.getMapImplementation(XMLHandler.getTagValue(stepnode, "mapimplementation"));
+      this.mergeCopies = "Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, "mergecopies"));
     }
     catch (Exception e) {
       throw new KettleXMLException(BaseMessages.getString(PKG, "FieldsToMapMeta.Exception.UnableToReadStepInfo"), e);
@@ -101,6 +201,19 @@ public class FieldsToMapMeta extends BaseStepMeta implements StepMetaInterface
     this.keyFieldName = null;
     this.valueFieldName = null;
     this.mapFieldName = null;
+    this.mergeFunction = MERGE_LAST;
+    this.pivot = false;
+    this.pivotFieldNames = new String[0];
+    this.pivotFieldPattern = null;
+    this.groupFieldNames = new String[0];
+    this.groupMode = GROUP_SORTED;
+    this.memoryBudget = DEFAULT_MEMORY_BUDGET;
+    this.spillDirectory = null;
+    this.mapStorage = STORAGE_HEAP;
+    this.storageDirectory = null;
+    this.freezeMap = true;
+    this.mapImplementation = ValueMetaMap.MAP_IMPLEMENTATION_AUTO;
+    this.mergeCopies = false;
   }
 
 	public void readRep(Repository rep, IMetaStore metaStore, ObjectId id_step, List<DatabaseMeta> databases) throws KettleException {
@@ -108,6 +221,27 @@ public class FieldsToMapMeta extends BaseStepMeta implements StepMetaInterface
 	    this.keyFieldName = rep.getStepAttributeString(id_step, "keyfield");
 	    this.valueFieldName = rep.getStepAttributeString(id_step, "valuefield");
 	    this.mapFieldName = rep.getStepAttributeString(id_step, "mapfield");   
+	    this.mergeFunction = getMergeFunction(rep.getStepAttributeString(id_step, "mergefunction"));
+	    this.pivot = rep.getStepAttributeBoolean(id_step, "pivot");
+	    int nrPivotFields = rep.countNrStepAttributes(id_step, "pivot_name");
+	    this.pivotFieldNames = new String[nrPivotFields];
+	    for (int i = 0; i < nrPivotFields; i++) {
+	      this.pivotFieldNames[i] = rep.getStepAttributeString(id_step, i, "pivot_name");
+	    }
+	    this.pivotFieldPattern = rep.getStepAttributeString(id_step, "pivotpattern");
+	    int nrGroups = rep.countNrStepAttributes(id_step, "group_name");
+	    this.groupFieldNames = new String[nrGroups];
+	    for (int i = 0; i < nrGroups; i++) {
+	      this.groupFieldNames[i] = rep.getStepAttributeString(id_step, i, "group_name");
+	    }
+	    this.groupMode = getGroupMode(rep.getStepAttributeString(id_step, "groupmode"));
+	    this.memoryBudget = rep.getStepAttributeString(id_step, "memorybudget");
+	    this.spillDirectory = rep.getStepAttributeString(id_step, "spilldirectory");
+	    this.mapStorage = getStorage(rep.getStepAttributeString(id_step, "mapstorage"));
+	    this.storageDirectory = rep.getStepAttributeString(id_step, "storagedirectory");
+	    this.freezeMap = !"N".equalsIgnoreCase(rep.getStepAttributeString(id_step, "freezemap"));
+	    this.mapImplementation = ValueMetaMap.getMapImplementation(rep.getStepAttributeString(id_step, "mapimplementation"));
+	    this.mergeCopies = rep.getStepAttributeBoolean(id_step, "mergecopies");
       
     }
 	  catch (Exception e) {
@@ -121,22 +255,62 @@ public class FieldsToMapMeta extends BaseStepMeta implements StepMetaInterface
       rep.saveStepAttribute(id_transformation, id_step, "keyfield", this.keyFieldName);
       rep.saveStepAttribute(id_transformation, id_step, "valuefield", this.valueFieldName);
       rep.saveStepAttribute(id_transformation, id_step, "mapfield", this.mapFieldName);
+      rep.saveStepAttribute(id_transformation, id_step, "mergefunction", getMergeFunctionCode(this.mergeFunction));
+      rep.saveStepAttribute(id_transformation, id_step, "pivot", this.pivot);
+      for (int i = 0; i < getPivotFieldNames().length; i++) {
+        rep.saveStepAttribute(id_transformation, id_step, i, "pivot_name", this.pivotFieldNames[i]);
+      }
+      rep.saveStepAttribute(id_transformation, id_step, "pivotpattern", this.pivotFieldPattern);
+      for (int i = 0; i < getGroupFieldNames().length; i++) {
+        rep.saveStepAttribute(id_transformation, id_step, i, "group_name", this.groupFieldNames[i]);
+      }
+      rep.saveStepAttribute(id_transformation, id_step, "groupmode", getGroupModeCode(this.groupMode));
+      rep.saveStepAttribute(id_transformation, id_step, "memorybudget", this.memoryBudget);
+      rep.saveStepAttribute(id_transformation, id_step, "spilldirectory", this.spillDirectory);
+      rep.saveStepAttribute(id_transformation, id_step, "mapstorage", getStorageCode(this.mapStorage));
+      rep.saveStepAttribute(id_transformation, id_step, "storagedirectory", this.storageDirectory);
+      rep.saveStepAttribute(id_transformation, id_step, "freezemap", this.freezeMap);
+      rep.saveStepAttribute(id_transformation, id_step, "mapimplementation", ValueMetaMap.getMapImplementationCode(this.mapImplementation));
+      rep.saveStepAttribute(id_transformation, id_step, "mergecopies", this.mergeCopies);
     }
     catch (Exception e) {
       throw new KettleException(BaseMessages.getString(PKG, "FieldsToMapMeta.Exception.UnexpectedErrorSavingStepInfo"), e); 
     }
 	}
 	
+	/**
+	 * The output rows hold the group fields (if any) followed by the map field. In pivot mode the map field is added to
+	 * the input fields.
+	 */
 	public void getFields(RowMetaInterface inputRowMeta, String origin, RowMetaInterface[] info, StepMeta nextStep, VariableSpace space, Repository repository, IMetaStore metaStore) throws KettleStepException {
 	  if (!Const.isEmpty(this.mapFieldName)) {
 	    String mapField = (space == null) ? this.mapFieldName : space.environmentSubstitute(this.mapFieldName);
 	    
+	    if (this.pivot) {
+	      inputRowMeta.addValueMeta(getPivotMapMeta(inputRowMeta, mapField, origin, space));
+	      return;
+	    }
+	    
 	    // Get class of key field
-	    ValueMetaInterface keyMeta = inputRowMeta.searchValueMeta(this.keyFieldName);
-	    ValueMetaInterface valueMeta = inputRowMeta.searchValueMeta(this.valueFieldName);
+	    ValueMetaInterface keyMeta = normalStorageCopy(inputRowMeta.searchValueMeta(this.keyFieldName));
+	    ValueMetaInterface valueMeta = getMergeValueMeta(normalStorageCopy(inputRowMeta.searchValueMeta(this.valueFieldName)));
 	    
-      ValueMetaInterface v = new ValueMetaMap(mapField, keyMeta, valueMeta);
+	    List<ValueMetaInterface> groupMetas = new ArrayList<ValueMetaInterface>();
+	    for (String groupFieldName : getGroupFieldNames()) {
+	      ValueMetaInterface groupMeta = inputRowMeta.searchValueMeta(groupFieldName);
+	      if (groupMeta == null) {
+	        throw new KettleStepException(BaseMessages.getString(PKG, "FieldsToMapMeta.Exception.GroupFieldNotFound", groupFieldName));
+	      }
+	      groupMetas.add(groupMeta.clone());
+	    }
+	    
+      ValueMetaMap v = new ValueMetaMap(mapField, keyMeta, valueMeta);
+      v.setMapImplementation(this.mapImplementation);
       v.setOrigin(origin);
+      inputRowMeta.clear();
+      for (ValueMetaInterface groupMeta : groupMetas) {
+        inputRowMeta.addValueMeta(groupMeta);
+      }
       inputRowMeta.addValueMeta(v);
     }
 	  else {
@@ -144,6 +318,106 @@ public class FieldsToMapMeta extends BaseStepMeta implements StepMetaInterface
 	  }
 	}
 	
+	/**
+	 * @return the map of the pivot fields: String keys (the field names, fixed for all rows) and the values of the
+	 *         fields, as Strings unless all fields are of the same type
+	 */
+	private ValueMetaMap getPivotMapMeta(RowMetaInterface inputRowMeta, String mapField, String origin, VariableSpace space) throws KettleStepException {
+	  int[] pivotIndexes = getPivotFieldIndexes(inputRowMeta, space);
+	  String[] keys = new String[pivotIndexes.length];
+	  ValueMetaInterface valueMeta = null;
+	  for (int i = 0; i < pivotIndexes.length; i++) {
+	    ValueMetaInterface fieldMeta = inputRowMeta.getValueMeta(pivotIndexes[i]);
+	    keys[i] = fieldMeta.getName();
+	    if (valueMeta == null) {
+	      valueMeta = normalStorageCopy(fieldMeta);
+	    } else if (valueMeta.getType() != fieldMeta.getType()) {
+	      valueMeta = new ValueMetaString();
+	    }
+	  }
+	  if (valueMeta == null) {
+	    valueMeta = new ValueMetaString();
+	  }
+	  valueMeta.setName("value");
+	  
+	  ValueMetaMap v = new ValueMetaMap(mapField, new ValueMetaString("key"), valueMeta);
+	  v.setFixedKeys(keys);
+	  v.setMapImplementation(this.mapImplementation);
+	  v.setOrigin(origin);
+	  return v;
+	}
+	
+	/**
+	 * @return the indexes of the fields making up the map in pivot mode: the pivot fields, then the other fields whose
+	 *         name matches the pattern (except the map field), each field once
+	 */
+	public int[] getPivotFieldIndexes(RowMetaInterface inputRowMeta, VariableSpace space) throws KettleStepException {
+	  List<Integer> indexes = new ArrayList<Integer>();
+	  for (String pivotFieldName : getPivotFieldNames()) {
+	    int index = inputRowMeta.indexOfValue(pivotFieldName);
+	    if (index < 0) {
+	      throw new KettleStepException(BaseMessages.getString(PKG, "FieldsToMapMeta.Exception.PivotFieldNotFound", pivotFieldName));
+	    }
+	    if (!indexes.contains(index)) {
+	      indexes.add(index);
+	    }
+	  }
+	  if (!Const.isEmpty(this.pivotFieldPattern)) {
+	    String pattern = (space == null) ? this.pivotFieldPattern : space.environmentSubstitute(this.pivotFieldPattern);
+	    String mapField = (space == null) ? this.mapFieldName : space.environmentSubstitute(this.mapFieldName);
+	    Pattern fieldPattern;
+	    try {
+	      fieldPattern = Pattern.compile(pattern);
+	    } catch (PatternSyntaxException e) {
+	      throw new KettleStepException(BaseMessages.getString(PKG, "FieldsToMapMeta.Exception.InvalidPivotPattern", pattern), e);
+	    }
+	    for (int i = 0; i < inputRowMeta.size(); i++) {
+	      String name = inputRowMeta.getValueMeta(i).getName();
+	      if (!indexes.contains(i) && !name.equalsIgnoreCase(mapField) && fieldPattern.matcher(name).matches()) {
+	        indexes.add(i);
+	      }
+	    }
+	  }
+	  int[] pivotIndexes = new int[indexes.size()];
+	  for (int i = 0; i < pivotIndexes.length; i++) {
+	    pivotIndexes[i] = indexes.get(i);
+	  }
+	  return pivotIndexes;
+	}
+	
+	/**
+	 * @return the metadata of the values of the map for the merge function: counts are Integers, collected values are
+	 *         maps of index to value
+	 */
+	private ValueMetaInterface getMergeValueMeta(ValueMetaInterface valueMeta) throws KettleStepException {
+	  String name = valueMeta == null ? this.valueFieldName : valueMeta.getName();
+	  switch (this.mergeFunction) {
+	    case MERGE_COUNT:
+	      return new ValueMetaInteger(name);
+	    case MERGE_SUM:
+	      if (valueMeta != null && !valueMeta.isNumeric()) {
+	        throw new KettleStepException(BaseMessages.getString(PKG, "FieldsToMapMeta.Exception.SumNotNumeric", name));
+	      }
+	      return valueMeta;
+	    case MERGE_COLLECT:
+	      return valueMeta == null ? null : new ValueMetaMap(name, new ValueMetaInteger("index"), valueMeta);
+	    default:
+	      return valueMeta;
+	  }
+	}
+	
+	/**
+	 * Keys and values are stored in the map in normal storage, whatever the storage of the input fields. 
+	 */
+	private ValueMetaInterface normalStorageCopy(ValueMetaInterface v) {
+	  if (v == null) {
+	    return null;
+	  }
+	  ValueMetaInterface copy = v.clone();
+	  copy.setStorageType(ValueMetaInterface.STORAGE_TYPE_NORMAL);
+	  return copy;
+	}
+	
 	public void check(List<CheckResultInterface> remarks, TransMeta transMeta, StepMeta stepMeta, RowMetaInterface prev, String input[], String output[], RowMetaInterface info, VariableSpace space, Repository repository, IMetaStore metaStore)
 	{
 		CheckResult cr;
@@ -169,6 +443,18 @@ public class FieldsToMapMeta extends BaseStepMeta implements StepMetaInterface
 			cr = new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR, BaseMessages.getString(PKG, "FieldsToMapMeta.CheckResult.NoInputReceivedFromOtherSteps"), stepMeta); 
 			remarks.add(cr);
 		}
+		
+		if (pivot && getPivotFieldNames().length == 0 && Const.isEmpty(pivotFieldPattern))
+		{
+			cr = new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR, BaseMessages.getString(PKG, "FieldsToMapMeta.CheckResult.NoPivotFields"), stepMeta); 
+			remarks.add(cr);
+		}
+		
+		if (mergeCopies && getGroupFieldNames().length > 0)
+		{
+			cr = new CheckResult(CheckResultInterface.TYPE_RESULT_WARNING, BaseMessages.getString(PKG, "FieldsToMapMeta.CheckResult.MergeCopiesWithGroups"), stepMeta); 
+			remarks.add(cr);
+		}
 	}
 	
 	public StepInterface getStep(StepMeta stepMeta, StepDataInterface stepDataInterface, int cnr, TransMeta tr, Trans trans) {
@@ -203,12 +489,239 @@ public class FieldsToMapMeta extends BaseStepMeta implements StepMetaInterface
     this.mapFieldName = mapFieldName;
   }
 
+  /**
+   * @return true to build a map per row, of the pivot fields and the fields matching the pivot field pattern
+   */
+  public boolean isPivot() {
+    return pivot;
+  }
+
+  public void setPivot(boolean pivot) {
+    this.pivot = pivot;
+  }
+
+  /**
+   * @return the fields making up the map of each row in pivot mode, never null
+   */
+  public String[] getPivotFieldNames() {
+    return pivotFieldNames == null ? new String[0] : pivotFieldNames;
+  }
+
+  public void setPivotFieldNames(String[] pivotFieldNames) {
+    this.pivotFieldNames = pivotFieldNames;
+  }
+
+  /**
+   * @return the regular expression the names of further fields making up the map match in pivot mode, null or empty
+   *         for none
+   */
+  public String getPivotFieldPattern() {
+    return pivotFieldPattern;
+  }
+
+  public void setPivotFieldPattern(String pivotFieldPattern) {
+    this.pivotFieldPattern = pivotFieldPattern;
+  }
+
+  /**
+   * @return how the values of a key found in several rows are combined, one of the MERGE_ constants
+   */
+  public int getMergeFunction() {
+    return mergeFunction;
+  }
+
+  public void setMergeFunction(int mergeFunction) {
+    this.mergeFunction = mergeFunction;
+  }
+
+  public static String getMergeFunctionCode(int mergeFunction) {
+    if (mergeFunction < 0 || mergeFunction >= mergeFunctionCodes.length) {
+      return mergeFunctionCodes[MERGE_LAST];
+    }
+    return mergeFunctionCodes[mergeFunction];
+  }
+
+  /**
+   * @return the merge function of the code, MERGE_LAST if the code is unknown
+   */
+  public static int getMergeFunction(String code) {
+    for (int i = 0; i < mergeFunctionCodes.length; i++) {
+      if (mergeFunctionCodes[i].equalsIgnoreCase(code)) {
+        return i;
+      }
+    }
+    return MERGE_LAST;
+  }
+
+  /**
+   * @return the fields the input is sorted on, one map is passed on per group; empty for a single map of all rows
+   */
+  public String[] getGroupFieldNames() {
+    return groupFieldNames == null ? new String[0] : groupFieldNames;
+  }
+
+  public void setGroupFieldNames(String[] groupFieldNames) {
+    this.groupFieldNames = groupFieldNames;
+  }
+
+  /**
+   * @return how groups are found: GROUP_SORTED (input sorted on the group fields) or GROUP_HASH
+   */
+  public int getGroupMode() {
+    return groupMode;
+  }
+
+  public void setGroupMode(int groupMode) {
+    this.groupMode = groupMode;
+  }
+
+  /**
+   * @return the estimated heap in MB the groups may take in GROUP_HASH mode before they're spilled to disk
+   */
+  public String getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  public void setMemoryBudget(String memoryBudget) {
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * @return the directory of the spill files, null or empty for the temporary directory
+   */
+  public String getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  public void setSpillDirectory(String spillDirectory) {
+    this.spillDirectory = spillDirectory;
+  }
+
+  public static String getGroupModeCode(int groupMode) {
+    if (groupMode < 0 || groupMode >= groupModeCodes.length) {
+      return groupModeCodes[GROUP_SORTED];
+    }
+    return groupModeCodes[groupMode];
+  }
+
+  /**
+   * @return the group mode of the code, GROUP_SORTED if the code is unknown
+   */
+  public static int getGroupMode(String code) {
+    for (int i = 0; i < groupModeCodes.length; i++) {
+      if (groupModeCodes[i].equalsIgnoreCase(code)) {
+        return i;
+      }
+    }
+    return GROUP_SORTED;
+  }
+
+  /**
+   * @return the storage of the map: STORAGE_HEAP, STORAGE_OFF_HEAP or STORAGE_MEMORY_MAPPED
+   */
+  public int getMapStorage() {
+    return mapStorage;
+  }
+
+  public void setMapStorage(int mapStorage) {
+    this.mapStorage = mapStorage;
+  }
+
+  /**
+   * @return the directory of the memory-mapped file, null or empty for the temporary directory
+   */
+  public String getStorageDirectory() {
+    return storageDirectory;
+  }
+
+  public void setStorageDirectory(String storageDirectory) {
+    this.storageDirectory = storageDirectory;
+  }
+
+  /**
+   * @return true if the finished map is converted into a compact frozen map (see CopyOnWriteMap) before it's passed on
+   */
+  public boolean isFreezeMap() {
+    return freezeMap;
+  }
+
+  public void setFreezeMap(boolean freezeMap) {
+    this.freezeMap = freezeMap;
+  }
+
+  /**
+   * @return the class of the heap maps, one of the ValueMetaMap.MAP_IMPLEMENTATION_ constants
+   */
+  public int getMapImplementation() {
+    return mapImplementation;
+  }
+
+  public void setMapImplementation(int mapImplementation) {
+    this.mapImplementation = mapImplementation;
+  }
+
+  /**
+   * @return true if the copies of the step build a single map together: each copy builds the map of its own rows and
+   *         the first copy passes on the combination. Ignored with group fields.
+   */
+  public boolean isMergeCopies() {
+    return mergeCopies;
+  }
+
+  public void setMergeCopies(boolean mergeCopies) {
+    this.mergeCopies = mergeCopies;
+  }
+
+  public static String getStorageCode(int storage) {
+    if (storage < 0 || storage >= storageCodes.length) {
+      return storageCodes[STORAGE_HEAP];
+    }
+    return storageCodes[storage];
+  }
+
+  /**
+   * @return the storage of the storage code, STORAGE_HEAP if the code is unknown
+   */
+  public static int getStorage(String code) {
+    for (int i = 0; i < storageCodes.length; i++) {
+      if (storageCodes[i].equalsIgnoreCase(code)) {
+        return i;
+      }
+    }
+    return STORAGE_HEAP;
+  }
+
   @Override
   public String getXML() throws KettleException {
     StringBuffer retval = new StringBuffer();
     retval.append("    " + XMLHandler.addTagValue("keyfield", this.keyFieldName));
     retval.append("    " + XMLHandler.addTagValue("valuefield", this.valueFieldName));
     retval.append("    " + XMLHandler.addTagValue("mapfield", this.mapFieldName));
+    retval.append("    " + XMLHandler.addTagValue("mergefunction", getMergeFunctionCode(this.mergeFunction)));
+    retval.append("    " + XMLHandler.addTagValue("pivot", this.pivot));
+    retval.append("    <pivotfields>").append(Const.CR);
+    for (String pivotFieldName : getPivotFieldNames()) {
+      retval.append("      <field>").append(Const.CR);
+      retval.append("        " + XMLHandler.addTagValue("name", pivotFieldName));
+      retval.append("      </field>").append(Const.CR);
+    }
+    retval.append("    </pivotfields>").append(Const.CR);
+    retval.append("    " + XMLHandler.addTagValue("pivotpattern", this.pivotFieldPattern));
+    retval.append("    <group>").append(Const.CR);
+    for (String groupFieldName : getGroupFieldNames()) {
+      retval.append("      <field>").append(Const.CR);
+      retval.append("        " + XMLHandler.addTagValue("name", groupFieldName));
+      retval.append("      </field>").append(Const.CR);
+    }
+    retval.append("    </group>").append(Const.CR);
+    retval.append("    " + XMLHandler.addTagValue("groupmode", getGroupModeCode(this.groupMode)));
+    retval.append("    " + XMLHandler.addTagValue("memorybudget", this.memoryBudget));
+    retval.append("    " + XMLHandler.addTagValue("spilldirectory", this.spillDirectory));
+    retval.append("    " + XMLHandler.addTagValue("mapstorage", getStorageCode(this.mapStorage)));
+    retval.append("    " + XMLHandler.addTagValue("storagedirectory", this.storageDirectory));
+    retval.append("    " + XMLHandler.addTagValue("freezemap", this.freezeMap));
+    retval.append("    " + XMLHandler.addTagValue("mapimplementation", ValueMetaMap.getMapImplementationCode(this.mapImplementation)));
+    retval.append("    " + XMLHandler.addTagValue("mergecopies", this.mergeCopies));
     return retval.toString();
   }
 
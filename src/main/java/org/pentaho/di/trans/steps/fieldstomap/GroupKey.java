@@ -0,0 +1,89 @@
+/*******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2012 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.fieldstomap;
+
+import java.util.Arrays;
+
+/**
+ * Values of the group fields of a row, in normal storage, as the key of the hash table of groups. Binary values are
+ * compared by content.
+ */
+public class GroupKey
+{
+  private final Object[] values;
+  private final int hash;
+
+  public GroupKey(Object[] values) {
+    this.values = values;
+    int h = 1;
+    for (Object value : values) {
+      h = 31 * h + hashOf(value);
+    }
+    this.hash = h;
+  }
+
+  private static int hashOf(Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof byte[]) {
+      return Arrays.hashCode((byte[]) value);
+    }
+    return value.hashCode();
+  }
+
+  public Object[] getValues() {
+    return values;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof GroupKey)) {
+      return false;
+    }
+    GroupKey other = (GroupKey) o;
+    if (hash != other.hash || values.length != other.values.length) {
+      return false;
+    }
+    for (int i = 0; i < values.length; i++) {
+      Object a = values[i];
+      Object b = other.values[i];
+      if (a instanceof byte[] && b instanceof byte[]) {
+        if (!Arrays.equals((byte[]) a, (byte[]) b)) {
+          return false;
+        }
+      } else if (a == null ? b != null : !a.equals(b)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
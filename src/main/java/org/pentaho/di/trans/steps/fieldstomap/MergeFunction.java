@@ -0,0 +1,316 @@
+/*******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2012 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.fieldstomap;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaMap;
+import org.pentaho.di.core.row.value.map.LongDoubleMap;
+import org.pentaho.di.core.row.value.map.LongLongMap;
+import org.pentaho.di.core.row.value.map.MapSizeEstimator;
+import org.pentaho.di.core.row.value.map.ObjectLongMap;
+import org.pentaho.di.core.row.value.map.PersistentHashMap;
+
+/**
+ * Combines the values of a key found in several rows: keeps the value of the last or first row, the sum, count, minimum
+ * or maximum of the values, or collects them all in a nested map of index to value. Values are aggregated in the map as
+ * rows are added, in the unboxed value arrays of the primitive maps when the map is one.
+ * <p>
+ * Sum, count, minimum, maximum and collect ignore null values. Partial maps (of the step copies or of spilled groups)
+ * are combined with merge(), giving the map the rows of both would have made, the rows of the later map coming last.
+ */
+public abstract class MergeFunction
+{
+  /**
+   * @param function
+   *          one of the FieldsToMapMeta.MERGE_ constants
+   * @param mapMeta
+   *          metadata of the map, with the value metadata FieldsToMapMeta.getFields() gave it for the function
+   */
+  public static MergeFunction getInstance(int function, ValueMetaMap mapMeta) {
+    switch (function) {
+      case FieldsToMapMeta.MERGE_FIRST:
+        return new First();
+      case FieldsToMapMeta.MERGE_SUM:
+        return new Sum(mapMeta.getValueMeta().getType());
+      case FieldsToMapMeta.MERGE_COUNT:
+        return new Count();
+      case FieldsToMapMeta.MERGE_MIN:
+        return new Extreme(mapMeta.getValueMeta(), 1);
+      case FieldsToMapMeta.MERGE_MAX:
+        return new Extreme(mapMeta.getValueMeta(), -1);
+      case FieldsToMapMeta.MERGE_COLLECT:
+        return new Collect((ValueMetaMap) mapMeta.getValueMeta());
+      default:
+        return new Last();
+    }
+  }
+
+  /**
+   * Adds the value of a row to the map.
+   *
+   * @return the estimated heap the map grew by
+   */
+  public abstract long add(Map<Object,Object> map, Object key, Object value) throws KettleValueException;
+
+  /**
+   * @return the value of a key combining its values in an earlier and a later map
+   */
+  protected abstract Object combine(Object earlier, Object later) throws KettleValueException;
+
+  /**
+   * Adds the entries of a later map to the map.
+   */
+  public void mergeInto(Map<Object,Object> map, Map<Object,Object> later) throws KettleValueException {
+    for (Map.Entry<Object,Object> entry : later.entrySet()) {
+      Object key = entry.getKey();
+      Object previous = map.get(key);
+      if (previous == null && !map.containsKey(key)) {
+        map.put(key, entry.getValue());
+      } else {
+        map.put(key, combine(previous, entry.getValue()));
+      }
+    }
+  }
+
+  /**
+   * @return the merge of the maps, made by adding the smaller map to the larger one (which may be either)
+   */
+  public Map<Object,Object> merge(Map<Object,Object> map, Map<Object,Object> later) throws KettleValueException {
+    if (map == null) {
+      return later;
+    }
+    if (later == null) {
+      return map;
+    }
+    if (map.size() >= later.size()) {
+      mergeInto(map, later);
+      return map;
+    }
+    for (Map.Entry<Object,Object> entry : map.entrySet()) {
+      Object key = entry.getKey();
+      Object next = later.get(key);
+      if (next == null && !later.containsKey(key)) {
+        later.put(key, entry.getValue());
+      } else {
+        later.put(key, combine(entry.getValue(), next));
+      }
+    }
+    return later;
+  }
+
+  static long put(Map<Object,Object> map, Object key, Object value) {
+    int size = map.size();
+    map.put(key, value);
+    return map.size() > size ? MapSizeEstimator.estimateEntry(key, value) : 0L;
+  }
+
+  static long putIfAbsent(Map<Object,Object> map, Object key, Object value) {
+    return map.containsKey(key) ? 0L : put(map, key, value);
+  }
+
+  /** The value of the last row wins, as in any Map */
+  private static class Last extends MergeFunction
+  {
+    public long add(Map<Object,Object> map, Object key, Object value) {
+      return put(map, key, value);
+    }
+
+    protected Object combine(Object earlier, Object later) {
+      return later;
+    }
+  }
+
+  private static class First extends MergeFunction
+  {
+    public long add(Map<Object,Object> map, Object key, Object value) {
+      return putIfAbsent(map, key, value);
+    }
+
+    protected Object combine(Object earlier, Object later) {
+      return earlier;
+    }
+  }
+
+  /** Sum of Integer, Number or BigNumber values, null for a key without values */
+  private static class Sum extends MergeFunction
+  {
+    private final int type;
+
+    Sum(int type) {
+      this.type = type;
+    }
+
+    public long add(Map<Object,Object> map, Object key, Object value) {
+      if (value == null) {
+        return putIfAbsent(map, key, null);
+      }
+      int size = map.size();
+      if (key != null && value instanceof Long && map instanceof ObjectLongMap) {
+        ((ObjectLongMap) map).addTo(key, ((Long) value).longValue());
+      } else if (key instanceof Long && value instanceof Long && map instanceof LongLongMap) {
+        ((LongLongMap) map).addTo(((Long) key).longValue(), ((Long) value).longValue());
+      } else if (key instanceof Long && value instanceof Double && map instanceof LongDoubleMap) {
+        ((LongDoubleMap) map).addTo(((Long) key).longValue(), ((Double) value).doubleValue());
+      } else {
+        map.put(key, combine(map.get(key), value));
+      }
+      return map.size() > size ? MapSizeEstimator.estimateEntry(key, value) : 0L;
+    }
+
+    protected Object combine(Object earlier, Object later) {
+      if (earlier == null) {
+        return later;
+      }
+      if (later == null) {
+        return earlier;
+      }
+      switch (type) {
+        case ValueMetaInterface.TYPE_INTEGER:
+          return Long.valueOf(((Long) earlier).longValue() + ((Long) later).longValue());
+        case ValueMetaInterface.TYPE_NUMBER:
+          return Double.valueOf(((Double) earlier).doubleValue() + ((Double) later).doubleValue());
+        default:
+          return ((BigDecimal) earlier).add((BigDecimal) later);
+      }
+    }
+  }
+
+  /** Number of non-null values, 0 for a key without values */
+  private static class Count extends MergeFunction
+  {
+    private static final Long ZERO = Long.valueOf(0L);
+
+    public long add(Map<Object,Object> map, Object key, Object value) {
+      if (value == null) {
+        return putIfAbsent(map, key, ZERO);
+      }
+      int size = map.size();
+      if (key != null && map instanceof ObjectLongMap) {
+        ((ObjectLongMap) map).addTo(key, 1L);
+      } else if (key instanceof Long && map instanceof LongLongMap) {
+        ((LongLongMap) map).addTo(((Long) key).longValue(), 1L);
+      } else {
+        Object previous = map.get(key);
+        map.put(key, Long.valueOf(previous == null ? 1L : ((Long) previous).longValue() + 1L));
+      }
+      return map.size() > size ? MapSizeEstimator.estimateEntry(key, ZERO) : 0L;
+    }
+
+    protected Object combine(Object earlier, Object later) {
+      return Long.valueOf(((Long) earlier).longValue() + ((Long) later).longValue());
+    }
+  }
+
+  /** Minimum (sign 1) or maximum (sign -1) of the values by the value metadata, null for a key without values */
+  private static class Extreme extends MergeFunction
+  {
+    private final ValueMetaInterface valueMeta;
+    private final int sign;
+
+    Extreme(ValueMetaInterface valueMeta, int sign) {
+      this.valueMeta = valueMeta;
+      this.sign = sign;
+    }
+
+    public long add(Map<Object,Object> map, Object key, Object value) throws KettleValueException {
+      if (value == null) {
+        return putIfAbsent(map, key, null);
+      }
+      Object previous = map.get(key);
+      if (previous == null) {
+        return put(map, key, value);
+      }
+      if (sign * valueMeta.compare(value, previous) < 0) {
+        map.put(key, value);
+      }
+      return 0L;
+    }
+
+    protected Object combine(Object earlier, Object later) throws KettleValueException {
+      if (earlier == null) {
+        return later;
+      }
+      if (later == null) {
+        return earlier;
+      }
+      return sign * valueMeta.compare(later, earlier) < 0 ? later : earlier;
+    }
+  }
+
+  /** The non-null values in row order, as a map of index (from 0) to value */
+  private static class Collect extends MergeFunction
+  {
+    private final ValueMetaMap listMeta;
+
+    Collect(ValueMetaMap listMeta) {
+      this.listMeta = listMeta;
+    }
+
+    public long add(Map<Object,Object> map, Object key, Object value) {
+      @SuppressWarnings("unchecked")
+      Map<Object,Object> list = (Map<Object,Object>) map.get(key);
+      if (list == null) {
+        list = listMeta.createMap(0);
+        long bytes = value == null ? 0L : append(list, value);
+        return bytes + put(map, key, list);
+      }
+      if (value == null) {
+        return 0L;
+      }
+      if (map instanceof PersistentHashMap) {
+        // Its hash code includes the hash code of the list, take the list out while it changes
+        map.remove(key);
+      }
+      long bytes = append(list, value);
+      map.put(key, list);
+      return bytes;
+    }
+
+    private static long append(Map<Object,Object> list, Object value) {
+      Long index = Long.valueOf(list.size());
+      list.put(index, value);
+      return MapSizeEstimator.estimateEntry(index, value);
+    }
+
+    protected Object combine(Object earlier, Object later) {
+      if (earlier == null) {
+        return later;
+      }
+      if (later == null) {
+        return earlier;
+      }
+      Map<?,?> earlierList = (Map<?,?>) earlier;
+      Map<?,?> laterList = (Map<?,?>) later;
+      Map<Object,Object> list = listMeta.createMap(earlierList.size() + laterList.size());
+      list.putAll(earlierList);
+      for (long i = 0; i < laterList.size(); i++) {
+        list.put(Long.valueOf(list.size()), laterList.get(Long.valueOf(i)));
+      }
+      return list;
+    }
+  }
+}
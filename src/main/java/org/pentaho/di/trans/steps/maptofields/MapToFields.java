@@ -24,11 +24,13 @@ package org.pentaho.di.trans.steps.maptofields;
 
 import java.util.Map;
 
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.row.value.ValueMetaMap;
+import org.pentaho.di.core.row.value.map.MapSizeEstimator;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
@@ -69,6 +71,7 @@ public class MapToFields extends BaseStep implements StepInterface
 		Object[] r=getRow();    // get row, set busy!
 		if (r==null)  // no more input to be expected...
 		{
+		  if(data.mapBytesRead > 0 && log.isBasic()) logBasic(getMapSizeMessage());
 		  setOutputDone();
 			return false;
 		}
@@ -111,20 +114,71 @@ public class MapToFields extends BaseStep implements StepInterface
 		
 		data.outputRowMeta = outputRowMeta.clone();
 		
+		long mapBytes = ((ValueMetaMap)mapValueMeta).estimateHeapSize(r[mapFieldIndex]);
+		data.mapBytesRead += mapBytes;
+		if(mapBytes > data.largestMapSize) {
+		  data.largestMapSize = mapBytes;
+		}
+		
 		Map<Object,Object> map = ((ValueMetaMap)mapValueMeta).getMap(r[mapFieldIndex]);
 		Object[] outputRowData = RowDataUtil.removeItem(r, mapFieldIndex);
     if(map != null) {
       for(Map.Entry<Object, Object> entry : map.entrySet()) {
         Object[] newData = new Object[] {entry.getKey(), entry.getValue()};
         outputRowData = RowDataUtil.addRowData(outputRowData,r.length-1, newData);
+        data.bytesPut += MapSizeEstimator.estimateEntry(entry.getKey(), entry.getValue());
+        data.rowsPut++;
         putRow(data.outputRowMeta, outputRowData);  // copy row to possible alternate rowset(s).
       }
     }
 		
     if (checkFeedback(getLinesRead())) {
     	if(log.isBasic()) logBasic(BaseMessages.getString(PKG, "MapToFields.Log.LineNumber")+getLinesRead()); 
+    	if(log.isDetailed()) logDetailed(getMapSizeMessage());
     }
 			
 		return true;
 	}
+	
+	/**
+	 * @return the estimated heap of all the maps read so far, in bytes
+	 */
+	public long getMapBytesRead() {
+	  return data == null ? 0L : data.mapBytesRead;
+	}
+	
+	/**
+	 * @return the estimated heap of the largest map read so far, in bytes
+	 */
+	public long getLargestMapSize() {
+	  return data == null ? 0L : data.largestMapSize;
+	}
+	
+	/**
+	 * The rows passed on but not yet taken by the following steps, times the average estimated size of the map entry
+	 * a row carries: the rows waiting in the output row sets are counted exactly, their sizes are averaged. Safe to call
+	 * from other threads, to throttle on the memory held between this step and the next ones.
+	 * 
+	 * @return the estimated heap of the map entries in flight, in bytes
+	 */
+	public long getMapBytesInFlight() {
+	  MapToFieldsData stepData = data;
+	  if(stepData == null) {
+	    return 0L;
+	  }
+	  long rows = stepData.rowsPut;
+	  if(rows == 0L) {
+	    return 0L;
+	  }
+	  long waiting = 0L;
+	  for(RowSet rowSet : getOutputRowSets()) {
+	    waiting += rowSet.size();
+	  }
+	  return waiting * (stepData.bytesPut / rows);
+	}
+	
+	private String getMapSizeMessage() {
+	  return BaseMessages.getString(PKG, "MapToFields.Log.MapSize", Long.toString(data.mapBytesRead),
+	      Long.toString(data.largestMapSize), Long.toString(getMapBytesInFlight()));
+	}
 }
\ No newline at end of file
@@ -36,6 +36,14 @@ public class MapToFieldsData extends BaseStepData implements StepDataInterface
 
   public RowMetaInterface outputRowMeta;
   
+  /** Estimated heap of all the maps read so far, and of the largest one; only written by the step thread */
+  public volatile long mapBytesRead;
+  public volatile long largestMapSize;
+  
+  /** Estimated heap of the map entries of the rows passed on, and the number of those rows, for the bytes in flight */
+  public volatile long bytesPut;
+  public volatile long rowsPut;
+  
 	/**
 	 * 
 	 */
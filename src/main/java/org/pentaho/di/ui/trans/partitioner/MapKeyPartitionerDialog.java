@@ -0,0 +1,238 @@
+/*******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2012 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.ui.trans.partitioner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.CCombo;
+import org.eclipse.swt.events.ModifyEvent;
+import org.eclipse.swt.events.ModifyListener;
+import org.eclipse.swt.events.SelectionAdapter;
+import org.eclipse.swt.events.SelectionEvent;
+import org.eclipse.swt.events.ShellAdapter;
+import org.eclipse.swt.events.ShellEvent;
+import org.eclipse.swt.layout.FormAttachment;
+import org.eclipse.swt.layout.FormData;
+import org.eclipse.swt.layout.FormLayout;
+import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Label;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Shell;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaMap;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.partitioner.MapKeyPartitioner;
+import org.pentaho.di.trans.step.BaseStepMeta;
+import org.pentaho.di.trans.step.StepDialogInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepPartitioningMeta;
+import org.pentaho.di.ui.core.dialog.ErrorDialog;
+import org.pentaho.di.ui.core.widget.TextVar;
+import org.pentaho.di.ui.trans.step.BaseStepDialog;
+
+public class MapKeyPartitionerDialog extends BaseStepDialog implements StepDialogInterface
+{
+	private static Class<?> PKG = MapKeyPartitioner.class; // for i18n purposes, needed by Translator2!!   $NON-NLS-1$
+
+	private StepMeta             stepMeta;
+	private StepPartitioningMeta partitioningMeta;
+	private MapKeyPartitioner    partitioner;
+
+	private Label        wlFieldName;
+	private CCombo       wFieldName;
+	private FormData     fdlFieldName, fdFieldName;
+
+	private Label        wlKeyName;
+	private TextVar      wKeyName;
+	private FormData     fdlKeyName, fdKeyName;
+
+	public MapKeyPartitionerDialog(Shell parent, StepMeta stepMeta, StepPartitioningMeta partitioningMeta, TransMeta transMeta)
+	{
+		super(parent, (BaseStepMeta)stepMeta.getStepMetaInterface(), transMeta, partitioningMeta.getPartitioner().getDescription());
+		this.stepMeta = stepMeta;
+		this.partitioningMeta = partitioningMeta;
+		this.partitioner = (MapKeyPartitioner) partitioningMeta.getPartitioner();
+	}
+
+	public String open()
+	{
+		Shell parent = getParent();
+		Display display = parent.getDisplay();
+
+		shell = new Shell(parent, SWT.DIALOG_TRIM | SWT.RESIZE | SWT.MIN | SWT.MAX);
+		props.setLook(shell);
+		setShellImage(shell, (BaseStepMeta)stepMeta.getStepMetaInterface());
+
+		ModifyListener lsMod = new ModifyListener()
+		{
+			public void modifyText(ModifyEvent e)
+			{
+				partitioningMeta.hasChanged(true);
+			}
+		};
+		changed = partitioningMeta.hasChanged();
+
+		FormLayout formLayout = new FormLayout ();
+		formLayout.marginWidth  = Const.FORM_MARGIN;
+		formLayout.marginHeight = Const.FORM_MARGIN;
+
+		shell.setLayout(formLayout);
+		shell.setText(BaseMessages.getString(PKG, "MapKeyPartitionerDialog.Shell.Title"));
+
+		int middle = props.getMiddlePct();
+		int margin = Const.MARGIN;
+
+		// Map field
+		wlFieldName=new Label(shell, SWT.RIGHT);
+		wlFieldName.setText(BaseMessages.getString(PKG, "MapKeyPartitionerDialog.FieldName.Label"));
+		props.setLook(wlFieldName);
+		fdlFieldName=new FormData();
+		fdlFieldName.left = new FormAttachment(0, 0);
+		fdlFieldName.right= new FormAttachment(middle, -margin);
+		fdlFieldName.top  = new FormAttachment(0, margin);
+		wlFieldName.setLayoutData(fdlFieldName);
+		wFieldName=new CCombo(shell, SWT.BORDER | SWT.READ_ONLY);
+		props.setLook(wFieldName);
+		wFieldName.addModifyListener(lsMod);
+		fdFieldName=new FormData();
+		fdFieldName.left  = new FormAttachment(middle, 0);
+		fdFieldName.top   = new FormAttachment(0, margin);
+		fdFieldName.right = new FormAttachment(100, 0);
+		wFieldName.setLayoutData(fdFieldName);
+		getMapFields();
+
+		// Map key
+		wlKeyName=new Label(shell, SWT.RIGHT);
+		wlKeyName.setText(BaseMessages.getString(PKG, "MapKeyPartitionerDialog.KeyName.Label"));
+		props.setLook(wlKeyName);
+		fdlKeyName=new FormData();
+		fdlKeyName.left = new FormAttachment(0, 0);
+		fdlKeyName.right= new FormAttachment(middle, -margin);
+		fdlKeyName.top  = new FormAttachment(wFieldName, margin);
+		wlKeyName.setLayoutData(fdlKeyName);
+		wKeyName=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+		wKeyName.setText("");
+		wKeyName.setToolTipText(BaseMessages.getString(PKG, "MapKeyPartitionerDialog.KeyName.Tooltip"));
+		props.setLook(wKeyName);
+		wKeyName.addModifyListener(lsMod);
+		fdKeyName=new FormData();
+		fdKeyName.left = new FormAttachment(middle, 0);
+		fdKeyName.top  = new FormAttachment(wFieldName, margin);
+		fdKeyName.right= new FormAttachment(100, 0);
+		wKeyName.setLayoutData(fdKeyName);
+
+		// Some buttons
+		wOK=new Button(shell, SWT.PUSH);
+		wOK.setText(BaseMessages.getString(PKG, "System.Button.OK"));
+		wCancel=new Button(shell, SWT.PUSH);
+		wCancel.setText(BaseMessages.getString(PKG, "System.Button.Cancel"));
+
+		setButtonPositions(new Button[] { wOK, wCancel }, margin, wKeyName);
+
+		// Add listeners
+		lsCancel   = new Listener() { public void handleEvent(Event e) { cancel(); } };
+		lsOK       = new Listener() { public void handleEvent(Event e) { ok();     } };
+
+		wCancel.addListener(SWT.Selection, lsCancel);
+		wOK.addListener    (SWT.Selection, lsOK    );
+
+		lsDef=new SelectionAdapter() { public void widgetDefaultSelected(SelectionEvent e) { ok(); } };
+
+		wKeyName.addSelectionListener( lsDef );
+
+		// Detect X or ALT-F4 or something that kills this window...
+		shell.addShellListener(	new ShellAdapter() { public void shellClosed(ShellEvent e) { cancel(); } } );
+
+		// Set the shell size, based upon previous time...
+		setSize();
+
+		getData();
+		partitioningMeta.hasChanged(changed);
+
+		shell.open();
+		while (!shell.isDisposed())
+		{
+				if (!display.readAndDispatch()) display.sleep();
+		}
+		return stepname;
+	}
+
+	/**
+	 * Copy information from the partitioner to the dialog fields.
+	 */
+	public void getData() {
+		if(!Const.isEmpty(partitioner.getFieldName())) {
+			wFieldName.setText(partitioner.getFieldName());
+		}
+		if(!Const.isEmpty(partitioner.getKeyName())) {
+			wKeyName.setText(partitioner.getKeyName());
+		}
+	}
+
+	private void cancel()
+	{
+		stepname=null;
+		partitioningMeta.hasChanged(changed);
+		dispose();
+	}
+
+	private void ok()
+	{
+		partitioner.setFieldName(wFieldName.getText());
+		partitioner.setKeyName(wKeyName.getText());
+		dispose();
+	}
+
+	/**
+	 * Offers the map fields of the rows going into the step.
+	 */
+	private void getMapFields()
+	{
+		try {
+			RowMetaInterface previousFields = transMeta.getPrevStepFields(stepMeta);
+			if(previousFields != null) {
+				List<String> mapFields = new ArrayList<String>();
+				for(ValueMetaInterface valueMeta : previousFields.getValueMetaList()) {
+					if(valueMeta instanceof ValueMetaMap) {
+						mapFields.add(valueMeta.getName());
+					}
+				}
+				Collections.sort(mapFields);
+				wFieldName.setItems(mapFields.toArray(new String[mapFields.size()]));
+			}
+		} catch(KettleException ke) {
+			new ErrorDialog(shell,
+					BaseMessages.getString(PKG, "MapKeyPartitionerDialog.FailedToGetFields.DialogTitle"),
+					BaseMessages.getString(PKG, "MapKeyPartitionerDialog.FailedToGetFields.DialogMessage"), ke);
+		}
+	}
+}
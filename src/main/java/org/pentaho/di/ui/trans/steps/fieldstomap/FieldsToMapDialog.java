@@ -41,16 +41,20 @@ import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.TableItem;
 import org.eclipse.swt.widgets.Text;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaMap;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStepMeta;
 import org.pentaho.di.trans.step.StepDialogInterface;
 import org.pentaho.di.trans.steps.fieldstomap.FieldsToMapMeta;
 import org.pentaho.di.ui.core.dialog.ErrorDialog;
+import org.pentaho.di.ui.core.widget.ColumnInfo;
+import org.pentaho.di.ui.core.widget.TableView;
 import org.pentaho.di.ui.core.widget.TextVar;
 import org.pentaho.di.ui.trans.step.BaseStepDialog;
 
@@ -71,9 +75,63 @@ public class FieldsToMapDialog extends BaseStepDialog implements StepDialogInter
   private CCombo       wValueField;
   private FormData     fdlValueField, fdValueField;
   
+  private Label        wlMergeFunction;
+  private CCombo       wMergeFunction;
+  private FormData     fdlMergeFunction, fdMergeFunction;
+  
   private Label        wlMapField;
   private TextVar      wMapField;
   private FormData     fdlMapField, fdMapField;
+  
+  private Label        wlMapStorage;
+  private CCombo       wMapStorage;
+  private FormData     fdlMapStorage, fdMapStorage;
+  
+  private Label        wlStorageDirectory;
+  private TextVar      wStorageDirectory;
+  private FormData     fdlStorageDirectory, fdStorageDirectory;
+  
+  private Label        wlFreezeMap;
+  private Button       wFreezeMap;
+  private FormData     fdlFreezeMap, fdFreezeMap;
+  
+  private Label        wlMapImplementation;
+  private CCombo       wMapImplementation;
+  private FormData     fdlMapImplementation, fdMapImplementation;
+  
+  private Label        wlMergeCopies;
+  private Button       wMergeCopies;
+  private FormData     fdlMergeCopies, fdMergeCopies;
+  
+  private Label        wlGroupMode;
+  private CCombo       wGroupMode;
+  private FormData     fdlGroupMode, fdGroupMode;
+  
+  private Label        wlMemoryBudget;
+  private TextVar      wMemoryBudget;
+  private FormData     fdlMemoryBudget, fdMemoryBudget;
+  
+  private Label        wlSpillDirectory;
+  private TextVar      wSpillDirectory;
+  private FormData     fdlSpillDirectory, fdSpillDirectory;
+  
+  private Label        wlPivot;
+  private Button       wPivot;
+  private FormData     fdlPivot, fdPivot;
+  
+  private Label        wlPivotPattern;
+  private TextVar      wPivotPattern;
+  private FormData     fdlPivotPattern, fdPivotPattern;
+  
+  private Label        wlPivotFields;
+  private TableView    wPivotFields;
+  private ColumnInfo[] ciPivotFields;
+  private FormData     fdlPivotFields, fdPivotFields;
+  
+  private Label        wlGroup;
+  private TableView    wGroup;
+  private ColumnInfo[] ciGroup;
+  private FormData     fdlGroup, fdGroup;
 
 	public FieldsToMapDialog(Shell parent, Object in, TransMeta tr, String sname)
 	{
@@ -189,13 +247,35 @@ public class FieldsToMapDialog extends BaseStepDialog implements StepDialogInter
     });
 		
     // Map field
+    // Merge function
+    wlMergeFunction=new Label(shell, SWT.RIGHT);
+    wlMergeFunction.setText(BaseMessages.getString(PKG, "FieldsToMapDialog.MergeFunction.Label")); 
+    props.setLook(wlMergeFunction);
+    fdlMergeFunction=new FormData();
+    fdlMergeFunction.left = new FormAttachment(0, 0);
+    fdlMergeFunction.right= new FormAttachment(middle, -margin);
+    fdlMergeFunction.top  = new FormAttachment(wValueField, margin);
+    wlMergeFunction.setLayoutData(fdlMergeFunction);
+    wMergeFunction=new CCombo(shell, SWT.BORDER | SWT.READ_ONLY);
+    for(String code : FieldsToMapMeta.mergeFunctionCodes) {
+      wMergeFunction.add(BaseMessages.getString(PKG, "FieldsToMapDialog.MergeFunction." + code));
+    }
+    wMergeFunction.setToolTipText(BaseMessages.getString(PKG, "FieldsToMapDialog.MergeFunction.Tooltip"));
+    props.setLook(wMergeFunction);
+    wMergeFunction.addModifyListener(lsMod);
+    fdMergeFunction=new FormData();
+    fdMergeFunction.left  = new FormAttachment(middle, 0);
+    fdMergeFunction.top   = new FormAttachment(wValueField, margin);
+    fdMergeFunction.right = new FormAttachment(100, 0);
+    wMergeFunction.setLayoutData(fdMergeFunction);
+    
     wlMapField=new Label(shell, SWT.RIGHT);
     wlMapField.setText(BaseMessages.getString(PKG, "FieldsToMapDialog.MapField.Label")); 
     props.setLook(wlMapField);
     fdlMapField=new FormData();
     fdlMapField.left = new FormAttachment(0, 0);
     fdlMapField.right= new FormAttachment(middle, -margin);
-    fdlMapField.top  = new FormAttachment(wValueField, margin);
+    fdlMapField.top  = new FormAttachment(wMergeFunction, margin);
     wlMapField.setLayoutData(fdlMapField);
     wMapField=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
     wMapField.setText("");
@@ -203,17 +283,286 @@ public class FieldsToMapDialog extends BaseStepDialog implements StepDialogInter
     wMapField.addModifyListener(lsMod);
     fdMapField=new FormData();
     fdMapField.left = new FormAttachment(middle, 0);
-    fdMapField.top  = new FormAttachment(wValueField, margin);
+    fdMapField.top  = new FormAttachment(wMergeFunction, margin);
     fdMapField.right= new FormAttachment(100, 0);
     wMapField.setLayoutData(fdMapField);
     
+    // Map storage
+    wlMapStorage=new Label(shell, SWT.RIGHT);
+    wlMapStorage.setText(BaseMessages.getString(PKG, "FieldsToMapDialog.MapStorage.Label")); 
+    props.setLook(wlMapStorage);
+    fdlMapStorage=new FormData();
+    fdlMapStorage.left = new FormAttachment(0, 0);
+    fdlMapStorage.right= new FormAttachment(middle, -margin);
+    fdlMapStorage.top  = new FormAttachment(wMapField, margin);
+    wlMapStorage.setLayoutData(fdlMapStorage);
+    wMapStorage=new CCombo(shell, SWT.BORDER | SWT.READ_ONLY);
+    for (String code : FieldsToMapMeta.storageCodes) {
+      wMapStorage.add(BaseMessages.getString(PKG, "FieldsToMapDialog.MapStorage." + code));
+    }
+    props.setLook(wMapStorage);
+    wMapStorage.addModifyListener(lsMod);
+    wMapStorage.addSelectionListener(new SelectionAdapter() {
+      public void widgetSelected(SelectionEvent e) {
+        setStorageDirectoryEnabled();
+      }
+    });
+    fdMapStorage=new FormData();
+    fdMapStorage.left  = new FormAttachment(middle, 0);
+    fdMapStorage.top   = new FormAttachment(wMapField, margin);
+    fdMapStorage.right = new FormAttachment(100, 0);
+    wMapStorage.setLayoutData(fdMapStorage);
+    
+    // Directory of the memory-mapped file
+    wlStorageDirectory=new Label(shell, SWT.RIGHT);
+    wlStorageDirectory.setText(BaseMessages.getString(PKG, "FieldsToMapDialog.StorageDirectory.Label")); 
+    props.setLook(wlStorageDirectory);
+    fdlStorageDirectory=new FormData();
+    fdlStorageDirectory.left = new FormAttachment(0, 0);
+    fdlStorageDirectory.right= new FormAttachment(middle, -margin);
+    fdlStorageDirectory.top  = new FormAttachment(wMapStorage, margin);
+    wlStorageDirectory.setLayoutData(fdlStorageDirectory);
+    wStorageDirectory=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    wStorageDirectory.setText("");
+    wStorageDirectory.setToolTipText(BaseMessages.getString(PKG, "FieldsToMapDialog.StorageDirectory.Tooltip"));
+    props.setLook(wStorageDirectory);
+    wStorageDirectory.addModifyListener(lsMod);
+    fdStorageDirectory=new FormData();
+    fdStorageDirectory.left = new FormAttachment(middle, 0);
+    fdStorageDirectory.top  = new FormAttachment(wMapStorage, margin);
+    fdStorageDirectory.right= new FormAttachment(100, 0);
+    wStorageDirectory.setLayoutData(fdStorageDirectory);
+    
+    // Freeze the finished map
+    wlFreezeMap=new Label(shell, SWT.RIGHT);
+    wlFreezeMap.setText(BaseMessages.getString(PKG, "FieldsToMapDialog.FreezeMap.Label")); 
+    props.setLook(wlFreezeMap);
+    fdlFreezeMap=new FormData();
+    fdlFreezeMap.left = new FormAttachment(0, 0);
+    fdlFreezeMap.right= new FormAttachment(middle, -margin);
+    fdlFreezeMap.top  = new FormAttachment(wStorageDirectory, margin);
+    wlFreezeMap.setLayoutData(fdlFreezeMap);
+    wFreezeMap=new Button(shell, SWT.CHECK);
+    wFreezeMap.setToolTipText(BaseMessages.getString(PKG, "FieldsToMapDialog.FreezeMap.Tooltip"));
+    props.setLook(wFreezeMap);
+    fdFreezeMap=new FormData();
+    fdFreezeMap.left = new FormAttachment(middle, 0);
+    fdFreezeMap.top  = new FormAttachment(wStorageDirectory, margin);
+    fdFreezeMap.right= new FormAttachment(100, 0);
+    wFreezeMap.setLayoutData(fdFreezeMap);
+    wFreezeMap.addSelectionListener(new SelectionAdapter() {
+      public void widgetSelected(SelectionEvent e) {
+        input.setChanged();
+      }
+    });
+    
+    // Map implementation
+    wlMapImplementation=new Label(shell, SWT.RIGHT);
+    wlMapImplementation.setText(BaseMessages.getString(PKG, "FieldsToMapDialog.MapImplementation.Label")); 
+    props.setLook(wlMapImplementation);
+    fdlMapImplementation=new FormData();
+    fdlMapImplementation.left = new FormAttachment(0, 0);
+    fdlMapImplementation.right= new FormAttachment(middle, -margin);
+    fdlMapImplementation.top  = new FormAttachment(wFreezeMap, margin);
+    wlMapImplementation.setLayoutData(fdlMapImplementation);
+    wMapImplementation=new CCombo(shell, SWT.BORDER | SWT.READ_ONLY);
+    for(String code : ValueMetaMap.mapImplementationCodes) {
+      wMapImplementation.add(BaseMessages.getString(PKG, "FieldsToMapDialog.MapImplementation." + code));
+    }
+    wMapImplementation.setToolTipText(BaseMessages.getString(PKG, "FieldsToMapDialog.MapImplementation.Tooltip"));
+    props.setLook(wMapImplementation);
+    wMapImplementation.addModifyListener(lsMod);
+    fdMapImplementation=new FormData();
+    fdMapImplementation.left  = new FormAttachment(middle, 0);
+    fdMapImplementation.top   = new FormAttachment(wFreezeMap, margin);
+    fdMapImplementation.right = new FormAttachment(100, 0);
+    wMapImplementation.setLayoutData(fdMapImplementation);
+    
 		// Some buttons
 		wOK=new Button(shell, SWT.PUSH);
 		wOK.setText(BaseMessages.getString(PKG, "System.Button.OK")); 
 		wCancel=new Button(shell, SWT.PUSH);
 		wCancel.setText(BaseMessages.getString(PKG, "System.Button.Cancel")); 
 
-		setButtonPositions(new Button[] { wOK, wCancel }, margin, wMapField);
+		setButtonPositions(new Button[] { wOK, wCancel }, margin, null);
+		
+    // Merge the maps of the step copies
+    wlMergeCopies=new Label(shell, SWT.RIGHT);
+    wlMergeCopies.setText(BaseMessages.getString(PKG, "FieldsToMapDialog.MergeCopies.Label")); 
+    props.setLook(wlMergeCopies);
+    fdlMergeCopies=new FormData();
+    fdlMergeCopies.left = new FormAttachment(0, 0);
+    fdlMergeCopies.right= new FormAttachment(middle, -margin);
+    fdlMergeCopies.top  = new FormAttachment(wMapImplementation, margin);
+    wlMergeCopies.setLayoutData(fdlMergeCopies);
+    wMergeCopies=new Button(shell, SWT.CHECK);
+    wMergeCopies.setToolTipText(BaseMessages.getString(PKG, "FieldsToMapDialog.MergeCopies.Tooltip"));
+    props.setLook(wMergeCopies);
+    fdMergeCopies=new FormData();
+    fdMergeCopies.left = new FormAttachment(middle, 0);
+    fdMergeCopies.top  = new FormAttachment(wMapImplementation, margin);
+    fdMergeCopies.right= new FormAttachment(100, 0);
+    wMergeCopies.setLayoutData(fdMergeCopies);
+    wMergeCopies.addSelectionListener(new SelectionAdapter() {
+      public void widgetSelected(SelectionEvent e) {
+        input.setChanged();
+      }
+    });
+    
+    // Group mode
+    wlGroupMode=new Label(shell, SWT.RIGHT);
+    wlGroupMode.setText(BaseMessages.getString(PKG, "FieldsToMapDialog.GroupMode.Label")); 
+    props.setLook(wlGroupMode);
+    fdlGroupMode=new FormData();
+    fdlGroupMode.left = new FormAttachment(0, 0);
+    fdlGroupMode.right= new FormAttachment(middle, -margin);
+    fdlGroupMode.top  = new FormAttachment(wMergeCopies, margin);
+    wlGroupMode.setLayoutData(fdlGroupMode);
+    wGroupMode=new CCombo(shell, SWT.BORDER | SWT.READ_ONLY);
+    for(String code : FieldsToMapMeta.groupModeCodes) {
+      wGroupMode.add(BaseMessages.getString(PKG, "FieldsToMapDialog.GroupMode." + code));
+    }
+    props.setLook(wGroupMode);
+    wGroupMode.addModifyListener(lsMod);
+    wGroupMode.addSelectionListener(new SelectionAdapter() {
+      public void widgetSelected(SelectionEvent e) {
+        setSpillEnabled();
+      }
+    });
+    fdGroupMode=new FormData();
+    fdGroupMode.left  = new FormAttachment(middle, 0);
+    fdGroupMode.top   = new FormAttachment(wMergeCopies, margin);
+    fdGroupMode.right = new FormAttachment(100, 0);
+    wGroupMode.setLayoutData(fdGroupMode);
+    
+    // Memory budget
+    wlMemoryBudget=new Label(shell, SWT.RIGHT);
+    wlMemoryBudget.setText(BaseMessages.getString(PKG, "FieldsToMapDialog.MemoryBudget.Label")); 
+    props.setLook(wlMemoryBudget);
+    fdlMemoryBudget=new FormData();
+    fdlMemoryBudget.left = new FormAttachment(0, 0);
+    fdlMemoryBudget.right= new FormAttachment(middle, -margin);
+    fdlMemoryBudget.top  = new FormAttachment(wGroupMode, margin);
+    wlMemoryBudget.setLayoutData(fdlMemoryBudget);
+    wMemoryBudget=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    wMemoryBudget.setText("");
+    wMemoryBudget.setToolTipText(BaseMessages.getString(PKG, "FieldsToMapDialog.MemoryBudget.Tooltip"));
+    props.setLook(wMemoryBudget);
+    wMemoryBudget.addModifyListener(lsMod);
+    fdMemoryBudget=new FormData();
+    fdMemoryBudget.left = new FormAttachment(middle, 0);
+    fdMemoryBudget.top  = new FormAttachment(wGroupMode, margin);
+    fdMemoryBudget.right= new FormAttachment(100, 0);
+    wMemoryBudget.setLayoutData(fdMemoryBudget);
+    
+    // Spill directory
+    wlSpillDirectory=new Label(shell, SWT.RIGHT);
+    wlSpillDirectory.setText(BaseMessages.getString(PKG, "FieldsToMapDialog.SpillDirectory.Label")); 
+    props.setLook(wlSpillDirectory);
+    fdlSpillDirectory=new FormData();
+    fdlSpillDirectory.left = new FormAttachment(0, 0);
+    fdlSpillDirectory.right= new FormAttachment(middle, -margin);
+    fdlSpillDirectory.top  = new FormAttachment(wMemoryBudget, margin);
+    wlSpillDirectory.setLayoutData(fdlSpillDirectory);
+    wSpillDirectory=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    wSpillDirectory.setText("");
+    wSpillDirectory.setToolTipText(BaseMessages.getString(PKG, "FieldsToMapDialog.SpillDirectory.Tooltip"));
+    props.setLook(wSpillDirectory);
+    wSpillDirectory.addModifyListener(lsMod);
+    fdSpillDirectory=new FormData();
+    fdSpillDirectory.left = new FormAttachment(middle, 0);
+    fdSpillDirectory.top  = new FormAttachment(wMemoryBudget, margin);
+    fdSpillDirectory.right= new FormAttachment(100, 0);
+    wSpillDirectory.setLayoutData(fdSpillDirectory);
+    
+    // Pivot mode
+    wlPivot=new Label(shell, SWT.RIGHT);
+    wlPivot.setText(BaseMessages.getString(PKG, "FieldsToMapDialog.Pivot.Label")); 
+    props.setLook(wlPivot);
+    fdlPivot=new FormData();
+    fdlPivot.left = new FormAttachment(0, 0);
+    fdlPivot.right= new FormAttachment(middle, -margin);
+    fdlPivot.top  = new FormAttachment(wSpillDirectory, margin);
+    wlPivot.setLayoutData(fdlPivot);
+    wPivot=new Button(shell, SWT.CHECK);
+    wPivot.setToolTipText(BaseMessages.getString(PKG, "FieldsToMapDialog.Pivot.Tooltip"));
+    props.setLook(wPivot);
+    fdPivot=new FormData();
+    fdPivot.left = new FormAttachment(middle, 0);
+    fdPivot.top  = new FormAttachment(wSpillDirectory, margin);
+    fdPivot.right= new FormAttachment(100, 0);
+    wPivot.setLayoutData(fdPivot);
+    wPivot.addSelectionListener(new SelectionAdapter() {
+      public void widgetSelected(SelectionEvent e) {
+        input.setChanged();
+        setPivotEnabled();
+      }
+    });
+    
+    // Pivot field pattern
+    wlPivotPattern=new Label(shell, SWT.RIGHT);
+    wlPivotPattern.setText(BaseMessages.getString(PKG, "FieldsToMapDialog.PivotPattern.Label")); 
+    props.setLook(wlPivotPattern);
+    fdlPivotPattern=new FormData();
+    fdlPivotPattern.left = new FormAttachment(0, 0);
+    fdlPivotPattern.right= new FormAttachment(middle, -margin);
+    fdlPivotPattern.top  = new FormAttachment(wPivot, margin);
+    wlPivotPattern.setLayoutData(fdlPivotPattern);
+    wPivotPattern=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    wPivotPattern.setText("");
+    wPivotPattern.setToolTipText(BaseMessages.getString(PKG, "FieldsToMapDialog.PivotPattern.Tooltip"));
+    props.setLook(wPivotPattern);
+    wPivotPattern.addModifyListener(lsMod);
+    fdPivotPattern=new FormData();
+    fdPivotPattern.left = new FormAttachment(middle, 0);
+    fdPivotPattern.top  = new FormAttachment(wPivot, margin);
+    fdPivotPattern.right= new FormAttachment(100, 0);
+    wPivotPattern.setLayoutData(fdPivotPattern);
+    
+    // Group fields
+    wlGroup=new Label(shell, SWT.NONE);
+    wlGroup.setText(BaseMessages.getString(PKG, "FieldsToMapDialog.Group.Label")); 
+    props.setLook(wlGroup);
+    fdlGroup=new FormData();
+    fdlGroup.left  = new FormAttachment(0, 0);
+    fdlGroup.top   = new FormAttachment(wPivotPattern, margin);
+    wlGroup.setLayoutData(fdlGroup);
+    
+    ciGroup=new ColumnInfo[] {
+      new ColumnInfo(BaseMessages.getString(PKG, "FieldsToMapDialog.ColumnInfo.GroupField"), ColumnInfo.COLUMN_TYPE_CCOMBO, new String[] { "" }, false),
+    };
+    ciGroup[0].setToolTip(BaseMessages.getString(PKG, "FieldsToMapDialog.Group.Tooltip"));
+    int nrGroupRows = Math.max(input.getGroupFieldNames().length, 1);
+    wGroup=new TableView(transMeta, shell, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI | SWT.V_SCROLL | SWT.H_SCROLL, ciGroup, nrGroupRows, lsMod, props);
+    fdGroup=new FormData();
+    fdGroup.left  = new FormAttachment(0, 0);
+    fdGroup.top   = new FormAttachment(wlGroup, margin);
+    fdGroup.right = new FormAttachment(50, -margin);
+    fdGroup.bottom= new FormAttachment(wOK, -2*margin);
+    wGroup.setLayoutData(fdGroup);
+    
+    // Pivot fields, next to the group fields
+    wlPivotFields=new Label(shell, SWT.NONE);
+    wlPivotFields.setText(BaseMessages.getString(PKG, "FieldsToMapDialog.PivotFields.Label")); 
+    props.setLook(wlPivotFields);
+    fdlPivotFields=new FormData();
+    fdlPivotFields.left  = new FormAttachment(50, margin);
+    fdlPivotFields.top   = new FormAttachment(wPivotPattern, margin);
+    wlPivotFields.setLayoutData(fdlPivotFields);
+    
+    ciPivotFields=new ColumnInfo[] {
+      new ColumnInfo(BaseMessages.getString(PKG, "FieldsToMapDialog.ColumnInfo.PivotField"), ColumnInfo.COLUMN_TYPE_CCOMBO, new String[] { "" }, false),
+    };
+    ciPivotFields[0].setToolTip(BaseMessages.getString(PKG, "FieldsToMapDialog.PivotFields.Tooltip"));
+    int nrPivotRows = Math.max(input.getPivotFieldNames().length, 1);
+    wPivotFields=new TableView(transMeta, shell, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI | SWT.V_SCROLL | SWT.H_SCROLL, ciPivotFields, nrPivotRows, lsMod, props);
+    fdPivotFields=new FormData();
+    fdPivotFields.left  = new FormAttachment(50, margin);
+    fdPivotFields.top   = new FormAttachment(wlPivotFields, margin);
+    fdPivotFields.right = new FormAttachment(100, 0);
+    fdPivotFields.bottom= new FormAttachment(wOK, -2*margin);
+    wPivotFields.setLayoutData(fdPivotFields);
+    setGroupComboValues();
 
 		// Add listeners
 		lsCancel   = new Listener() { public void handleEvent(Event e) { cancel(); } };
@@ -257,6 +606,45 @@ public class FieldsToMapDialog extends BaseStepDialog implements StepDialogInter
     if(!Const.isEmpty(input.getMapFieldName())) {
       wMapField.setText(input.getMapFieldName());
     }
+    wMapStorage.select(input.getMapStorage());
+    if(!Const.isEmpty(input.getStorageDirectory())) {
+      wStorageDirectory.setText(input.getStorageDirectory());
+    }
+    setStorageDirectoryEnabled();
+    wFreezeMap.setSelection(input.isFreezeMap());
+    wMapImplementation.select(input.getMapImplementation());
+    wMergeCopies.setSelection(input.isMergeCopies());
+    wMergeFunction.select(input.getMergeFunction());
+    String[] groupFieldNames = input.getGroupFieldNames();
+    for(int i = 0; i < groupFieldNames.length; i++) {
+      TableItem item = wGroup.table.getItem(i);
+      if(groupFieldNames[i] != null) {
+        item.setText(1, groupFieldNames[i]);
+      }
+    }
+    wGroup.setRowNums();
+    wGroup.optWidth(true);
+    wGroupMode.select(input.getGroupMode());
+    if(!Const.isEmpty(input.getMemoryBudget())) {
+      wMemoryBudget.setText(input.getMemoryBudget());
+    }
+    if(!Const.isEmpty(input.getSpillDirectory())) {
+      wSpillDirectory.setText(input.getSpillDirectory());
+    }
+    wPivot.setSelection(input.isPivot());
+    if(!Const.isEmpty(input.getPivotFieldPattern())) {
+      wPivotPattern.setText(input.getPivotFieldPattern());
+    }
+    String[] pivotFieldNames = input.getPivotFieldNames();
+    for(int i = 0; i < pivotFieldNames.length; i++) {
+      TableItem item = wPivotFields.table.getItem(i);
+      if(pivotFieldNames[i] != null) {
+        item.setText(1, pivotFieldNames[i]);
+      }
+    }
+    wPivotFields.setRowNums();
+    wPivotFields.optWidth(true);
+    setPivotEnabled();
     
     wStepname.selectAll();
     wStepname.setFocus();
@@ -277,10 +665,93 @@ public class FieldsToMapDialog extends BaseStepDialog implements StepDialogInter
 		input.setKeyFieldName(wKeyField.getText());
 		input.setValueFieldName(wValueField.getText());
 		input.setMapFieldName(wMapField.getText());
+		input.setMergeFunction(Math.max(wMergeFunction.getSelectionIndex(), FieldsToMapMeta.MERGE_LAST));
+		input.setMapStorage(Math.max(wMapStorage.getSelectionIndex(), FieldsToMapMeta.STORAGE_HEAP));
+		input.setStorageDirectory(wStorageDirectory.getText());
+		input.setFreezeMap(wFreezeMap.getSelection());
+		input.setMapImplementation(Math.max(wMapImplementation.getSelectionIndex(), ValueMetaMap.MAP_IMPLEMENTATION_AUTO));
+		input.setMergeCopies(wMergeCopies.getSelection());
+		int nrGroups = wGroup.nrNonEmpty();
+		String[] groupFieldNames = new String[nrGroups];
+		for(int i = 0; i < nrGroups; i++) {
+		  groupFieldNames[i] = wGroup.getNonEmpty(i).getText(1);
+		}
+		input.setGroupFieldNames(groupFieldNames);
+		input.setGroupMode(Math.max(wGroupMode.getSelectionIndex(), FieldsToMapMeta.GROUP_SORTED));
+		input.setMemoryBudget(wMemoryBudget.getText());
+		input.setSpillDirectory(wSpillDirectory.getText());
+		input.setPivot(wPivot.getSelection());
+		input.setPivotFieldPattern(wPivotPattern.getText());
+		int nrPivotFields = wPivotFields.nrNonEmpty();
+		String[] pivotFieldNames = new String[nrPivotFields];
+		for(int i = 0; i < nrPivotFields; i++) {
+		  pivotFieldNames[i] = wPivotFields.getNonEmpty(i).getText(1);
+		}
+		input.setPivotFieldNames(pivotFieldNames);
 		
 		dispose();
 	}
 	
+	private void setStorageDirectoryEnabled()
+	{
+	  boolean mapped = wMapStorage.getSelectionIndex() == FieldsToMapMeta.STORAGE_MEMORY_MAPPED;
+	  wlStorageDirectory.setEnabled(mapped);
+	  wStorageDirectory.setEnabled(mapped);
+	}
+	
+	/**
+	 * In pivot mode the map is made of the pivot fields of each row: the options of the key/value pairs and groups don't
+	 * apply.
+	 */
+	private void setPivotEnabled()
+	{
+	  boolean pivot = wPivot.getSelection();
+	  wlKeyField.setEnabled(!pivot);
+	  wKeyField.setEnabled(!pivot);
+	  wlValueField.setEnabled(!pivot);
+	  wValueField.setEnabled(!pivot);
+	  wlMergeFunction.setEnabled(!pivot);
+	  wMergeFunction.setEnabled(!pivot);
+	  wlMergeCopies.setEnabled(!pivot);
+	  wMergeCopies.setEnabled(!pivot);
+	  wlGroupMode.setEnabled(!pivot);
+	  wGroupMode.setEnabled(!pivot);
+	  wlGroup.setEnabled(!pivot);
+	  wGroup.setEnabled(!pivot);
+	  wlPivotPattern.setEnabled(pivot);
+	  wPivotPattern.setEnabled(pivot);
+	  wlPivotFields.setEnabled(pivot);
+	  wPivotFields.setEnabled(pivot);
+	  setSpillEnabled();
+	}
+	
+	private void setSpillEnabled()
+	{
+	  boolean hash = wGroupMode.getSelectionIndex() == FieldsToMapMeta.GROUP_HASH && !wPivot.getSelection();
+	  wlMemoryBudget.setEnabled(hash);
+	  wMemoryBudget.setEnabled(hash);
+	  wlSpillDirectory.setEnabled(hash);
+	  wSpillDirectory.setEnabled(hash);
+	}
+	
+	private void setGroupComboValues()
+	{
+	  try {
+	    if(!gotPreviousFields) {
+	      previousFields = transMeta.getPrevStepFields(stepname);
+	      gotPreviousFields = true;
+	    }
+	    if(previousFields != null) {
+	      ciGroup[0].setComboValues(previousFields.getFieldNames());
+	      ciPivotFields[0].setComboValues(previousFields.getFieldNames());
+	    }
+	  } catch(KettleException ke) {
+	    new ErrorDialog(shell, 
+	        BaseMessages.getString(PKG, "FieldsToMapDialog.FailedToGetFields.DialogTitle"), 
+	        BaseMessages.getString(PKG, "FieldsToMapDialog.FailedToGetFields.DialogMessage"), ke);
+	  }
+	}
+	
 	private void getFieldsInto(CCombo fieldCombo)
   {
     try {
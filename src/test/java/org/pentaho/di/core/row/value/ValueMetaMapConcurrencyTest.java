@@ -0,0 +1,64 @@
+package org.pentaho.di.core.row.value;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Step copies share the metadata of their output rows: converting strings to maps must not modify it.
+ */
+public class ValueMetaMapConcurrencyTest {
+
+  @Test
+  public void testParseWithSharedMeta() throws Exception {
+    final ValueMetaInterface keyMeta = new ValueMetaString( "key" );
+    final ValueMetaInterface valueMeta = new ValueMetaInteger( "value" );
+    final ValueMetaMap mapMeta = new ValueMetaMap( "map", keyMeta, valueMeta );
+    mapMeta.setParseCacheSize( 0 );
+
+    int threads = 8;
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for ( int t = 0; t < threads; t++ ) {
+      final int thread = t;
+      tasks.add( new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for ( int i = 0; i < 20000; i++ ) {
+            long value = thread * 100000L + i;
+            Map<Object, Object> map = mapMeta.getMap( "{a=" + value + ", b=" + ( value + 1 ) + ", t=" + thread + "}" );
+
+            Map<Object, Object> expected = new HashMap<Object, Object>();
+            expected.put( "a", value );
+            expected.put( "b", value + 1 );
+            expected.put( "t", (long) thread );
+            assertEquals( expected, map );
+          }
+          return null;
+        }
+      } );
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool( threads );
+    try {
+      for ( Future<Void> future : executor.invokeAll( tasks ) ) {
+        future.get(); // rethrows assertion failures
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertSame( keyMeta, mapMeta.getKeyMeta() );
+    assertSame( valueMeta, mapMeta.getValueMeta() );
+  }
+}
@@ -0,0 +1,155 @@
+package org.pentaho.di.core.row.value;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.junit.Test;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.map.MapCodec;
+import org.pentaho.di.core.row.value.map.MapFormatter;
+import org.pentaho.di.core.row.value.map.MapStringParser;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.w3c.dom.Node;
+
+/**
+ * The binary form of the map metadata, as exchanged by remote steps and slave servers.
+ */
+public class ValueMetaMapMetadataTest {
+
+  /**
+   * Reads a value metadata the way RowMeta does: its type, then the rest.
+   */
+  private static ValueMetaInterface readMeta( DataInputStream in ) throws Exception {
+    ValueMetaInterface meta = ValueMetaFactory.createValueMeta( in.readInt() );
+    meta.readMetaData( in );
+    return meta;
+  }
+
+  private static DataInputStream input( ByteArrayOutputStream bytes ) {
+    return new DataInputStream( new BufferedInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ) );
+  }
+
+  private static void assertDefaults( ValueMetaInterface meta ) {
+    assertTrue( meta instanceof ValueMetaMap );
+    ValueMetaMap mapMeta = (ValueMetaMap) meta;
+    assertEquals( "map", mapMeta.getName() );
+    assertEquals( ValueMetaInterface.TYPE_STRING, mapMeta.getKeyMeta().getType() );
+    assertEquals( ValueMetaInterface.TYPE_STRING, mapMeta.getValueMeta().getType() );
+    assertEquals( MapCodec.CURRENT_FORMAT, mapMeta.getWriteFormatVersion() );
+    assertEquals( MapStringParser.DEFAULT_ENTRY_SEPARATOR, mapMeta.getEntrySeparator() );
+  }
+
+  /**
+   * A map of maps, with settings other than the defaults on both levels.
+   */
+  private static ValueMetaMap createNestedMeta() {
+    ValueMetaMap innerMeta = new ValueMetaMap( "inner", new ValueMetaInteger( "key" ), new ValueMetaString( "value" ) );
+    innerMeta.setWriteFormatVersion( MapCodec.FORMAT_V1 );
+    innerMeta.setFixedKeys( new String[] { "1", "2", "3" } );
+    innerMeta.setEntrySeparator( "|" );
+    innerMeta.setKeyValueSeparator( ":" );
+    innerMeta.setMapImplementation( ValueMetaMap.MAP_IMPLEMENTATION_LINKED );
+
+    ValueMetaMap mapMeta = new ValueMetaMap( "map", new ValueMetaString( "key" ), innerMeta );
+    mapMeta.setWriteFormatVersion( MapCodec.FORMAT_CANONICAL );
+    mapMeta.setEntrySeparator( ";" );
+    mapMeta.setKeyValueSeparator( "=>" );
+    mapMeta.setEnclosure( "'" );
+    mapMeta.setEscape( "\\" );
+    mapMeta.setStringFormat( MapFormatter.FORMAT_JSON );
+    mapMeta.setMapImplementation( ValueMetaMap.MAP_IMPLEMENTATION_TREE );
+    mapMeta.setLazyDecoding( false );
+    return mapMeta;
+  }
+
+  private static void assertNestedMeta( ValueMetaInterface meta ) {
+    assertTrue( meta instanceof ValueMetaMap );
+    ValueMetaMap mapMeta = (ValueMetaMap) meta;
+    assertEquals( "map", mapMeta.getName() );
+    assertEquals( ValueMetaInterface.TYPE_STRING, mapMeta.getKeyMeta().getType() );
+    assertEquals( MapCodec.FORMAT_CANONICAL, mapMeta.getWriteFormatVersion() );
+    assertEquals( ";", mapMeta.getEntrySeparator() );
+    assertEquals( "=>", mapMeta.getKeyValueSeparator() );
+    assertEquals( "'", mapMeta.getEnclosure() );
+    assertEquals( "\\", mapMeta.getEscape() );
+    assertEquals( MapFormatter.FORMAT_JSON, mapMeta.getStringFormat() );
+    assertEquals( ValueMetaMap.MAP_IMPLEMENTATION_TREE, mapMeta.getMapImplementation() );
+    assertFalse( mapMeta.isLazyDecoding() );
+
+    assertTrue( mapMeta.getValueMeta() instanceof ValueMetaMap );
+    ValueMetaMap innerMeta = (ValueMetaMap) mapMeta.getValueMeta();
+    assertEquals( "inner", innerMeta.getName() );
+    assertEquals( ValueMetaInterface.TYPE_INTEGER, innerMeta.getKeyMeta().getType() );
+    assertEquals( ValueMetaInterface.TYPE_STRING, innerMeta.getValueMeta().getType() );
+    assertEquals( MapCodec.FORMAT_V1, innerMeta.getWriteFormatVersion() );
+    assertArrayEquals( new String[] { "1", "2", "3" }, innerMeta.getFixedKeys() );
+    assertEquals( "|", innerMeta.getEntrySeparator() );
+    assertEquals( ":", innerMeta.getKeyValueSeparator() );
+    assertEquals( ValueMetaMap.MAP_IMPLEMENTATION_LINKED, innerMeta.getMapImplementation() );
+  }
+
+  @Test
+  public void testNestedMetadataRoundTrip() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( bytes );
+    createNestedMeta().writeMeta( out );
+    new ValueMetaString( "next" ).writeMeta( out );
+
+    DataInputStream in = input( bytes );
+    assertNestedMeta( readMeta( in ) );
+    assertEquals( "next", readMeta( in ).getName() );
+  }
+
+  @Test
+  public void testNestedMetadataXMLRoundTrip() throws Exception {
+    String xml = createNestedMeta().getMetaXML();
+    Node node = XMLHandler.getSubNode( XMLHandler.loadXMLString( xml ), ValueMetaMap.XML_META_TAG );
+
+    assertNestedMeta( new ValueMetaMap( node ) );
+  }
+
+  @Test
+  public void testReadMetadataWrittenWithoutMapPart() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( bytes );
+    // As written by versions without the map specific part: the common metadata only
+    new ValueMetaBase( "map", ValueMetaMap.TYPE_MAP ).writeMeta( out );
+    new ValueMetaString( "next" ).writeMeta( out );
+
+    DataInputStream in = input( bytes );
+    assertDefaults( readMeta( in ) );
+    ValueMetaInterface next = readMeta( in );
+    assertEquals( ValueMetaInterface.TYPE_STRING, next.getType() );
+    assertEquals( "next", next.getName() );
+  }
+
+  @Test
+  public void testReadLastMetadataWrittenWithoutMapPart() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new ValueMetaBase( "map", ValueMetaMap.TYPE_MAP ).writeMeta( new DataOutputStream( bytes ) );
+
+    assertDefaults( readMeta( input( bytes ) ) );
+  }
+
+  @Test
+  public void testReadMetadataFollowedByOtherMetadata() throws Exception {
+    ValueMetaMap mapMeta = new ValueMetaMap( "map", new ValueMetaString( "key" ), new ValueMetaInteger( "value" ) );
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( bytes );
+    mapMeta.writeMeta( out );
+    new ValueMetaString( "next" ).writeMeta( out );
+
+    DataInputStream in = input( bytes );
+    ValueMetaMap read = (ValueMetaMap) readMeta( in );
+    assertEquals( ValueMetaInterface.TYPE_INTEGER, read.getValueMeta().getType() );
+    assertEquals( "next", readMeta( in ).getName() );
+  }
+}
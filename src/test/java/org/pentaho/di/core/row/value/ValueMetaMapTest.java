@@ -0,0 +1,42 @@
+package org.pentaho.di.core.row.value;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class ValueMetaMapTest {
+
+  @Test
+  public void testBigNumbersDifferingInScaleHashAlike() throws Exception {
+    ValueMetaMap mapMeta = new ValueMetaMap( "map", new ValueMetaString( "key" ), new ValueMetaBigNumber( "value" ) );
+
+    Map<Object, Object> map1 = new HashMap<Object, Object>();
+    map1.put( "a", new BigDecimal( "1.0" ) );
+    map1.put( "b", new BigDecimal( "0.00" ) );
+    map1.put( "c", new BigDecimal( "-25" ) );
+    Map<Object, Object> map2 = new TreeMap<Object, Object>();
+    map2.put( "a", new BigDecimal( "1.00" ) );
+    map2.put( "b", BigDecimal.ZERO );
+    map2.put( "c", new BigDecimal( "-2.5E1" ) );
+
+    assertEquals( 0, mapMeta.compare( map1, map2 ) );
+    assertEquals( mapMeta.hashCode( map1 ), mapMeta.hashCode( map2 ) );
+  }
+
+  @Test
+  public void testBigNumberKeysDifferingInScaleHashAlike() throws Exception {
+    ValueMetaMap mapMeta = new ValueMetaMap( "map", new ValueMetaBigNumber( "key" ), new ValueMetaInteger( "value" ) );
+
+    Map<Object, Object> map1 = new HashMap<Object, Object>();
+    map1.put( new BigDecimal( "10" ), 1L );
+    Map<Object, Object> map2 = new HashMap<Object, Object>();
+    map2.put( new BigDecimal( "1E1" ), 1L );
+
+    assertEquals( mapMeta.hashCode( map1 ), mapMeta.hashCode( map2 ) );
+  }
+}
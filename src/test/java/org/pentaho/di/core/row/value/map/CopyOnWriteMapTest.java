@@ -0,0 +1,82 @@
+package org.pentaho.di.core.row.value.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+import org.pentaho.di.core.row.value.ValueMetaMap;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+public class CopyOnWriteMapTest {
+
+  private static Map<Object, Object> sample() {
+    Map<Object, Object> map = new HashMap<Object, Object>();
+    map.put( "a", "1" );
+    map.put( "b", null );
+    map.put( "c", "3" );
+    return map;
+  }
+
+  @Test
+  public void testFrozenMapThawsOnFirstWrite() throws Exception {
+    ValueMetaMap mapMeta = new ValueMetaMap( "map", new ValueMetaString( "key" ), new ValueMetaString( "value" ) );
+    Map<Object, Object> expected = sample();
+    CopyOnWriteMap frozen = (CopyOnWriteMap) mapMeta.freezeMap( sample() );
+    Map<Object, Object> copy = mapMeta.copyMap( frozen );
+
+    assertNotNull( frozen.getFrozen() );
+    assertEquals( expected, frozen );
+    assertEquals( expected.hashCode(), frozen.hashCode() );
+
+    frozen.put( "d", "4" );
+    assertNull( frozen.getFrozen() );
+    assertEquals( "4", frozen.get( "d" ) );
+    // The copy still shares the original entries
+    assertEquals( expected, copy );
+    assertNotNull( ( (CopyOnWriteMap) copy ).getFrozen() );
+
+    for ( Iterator<Map.Entry<Object, Object>> iterator = copy.entrySet().iterator(); iterator.hasNext(); ) {
+      Map.Entry<Object, Object> entry = iterator.next();
+      if ( "a".equals( entry.getKey() ) ) {
+        iterator.remove();
+      } else if ( "c".equals( entry.getKey() ) ) {
+        entry.setValue( "three" );
+      }
+    }
+    expected.remove( "a" );
+    expected.put( "c", "three" );
+    assertEquals( expected, copy );
+    assertEquals( 4, frozen.size() );
+  }
+
+  @Test
+  public void testFrozenMapReadBackFrozenAndWritable() throws Exception {
+    ValueMetaMap mapMeta = new ValueMetaMap( "map", new ValueMetaString( "key" ), new ValueMetaString( "value" ) );
+    mapMeta.setLazyDecoding( false );
+    Map<Object, Object> frozen = mapMeta.freezeMap( sample() );
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    mapMeta.writeData( new DataOutputStream( bytes ), frozen );
+    @SuppressWarnings( "unchecked" )
+    Map<Object, Object> read =
+        (Map<Object, Object>) mapMeta.readData( new DataInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ) );
+
+    assertTrue( read instanceof CopyOnWriteMap );
+    assertNotNull( ( (CopyOnWriteMap) read ).getFrozen() );
+    assertEquals( sample(), read );
+    read.remove( "a" );
+    read.put( "e", "5" );
+    assertEquals( 3, read.size() );
+    assertEquals( sample(), frozen );
+  }
+}
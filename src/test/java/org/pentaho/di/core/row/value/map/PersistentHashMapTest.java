@@ -0,0 +1,221 @@
+package org.pentaho.di.core.row.value.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class PersistentHashMapTest {
+
+  /** Key whose hash code is chosen, to force collisions */
+  private static final class Key {
+    private final int hash;
+    private final String name;
+
+    Key( int hash, String name ) {
+      this.hash = hash;
+      this.name = name;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+      return o instanceof Key && ( (Key) o ).name.equals( name );
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  @Test
+  public void testPutGetRemove() {
+    PersistentHashMap map = new PersistentHashMap();
+    Map<Object, Object> expected = new HashMap<Object, Object>();
+    for ( long i = 0; i < 5000; i++ ) {
+      assertNull( map.put( i, "v" + i ) );
+      expected.put( i, "v" + i );
+    }
+    assertEquals( "v7", map.put( 7L, "w7" ) );
+    expected.put( 7L, "w7" );
+    for ( long i = 0; i < 5000; i += 3 ) {
+      assertEquals( expected.remove( i ), map.remove( i ) );
+    }
+    assertNull( map.remove( -1L ) );
+
+    assertEquals( expected.size(), map.size() );
+    assertEquals( expected, map );
+    assertEquals( map, expected );
+    assertEquals( expected.hashCode(), map.hashCode() );
+    assertFalse( map.containsKey( 3L ) );
+    assertTrue( map.containsKey( 4L ) );
+  }
+
+  @Test
+  public void testNullKeyAndValues() {
+    PersistentHashMap map = new PersistentHashMap();
+    map.put( null, "a" );
+    map.put( "b", null );
+    assertEquals( 2, map.size() );
+    assertTrue( map.containsKey( null ) );
+    assertTrue( map.containsKey( "b" ) );
+    assertEquals( "a", map.get( null ) );
+    assertNull( map.get( "b" ) );
+
+    Map<Object, Object> expected = new HashMap<Object, Object>();
+    expected.put( null, "a" );
+    expected.put( "b", null );
+    assertEquals( expected, map );
+    assertEquals( expected.hashCode(), map.hashCode() );
+
+    assertEquals( "a", map.remove( null ) );
+    assertFalse( map.containsKey( null ) );
+    assertEquals( 1, map.size() );
+  }
+
+  @Test
+  public void testCollisions() {
+    PersistentHashMap map = new PersistentHashMap();
+    for ( int i = 0; i < 100; i++ ) {
+      map.put( new Key( i % 4, "k" + i ), i );
+    }
+    assertEquals( 100, map.size() );
+    for ( int i = 0; i < 100; i++ ) {
+      assertEquals( i, map.get( new Key( i % 4, "k" + i ) ) );
+    }
+    assertNull( map.get( new Key( 1, "missing" ) ) );
+
+    for ( int i = 0; i < 100; i += 2 ) {
+      assertEquals( i, map.remove( new Key( i % 4, "k" + i ) ) );
+    }
+    assertEquals( 50, map.size() );
+    for ( int i = 0; i < 100; i++ ) {
+      assertEquals( i % 2 == 0 ? null : i, map.get( new Key( i % 4, "k" + i ) ) );
+    }
+    int count = 0;
+    for ( Map.Entry<Object, Object> entry : map.entrySet() ) {
+      assertEquals( 1, ( (Integer) entry.getValue() ) % 2 );
+      count++;
+    }
+    assertEquals( 50, count );
+  }
+
+  @Test
+  public void testIteratorRemove() {
+    PersistentHashMap map = new PersistentHashMap();
+    for ( long i = 0; i < 1000; i++ ) {
+      map.put( i, i );
+    }
+    PersistentHashMap snapshot = map.snapshot();
+    for ( Iterator<Map.Entry<Object, Object>> iterator = map.entrySet().iterator(); iterator.hasNext(); ) {
+      if ( ( (Long) iterator.next().getKey() ) % 2 == 0 ) {
+        iterator.remove();
+      }
+    }
+    assertEquals( 500, map.size() );
+    assertEquals( 1000, snapshot.size() );
+    assertFalse( map.containsKey( 2L ) );
+    assertTrue( snapshot.containsKey( 2L ) );
+  }
+
+  @Test
+  public void testSnapshotIsolation() {
+    PersistentHashMap map = new PersistentHashMap();
+    for ( long i = 0; i < 2000; i++ ) {
+      map.put( i, i );
+    }
+    Map<Object, Object> before = new HashMap<Object, Object>( map );
+
+    PersistentHashMap snapshot = map.snapshot();
+    for ( long i = 0; i < 2000; i += 2 ) {
+      map.remove( i );
+    }
+    map.put( 1L, "changed" );
+    map.put( null, "null" );
+    snapshot.put( 5000L, 5000L );
+
+    assertEquals( 1001, map.size() );
+    assertFalse( map.containsKey( 5000L ) );
+    assertEquals( 2001, snapshot.size() );
+    assertEquals( 1L, snapshot.get( 1L ) );
+    assertFalse( snapshot.containsKey( null ) );
+
+    snapshot.remove( 5000L );
+    assertEquals( before, snapshot );
+    assertEquals( before.hashCode(), snapshot.hashCode() );
+  }
+
+  /**
+   * Snapshots of one map are modified by several threads at once, each owning one snapshot: the trie nodes they share
+   * must be copied, never modified in place.
+   */
+  @Test
+  public void testConcurrentSnapshots() throws Exception {
+    final PersistentHashMap base = new PersistentHashMap();
+    for ( long i = 0; i < 20000; i++ ) {
+      base.put( i, i );
+    }
+    final Map<Object, Object> baseContent = new HashMap<Object, Object>( base );
+
+    int threads = 8;
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for ( int t = 0; t < threads; t++ ) {
+      final PersistentHashMap snapshot = base.snapshot();
+      final long seed = t;
+      tasks.add( new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          Random random = new Random( seed );
+          Map<Object, Object> expected = new HashMap<Object, Object>( baseContent );
+          for ( int i = 0; i < 50000; i++ ) {
+            Long key = Long.valueOf( random.nextInt( 30000 ) );
+            if ( random.nextBoolean() ) {
+              Long value = Long.valueOf( random.nextLong() );
+              assertEquals( expected.put( key, value ), snapshot.put( key, value ) );
+            } else {
+              assertEquals( expected.remove( key ), snapshot.remove( key ) );
+            }
+            if ( i % 10000 == 0 ) {
+              // a snapshot of the snapshot, modified by this thread only
+              PersistentHashMap nested = snapshot.snapshot();
+              nested.clear();
+            }
+          }
+          assertEquals( expected, snapshot );
+          assertEquals( expected.hashCode(), snapshot.hashCode() );
+          return null;
+        }
+      } );
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool( threads );
+    try {
+      for ( Future<Void> future : executor.invokeAll( tasks ) ) {
+        future.get(); // rethrows assertion failures
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals( baseContent, base );
+    assertEquals( baseContent.hashCode(), base.hashCode() );
+  }
+}
@@ -0,0 +1,98 @@
+package org.pentaho.di.core.row.value.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class PrimitiveMapTest {
+
+  @Test
+  public void testIteratorRemoveLongKeys() {
+    Random random = new Random( 1 );
+    for ( int round = 0; round < 500; round++ ) {
+      int size = random.nextInt( 40 );
+      Map<Object, Object> expected = new HashMap<Object, Object>();
+      PrimitiveMap map = round % 2 == 0 ? new LongLongMap( 0 ) : new LongObjectMap( 0 );
+      for ( int i = 0; i < size; i++ ) {
+        // Few distinct keys, including 0, so probe sequences are long and wrap around the table
+        Long key = Long.valueOf( random.nextInt( 64 ) - 8 );
+        Object value = random.nextInt( 10 ) == 0 ? null : Long.valueOf( random.nextLong() );
+        expected.put( key, value );
+        map.put( key, value );
+      }
+      if ( random.nextBoolean() ) {
+        expected.put( null, 1L );
+        map.put( null, 1L );
+      }
+      removeRandomly( map, expected, random );
+    }
+  }
+
+  @Test
+  public void testIteratorRemoveObjectKeys() {
+    Random random = new Random( 2 );
+    for ( int round = 0; round < 500; round++ ) {
+      int size = random.nextInt( 40 );
+      Map<Object, Object> expected = new HashMap<Object, Object>();
+      PrimitiveMap map = new ObjectLongMap( 0 );
+      for ( int i = 0; i < size; i++ ) {
+        String key = "k" + random.nextInt( 64 );
+        Object value = random.nextInt( 10 ) == 0 ? null : Long.valueOf( random.nextInt() );
+        expected.put( key, value );
+        map.put( key, value );
+      }
+      removeRandomly( map, expected, random );
+    }
+  }
+
+  @Test
+  public void testViewRemoval() {
+    PrimitiveMap map = new LongLongMap( 0 );
+    for ( long i = 0; i < 100; i++ ) {
+      map.put( i, i * 2 );
+    }
+    assertTrue( map.keySet().remove( 5L ) );
+    assertTrue( map.values().remove( 20L ) );
+    assertFalse( map.keySet().retainAll( new HashSet<Object>( map.keySet() ) ) );
+    Set<Object> odd = new HashSet<Object>();
+    for ( long i = 1; i < 100; i += 2 ) {
+      odd.add( i );
+    }
+    map.keySet().retainAll( odd );
+    assertEquals( 49, map.size() );
+    assertFalse( map.containsKey( 5L ) );
+    assertEquals( Long.valueOf( 14L ), map.get( 7L ) );
+  }
+
+  /**
+   * Removes random entries through the entry set iterator, checking every entry is returned once.
+   */
+  private static void removeRandomly( PrimitiveMap map, Map<Object, Object> expected, Random random ) {
+    assertEquals( expected, map );
+    assertEquals( expected.hashCode(), map.hashCode() );
+
+    Set<Object> keys = new HashSet<Object>( expected.keySet() );
+    Set<Object> seen = new HashSet<Object>();
+    for ( Iterator<Map.Entry<Object, Object>> iterator = map.entrySet().iterator(); iterator.hasNext(); ) {
+      Map.Entry<Object, Object> entry = iterator.next();
+      assertTrue( "returned twice: " + entry.getKey(), seen.add( entry.getKey() ) );
+      assertEquals( expected.get( entry.getKey() ), entry.getValue() );
+      if ( random.nextBoolean() ) {
+        iterator.remove();
+        expected.remove( entry.getKey() );
+      }
+    }
+    assertEquals( keys, seen );
+    assertEquals( expected, map );
+    assertEquals( expected.hashCode(), map.hashCode() );
+  }
+}
@@ -0,0 +1,92 @@
+package org.pentaho.di.trans.partitioner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaMap;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.partition.PartitionSchema;
+import org.pentaho.di.trans.step.StepPartitioningMeta;
+
+public class MapKeyPartitionerTest {
+
+  private static final int PARTITIONS = 4;
+
+  private RowMetaInterface rowMeta;
+  private MapKeyPartitioner partitioner;
+
+  @Before
+  public void setUp() {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "id" ) );
+    rowMeta.addValueMeta( new ValueMetaMap( "map", new ValueMetaString( "key" ), new ValueMetaString( "value" ) ) );
+
+    StepPartitioningMeta partitioningMeta = new StepPartitioningMeta();
+    partitioningMeta.setPartitionSchema( new PartitionSchema( "schema", Arrays.asList( "P1", "P2", "P3", "P4" ) ) );
+    partitioner = new MapKeyPartitioner();
+    partitioner.setMeta( partitioningMeta );
+    partitioner.setFieldName( "map" );
+  }
+
+  @Test
+  public void testEqualMapsGoToSamePartition() throws Exception {
+    for ( int i = 0; i < 50; i++ ) {
+      Map<Object, Object> hashMap = new HashMap<Object, Object>();
+      Map<Object, Object> treeMap = new TreeMap<Object, Object>();
+      Map<Object, Object> reversed = new LinkedHashMap<Object, Object>();
+      for ( int j = 0; j < 5; j++ ) {
+        hashMap.put( "k" + j, "v" + ( i + j ) );
+        treeMap.put( "k" + j, "v" + ( i + j ) );
+      }
+      for ( int j = 4; j >= 0; j-- ) {
+        reversed.put( "k" + j, "v" + ( i + j ) );
+      }
+
+      int partition = partitioner.getPartition( rowMeta, new Object[] { "a", hashMap } );
+      assertTrue( partition >= 0 && partition < PARTITIONS );
+      assertEquals( partition, partitioner.getPartition( rowMeta, new Object[] { "b", treeMap } ) );
+      assertEquals( partition, partitioner.getPartition( rowMeta, new Object[] { "c", reversed } ) );
+    }
+  }
+
+  @Test
+  public void testEqualKeyValuesGoToSamePartition() throws Exception {
+    partitioner.setKeyName( "k" );
+    for ( int i = 0; i < 50; i++ ) {
+      Map<Object, Object> map = new HashMap<Object, Object>();
+      map.put( "k", "v" + i );
+      map.put( "other", "x" );
+      Map<Object, Object> other = new TreeMap<Object, Object>();
+      other.put( "k", "v" + i );
+      other.put( "other", "y" + i );
+
+      int partition = partitioner.getPartition( rowMeta, new Object[] { "a", map } );
+      assertTrue( partition >= 0 && partition < PARTITIONS );
+      assertEquals( partition, partitioner.getPartition( rowMeta, new Object[] { "b", other } ) );
+    }
+  }
+
+  @Test
+  public void testNullMap() throws Exception {
+    int partition = partitioner.getPartition( rowMeta, new Object[] { "a", null } );
+    assertTrue( partition >= 0 && partition < PARTITIONS );
+    assertEquals( partition, partitioner.getPartition( rowMeta, new Object[] { "b", null } ) );
+
+    partitioner.setKeyName( "k" );
+    int keyPartition = partitioner.getPartition( rowMeta, new Object[] { "a", null } );
+    assertTrue( keyPartition >= 0 && keyPartition < PARTITIONS );
+    // A map without the key goes where a null map goes
+    assertEquals( keyPartition, partitioner.getPartition( rowMeta,
+        new Object[] { "b", new HashMap<Object, Object>() } ) );
+  }
+}